@@ -0,0 +1,45 @@
+package io.bdrc.lucene.km.bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.bdrc.lucene.km.KhmerAnalyzer;
+
+/**
+ * Benchmarks the full analysis chain, as used when indexing.
+ */
+public class AnalyzerBenchmark extends CorpusBenchmark {
+
+    @Param({"1", "2", "3"})
+    public int normalizationLevel;
+
+    // to measure the cost of AnalysisMetrics
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    KhmerAnalyzer analyzer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        analyzer = new KhmerAnalyzer(normalizationLevel);
+        if (metrics)
+            analyzer.enableMetrics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        analyzer.close();
+    }
+
+    @Benchmark
+    public int analyze(final Counters counters) throws IOException {
+        counters.chars += text.length();
+        return consume(analyzer.tokenStream("text", text), counters);
+    }
+
+}
@@ -0,0 +1,103 @@
+package io.bdrc.lucene.km.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.bdrc.lucene.km.KhmerAnalyzer;
+import io.bdrc.lucene.km.KhmerBatchAnalyzer;
+
+/**
+ * Benchmarks the analysis of short strings (the corpus cut in strings of about
+ * stringLength chars) with a token stream per string and with KhmerBatchAnalyzer, one
+ * string at a time or the whole list at once (in the common ForkJoinPool).
+ */
+public class BatchBenchmark extends CorpusBenchmark {
+
+    @Param({"10", "40"})
+    public int stringLength;
+
+    List<String> strings;
+    KhmerAnalyzer analyzer;
+    KhmerBatchAnalyzer batchAnalyzer;
+
+    @Setup(Level.Trial)
+    public void setupStrings() throws IOException {
+        // the order of the setup methods of the class and its superclass is not specified
+        if (text == null)
+            setupCorpus();
+        strings = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = Math.min(text.length(), start + stringLength);
+            // cut after a space if there is one
+            final int space = text.indexOf(' ', end);
+            if (space != -1 && space < end + stringLength)
+                end = space + 1;
+            strings.add(text.substring(start, end));
+            start = end;
+        }
+        analyzer = new KhmerAnalyzer(1);
+        batchAnalyzer = new KhmerBatchAnalyzer(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        analyzer.close();
+        batchAnalyzer.close();
+    }
+
+    // the clusters of each string, as the batch analyzer returns them
+    @Benchmark
+    public int tokenStream(final Counters counters) throws IOException {
+        int res = 0;
+        final List<String> clusters = new ArrayList<>();
+        for (final String s : strings) {
+            clusters.clear();
+            try (TokenStream ts = analyzer.tokenStream("text", s)) {
+                final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+                ts.reset();
+                while (ts.incrementToken())
+                    clusters.add(termAtt.toString());
+                ts.end();
+            }
+            final String[] array = clusters.toArray(new String[0]);
+            counters.tokens += array.length;
+            res += array.length;
+        }
+        counters.chars += text.length();
+        return res;
+    }
+
+    @Benchmark
+    public int batchSingle(final Counters counters) {
+        int res = 0;
+        for (final String s : strings) {
+            final String[] clusters = batchAnalyzer.clusters(s);
+            counters.tokens += clusters.length;
+            res += clusters.length;
+        }
+        counters.chars += text.length();
+        return res;
+    }
+
+    @Benchmark
+    public int batchList(final Counters counters) {
+        int res = 0;
+        for (final String[] clusters : batchAnalyzer.clusters(strings)) {
+            counters.tokens += clusters.length;
+            res += clusters.length;
+        }
+        counters.chars += text.length();
+        return res;
+    }
+
+}
@@ -0,0 +1,90 @@
+package io.bdrc.lucene.km.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.bdrc.lucene.km.KhmerAnalyzer;
+import io.bdrc.lucene.km.KhmerCachingAnalyzer;
+
+/**
+ * Benchmarks the analysis of repeated field values (distinctValues strings of about 40
+ * chars cut from the corpus, drawn with a skewed distribution so that a few values are
+ * very common, as titles or series names in a catalogue) with KhmerAnalyzer and with
+ * KhmerCachingAnalyzer.
+ */
+public class CachingBenchmark extends CorpusBenchmark {
+
+    static final int VALUE_LENGTH = 40;
+
+    @Param({"500", "20000"})
+    public int distinctValues;
+
+    List<String> values;
+    KhmerAnalyzer analyzer;
+    KhmerCachingAnalyzer cachingAnalyzer;
+
+    @Setup(Level.Trial)
+    public void setupValues() throws IOException {
+        // the order of the setup methods of the class and its superclass is not specified
+        if (text == null)
+            setupCorpus();
+        final List<String> distinct = new ArrayList<>();
+        int start = 0;
+        while (start < text.length() && distinct.size() < distinctValues) {
+            int end = Math.min(text.length(), start + VALUE_LENGTH);
+            final int space = text.indexOf(' ', end);
+            if (space != -1 && space < end + VALUE_LENGTH)
+                end = space + 1;
+            distinct.add(text.substring(start, end).trim());
+            start = end;
+        }
+        // as many chars as the corpus
+        final Random random = new Random(0);
+        values = new ArrayList<>();
+        for (int nbChars = 0 ; nbChars < text.length() ; ) {
+            final double r = random.nextDouble();
+            final String value = distinct.get((int) (distinct.size() * r * r * r));
+            values.add(value);
+            nbChars += value.length();
+        }
+        analyzer = new KhmerAnalyzer(1);
+        cachingAnalyzer = new KhmerCachingAnalyzer(new KhmerAnalyzer(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.printf("%nhit ratio: %.3f, %d values in the cache, %d bytes%n", cachingAnalyzer.getCache().getHitRatio(),
+                cachingAnalyzer.getCache().size(), cachingAnalyzer.getCache().getBytes());
+        analyzer.close();
+        cachingAnalyzer.close();
+    }
+
+    private int analyzeValues(final Analyzer a, final Counters counters) throws IOException {
+        int res = 0;
+        for (final String value : values) {
+            res += consume(a.tokenStream("title", value), counters);
+            counters.chars += value.length();
+        }
+        return res;
+    }
+
+    @Benchmark
+    public int analyzer(final Counters counters) throws IOException {
+        return analyzeValues(analyzer, counters);
+    }
+
+    @Benchmark
+    public int cachingAnalyzer(final Counters counters) throws IOException {
+        return analyzeValues(cachingAnalyzer, counters);
+    }
+
+}
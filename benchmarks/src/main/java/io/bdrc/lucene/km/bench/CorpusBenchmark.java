@@ -0,0 +1,83 @@
+package io.bdrc.lucene.km.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Common setup of the benchmarks: the corpus (a file given with -p corpus=path,
+ * or a generated text of corpusSize chars, mixed with Latin text with
+ * -p nonKhmerPercent=n) and the token / char counters.
+ * 
+ * The counters are reported as tokens/s and chars/s in throughput mode, and as
+ * time per token / char in average time mode (-bm avgt).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public abstract class CorpusBenchmark {
+
+    @Param({""})
+    public String corpus;
+
+    @Param({"1000000"})
+    public int corpusSize;
+
+    // percentage of Latin / markup chunks in the generated corpus
+    @Param({"0"})
+    public int nonKhmerPercent;
+
+    protected String text;
+
+    @Setup(Level.Trial)
+    public void setupCorpus() throws IOException {
+        text = KhmerCorpus.get(corpus, corpusSize, nonKhmerPercent);
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long tokens;
+        public long chars;
+
+        @Setup(Level.Iteration)
+        public void clean() {
+            tokens = 0;
+            chars = 0;
+        }
+    }
+
+    // consumes the whole token stream, returns a value depending on all the tokens
+    static int consume(final TokenStream ts, final Counters counters) throws IOException {
+        final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+        int res = 0;
+        long nbTokens = 0;
+        ts.reset();
+        while (ts.incrementToken()) {
+            res += termAtt.length();
+            nbTokens += 1;
+        }
+        ts.end();
+        ts.close();
+        counters.tokens += nbTokens;
+        return res;
+    }
+
+}
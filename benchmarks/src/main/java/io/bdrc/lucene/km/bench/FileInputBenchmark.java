@@ -0,0 +1,80 @@
+package io.bdrc.lucene.km.bench;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.bdrc.lucene.km.GraphemeClusterTokenizer;
+import io.bdrc.lucene.km.MappedUtf8Reader;
+
+/**
+ * Benchmarks the tokenization of a UTF-8 file (the corpus written in a temporary file),
+ * read with an InputStreamReader or with a MappedUtf8Reader, and the decoding alone.
+ */
+public class FileInputBenchmark extends CorpusBenchmark {
+
+    @Param({"4096", "65536"})
+    public int ioBufferSize;
+
+    Path path;
+    Tokenizer tokenizer;
+    char[] buffer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        path = Files.createTempFile("lucene-km-bench", ".txt");
+        Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+        tokenizer = new GraphemeClusterTokenizer(ioBufferSize);
+        buffer = new char[ioBufferSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.delete(path);
+    }
+
+    @Benchmark
+    public int inputStreamReader(final Counters counters) throws IOException {
+        tokenizer.setReader(new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8));
+        counters.chars += text.length();
+        return consume(tokenizer, counters);
+    }
+
+    @Benchmark
+    public int mappedReader(final Counters counters) throws IOException {
+        tokenizer.setReader(new MappedUtf8Reader(path));
+        counters.chars += text.length();
+        return consume(tokenizer, counters);
+    }
+
+    @Benchmark
+    public int decodeInputStreamReader(final Counters counters) throws IOException {
+        return decode(new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8), counters);
+    }
+
+    @Benchmark
+    public int decodeMappedReader(final Counters counters) throws IOException {
+        return decode(new MappedUtf8Reader(path), counters);
+    }
+
+    int decode(final Reader reader, final Counters counters) throws IOException {
+        int res = 0;
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) != -1)
+            res += read;
+        reader.close();
+        counters.chars += res;
+        return res;
+    }
+
+}
@@ -0,0 +1,146 @@
+package io.bdrc.lucene.km.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Khmer text used as input of the benchmarks: either a UTF-8 file given by the user
+ * or a deterministic pseudo-random text built from common syllable shapes
+ * (with some of the spelling variations the normalization handles), optionally mixed
+ * with catalogue-like Latin text and markup.
+ */
+public class KhmerCorpus {
+
+    // most common consonants appear several times to skew the distribution
+    static final String ONSETS = "កកខគងចចជញដដតតទទននបបពពមមយររលវសសហអអខឈថធភឃឆឋឌឍណផឡឥឱ";
+    static final String SUBSCRIPTS = "ររយយលវនតមកញទ";
+    static final String[] VOWELS = {
+            "", "", "", "ា", "ា", "ិ", "ី", "ឹ", "ឺ", "ុ", "ូ", "ួ",
+            "ើ", "ឿ", "ៀ", "េ", "ែ", "ៃ", "ោ", "ៅ", "ាំ", "ុំ",
+            "ំ", "ះ", "េះ", "ោះ", "ាំង"
+    };
+    static final String FINALS = "កងចញតនបមយលវស";
+
+    public static String generate(final int nbChars, final long seed) {
+        final Random r = new Random(seed);
+        final StringBuilder sb = new StringBuilder(nbChars + 64);
+        while (sb.length() < nbChars) {
+            final int nbWords = 1 + r.nextInt(12);
+            for (int w = 0 ; w < nbWords ; w++) {
+                appendWord(sb, r);
+                // Khmer doesn't use spaces between words, only between phrases
+                if (r.nextInt(6) == 0)
+                    sb.append(' ');
+            }
+            final int k = r.nextInt(20);
+            if (k == 0) {
+                appendDigits(sb, r);
+            } else if (k == 1) {
+                sb.append(" ISBN ");
+            }
+            sb.append(r.nextInt(3) == 0 ? "។ " : " ");
+            if (r.nextInt(30) == 0)
+                sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    static final String[] LATIN_WORDS = {
+            "Phnom", "Penh", "Cambodia", "manuscript", "palm-leaf", "Buddhist", "Institute",
+            "edition", "printed", "vol.", "pp.", "the", "of", "and", "in", "Tripitaka",
+            "ISBN", "catalogue", "microfilm", "collection", "Khmer", "Pali", "n.d."
+    };
+    static final String[] MARKUP = {
+            "<title>", "</title>", "<creator>", "</creator>", "<date>", "</date>",
+            "<note type=\"colophon\">", "</note>", "&amp;", "\n  "
+    };
+
+    /**
+     * Generates a text where about nonKhmerPercent % of the chunks are Latin words,
+     * numbers or markup, and the others Khmer words.
+     */
+    public static String generateMixed(final int nbChars, final long seed, final int nonKhmerPercent) {
+        final Random r = new Random(seed);
+        final StringBuilder sb = new StringBuilder(nbChars + 64);
+        while (sb.length() < nbChars) {
+            if (r.nextInt(100) >= nonKhmerPercent) {
+                appendWord(sb, r);
+                if (r.nextInt(3) == 0)
+                    sb.append(' ');
+                continue;
+            }
+            final int k = r.nextInt(10);
+            if (k < 6) {
+                sb.append(LATIN_WORDS[r.nextInt(LATIN_WORDS.length)]);
+            } else if (k < 8) {
+                sb.append(MARKUP[r.nextInt(MARKUP.length)]);
+            } else {
+                sb.append(1800 + r.nextInt(225));
+            }
+            sb.append(r.nextInt(4) == 0 ? ", " : " ");
+        }
+        return sb.toString();
+    }
+
+    static void appendWord(final StringBuilder sb, final Random r) {
+        final int nbSyllables = 1 + r.nextInt(3);
+        for (int s = 0 ; s < nbSyllables ; s++) {
+            sb.append(ONSETS.charAt(r.nextInt(ONSETS.length())));
+            if (r.nextInt(5) == 0) {
+                sb.append('្');
+                sb.append(SUBSCRIPTS.charAt(r.nextInt(SUBSCRIPTS.length())));
+            }
+            final String vowel = VOWELS[r.nextInt(VOWELS.length)];
+            // some variations handled by the normalization and the reordering
+            final int variation = r.nextInt(50);
+            if (variation == 0 && vowel.equals("ើ")) {
+                sb.append("េី");
+            } else if (variation == 1 && vowel.equals("ោះ")) {
+                sb.append("េា:");
+            } else if (variation == 2 && !vowel.isEmpty()) {
+                sb.append(vowel);
+                sb.append('\u200B'); // zero width space, often used to separate words
+            } else {
+                sb.append(vowel);
+            }
+            if (r.nextInt(3) == 0) {
+                sb.append(FINALS.charAt(r.nextInt(FINALS.length())));
+                if (r.nextInt(8) == 0)
+                    sb.append('់');
+            }
+        }
+    }
+
+    static void appendDigits(final StringBuilder sb, final Random r) {
+        sb.append(' ');
+        final int nbDigits = 1 + r.nextInt(4);
+        final char zero = r.nextBoolean() ? '០' : '0';
+        for (int i = 0 ; i < nbDigits ; i++)
+            sb.append((char) (zero + r.nextInt(10)));
+        sb.append(' ');
+    }
+
+    /**
+     * Returns the content of the UTF-8 file at path if path isn't empty, or
+     * a generated text of nbChars chars.
+     */
+    public static String get(final String path, final int nbChars) throws IOException {
+        return get(path, nbChars, 0);
+    }
+
+    /**
+     * Same as above, the generated text having about nonKhmerPercent % of non-Khmer
+     * chunks.
+     */
+    public static String get(final String path, final int nbChars, final int nonKhmerPercent) throws IOException {
+        if (path != null && !path.isEmpty())
+            return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        if (nonKhmerPercent > 0)
+            return generateMixed(nbChars, 42, nonKhmerPercent);
+        return generate(nbChars, 42);
+    }
+
+}
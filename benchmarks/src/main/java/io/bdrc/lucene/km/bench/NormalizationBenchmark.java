@@ -0,0 +1,41 @@
+package io.bdrc.lucene.km.bench;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import io.bdrc.lucene.km.KhmerNormalizationCharFilter;
+import io.bdrc.lucene.km.NormalizationCharFilter;
+
+public class NormalizationBenchmark extends CorpusBenchmark {
+
+    @Param({"1", "2", "3"})
+    public int normalizationLevel;
+
+    final char[] buffer = new char[4096];
+
+    @Benchmark
+    public int normalize(final Counters counters) throws IOException {
+        return readAll(new KhmerNormalizationCharFilter(new StringReader(text), normalizationLevel), counters);
+    }
+
+    // the MappingCharFilter based implementation, for comparison
+    @Benchmark
+    public int normalizeMapping(final Counters counters) throws IOException {
+        return readAll(new NormalizationCharFilter(new StringReader(text), normalizationLevel), counters);
+    }
+
+    int readAll(final Reader reader, final Counters counters) throws IOException {
+        int res = 0;
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) != -1)
+            res += read;
+        reader.close();
+        counters.chars += res;
+        return res;
+    }
+
+}
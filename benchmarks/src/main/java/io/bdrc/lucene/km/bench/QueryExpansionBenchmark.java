@@ -0,0 +1,59 @@
+package io.bdrc.lucene.km.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+import io.bdrc.lucene.km.ConfusableExpander;
+import io.bdrc.lucene.km.KhmerAnalyzer;
+
+/**
+ * Benchmarks the expansion of the distinct clusters of the corpus into their confusable
+ * variants, with and without cache (tokens/s is the number of expansions per second).
+ */
+public class QueryExpansionBenchmark extends CorpusBenchmark {
+
+    String[] clusters;
+    final ConfusableExpander uncached = new ConfusableExpander(ConfusableExpander.DEFAULT_MAX_EXPANSIONS, ConfusableExpander.DEFAULT_MAX_CANDIDATES, 0);
+    final ConfusableExpander cached = new ConfusableExpander();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final Set<String> res = new LinkedHashSet<>();
+        try (final KhmerAnalyzer analyzer = new KhmerAnalyzer(1);
+                final TokenStream ts = analyzer.tokenStream("text", new StringReader(text))) {
+            final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+            ts.reset();
+            while (ts.incrementToken())
+                res.add(termAtt.toString());
+            ts.end();
+        }
+        clusters = res.toArray(new String[0]);
+    }
+
+    @Benchmark
+    public int expand(final Counters counters) {
+        int res = 0;
+        for (final String cluster : clusters)
+            res += uncached.expand(cluster).length;
+        counters.tokens += clusters.length;
+        return res;
+    }
+
+    @Benchmark
+    public int expandCached(final Counters counters) {
+        int res = 0;
+        for (final String cluster : clusters)
+            res += cached.expand(cluster).length;
+        counters.tokens += clusters.length;
+        return res;
+    }
+
+}
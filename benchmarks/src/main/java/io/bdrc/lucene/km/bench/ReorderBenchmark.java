@@ -0,0 +1,63 @@
+package io.bdrc.lucene.km.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+import io.bdrc.lucene.km.CharReorderFilter;
+import io.bdrc.lucene.km.ClusterCache;
+import io.bdrc.lucene.km.GraphemeClusterTokenizer;
+
+/**
+ * Benchmarks the reordering alone, on the clusters of the corpus.
+ */
+public class ReorderBenchmark extends CorpusBenchmark {
+
+    char[][] clusters;
+    final char[] buffer = new char[256];
+    final char[] cats = new char[CharReorderFilter.MAX_LEN];
+    final ClusterCache cache = new ClusterCache();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final List<char[]> res = new ArrayList<>();
+        final GraphemeClusterTokenizer tokenizer = new GraphemeClusterTokenizer();
+        final CharTermAttribute termAtt = tokenizer.addAttribute(CharTermAttribute.class);
+        tokenizer.setReader(new StringReader(text));
+        tokenizer.reset();
+        while (tokenizer.incrementToken())
+            res.add(termAtt.toString().toCharArray());
+        tokenizer.end();
+        tokenizer.close();
+        clusters = res.toArray(new char[0][]);
+    }
+
+    @Benchmark
+    public int reorder(final Counters counters) {
+        int res = 0;
+        for (final char[] cluster : clusters) {
+            System.arraycopy(cluster, 0, buffer, 0, cluster.length);
+            res += CharReorderFilter.reorder(buffer, cluster.length, cats);
+        }
+        counters.tokens += clusters.length;
+        return res;
+    }
+
+    @Benchmark
+    public int reorderCached(final Counters counters) {
+        int res = 0;
+        for (final char[] cluster : clusters) {
+            System.arraycopy(cluster, 0, buffer, 0, cluster.length);
+            res += cache.reorder(buffer, cluster.length, cats);
+        }
+        counters.tokens += clusters.length;
+        return res;
+    }
+
+}
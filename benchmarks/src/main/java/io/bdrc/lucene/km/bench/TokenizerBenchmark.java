@@ -0,0 +1,41 @@
+package io.bdrc.lucene.km.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+import io.bdrc.lucene.km.CharReorderFilter;
+import io.bdrc.lucene.km.GraphemeClusterTokenizer;
+
+public class TokenizerBenchmark extends CorpusBenchmark {
+
+    Tokenizer tokenizer;
+    Tokenizer reorderTokenizer;
+    CharReorderFilter reorderFilter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        tokenizer = new GraphemeClusterTokenizer();
+        reorderTokenizer = new GraphemeClusterTokenizer();
+        reorderFilter = new CharReorderFilter(reorderTokenizer);
+    }
+
+    @Benchmark
+    public int tokenize(final Counters counters) throws IOException {
+        tokenizer.setReader(new StringReader(text));
+        counters.chars += text.length();
+        return consume(tokenizer, counters);
+    }
+
+    @Benchmark
+    public int tokenizeAndReorder(final Counters counters) throws IOException {
+        reorderTokenizer.setReader(new StringReader(text));
+        counters.chars += text.length();
+        return consume(reorderFilter, counters);
+    }
+
+}
@@ -0,0 +1,106 @@
+package io.bdrc.lucene.km.indexer;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * The tokens of a field, recorded in the analysis stage and replayed by the
+ * IndexWriter in the indexing stage (the token streams of an Analyzer cannot be
+ * consumed by another thread, they are reused).
+ *
+ * Only the attributes used for indexing are recorded: term, position increment
+ * and offsets.
+ */
+public final class AnalyzedTokens extends TokenStream {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+
+    private char[] chars = new char[256];
+    private int nbChars = 0;
+    // the term of token i is chars[termEnds[i-1], termEnds[i])
+    private int[] termEnds = new int[64];
+    private int[] posIncs = new int[64];
+    private int[] startOffsets = new int[64];
+    private int[] endOffsets = new int[64];
+    private int nbTokens = 0;
+    private int finalOffset = 0;
+    private int finalPosInc = 0;
+
+    private int upto = 0;
+
+    /**
+     * Consumes and closes ts, returns its tokens.
+     */
+    public static AnalyzedTokens record(final TokenStream ts) throws IOException {
+        final AnalyzedTokens res = new AnalyzedTokens();
+        try {
+            final CharTermAttribute inTermAtt = ts.addAttribute(CharTermAttribute.class);
+            final PositionIncrementAttribute inPosIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+            final OffsetAttribute inOffsetAtt = ts.addAttribute(OffsetAttribute.class);
+            ts.reset();
+            while (ts.incrementToken())
+                res.add(inTermAtt.buffer(), inTermAtt.length(), inPosIncAtt.getPositionIncrement(), inOffsetAtt.startOffset(), inOffsetAtt.endOffset());
+            ts.end();
+            res.finalOffset = inOffsetAtt.endOffset();
+            res.finalPosInc = inPosIncAtt.getPositionIncrement();
+        } finally {
+            ts.close();
+        }
+        return res;
+    }
+
+    private void add(final char[] term, final int len, final int posInc, final int startOffset, final int endOffset) {
+        chars = ArrayUtil.grow(chars, nbChars + len);
+        System.arraycopy(term, 0, chars, nbChars, len);
+        nbChars += len;
+        if (nbTokens == termEnds.length) {
+            termEnds = ArrayUtil.grow(termEnds, nbTokens + 1);
+            posIncs = ArrayUtil.growExact(posIncs, termEnds.length);
+            startOffsets = ArrayUtil.growExact(startOffsets, termEnds.length);
+            endOffsets = ArrayUtil.growExact(endOffsets, termEnds.length);
+        }
+        termEnds[nbTokens] = nbChars;
+        posIncs[nbTokens] = posInc;
+        startOffsets[nbTokens] = startOffset;
+        endOffsets[nbTokens] = endOffset;
+        nbTokens += 1;
+    }
+
+    public int size() {
+        return nbTokens;
+    }
+
+    @Override
+    public boolean incrementToken() {
+        if (upto == nbTokens)
+            return false;
+        clearAttributes();
+        final int start = upto == 0 ? 0 : termEnds[upto - 1];
+        termAtt.copyBuffer(chars, start, termEnds[upto] - start);
+        posIncAtt.setPositionIncrement(posIncs[upto]);
+        offsetAtt.setOffset(startOffsets[upto], endOffsets[upto]);
+        upto += 1;
+        return true;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        offsetAtt.setOffset(finalOffset, finalOffset);
+        posIncAtt.setPositionIncrement(finalPosInc);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        upto = 0;
+    }
+
+}
@@ -0,0 +1,90 @@
+package io.bdrc.lucene.km.indexer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads the documents of a directory (recursively, in path order): each .txt file is a
+ * document whose id is its path relative to the directory, each line of a .jsonl file is
+ * a JSON object with an id field (optional, the default id is path:line) and a text field.
+ * Other files are ignored.
+ */
+public class DocumentReader {
+
+    public interface Handler {
+        void accept(SourceDocument doc) throws IOException, InterruptedException;
+    }
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final String idField;
+    private final String textField;
+
+    public DocumentReader(final String idField, final String textField) {
+        this.idField = idField;
+        this.textField = textField;
+    }
+
+    public void read(final Path dir, final Handler handler) throws IOException, InterruptedException {
+        final List<Path> files;
+        try (final Stream<Path> paths = Files.walk(dir)) {
+            files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        for (final Path file : files) {
+            final String name = file.getFileName().toString();
+            final String relative = dir.relativize(file).toString();
+            if (name.endsWith(".txt")) {
+                handler.accept(new SourceDocument(relative, new String(Files.readAllBytes(file), StandardCharsets.UTF_8)));
+            } else if (name.endsWith(".jsonl")) {
+                readJsonLines(file, relative, handler);
+            }
+        }
+    }
+
+    void readJsonLines(final Path file, final String relative, final Handler handler) throws IOException, InterruptedException {
+        try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber += 1;
+                if (line.trim().isEmpty())
+                    continue;
+                final SourceDocument doc = parseJson(line, relative + ":" + lineNumber);
+                if (doc != null)
+                    handler.accept(doc);
+            }
+        }
+    }
+
+    // returns null if the object has no text
+    SourceDocument parseJson(final String line, final String defaultId) throws IOException {
+        String id = defaultId;
+        String text = null;
+        try (final JsonParser parser = jsonFactory.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("not a JSON object: " + defaultId);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.currentName();
+                final JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                } else if (field.equals(idField)) {
+                    id = parser.getValueAsString(defaultId);
+                } else if (field.equals(textField)) {
+                    text = parser.getValueAsString();
+                }
+            }
+        }
+        return text == null ? null : new SourceDocument(id, text);
+    }
+
+}
@@ -0,0 +1,124 @@
+package io.bdrc.lucene.km.indexer;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The options of the indexer, parsed from the command line.
+ */
+public class IndexerConfig {
+
+    public Path input = null;
+    public Path index = null;
+    public int normalizationLevel = 1;
+    // analysis threads
+    public int threads = Runtime.getRuntime().availableProcessors();
+    // threads calling IndexWriter.addDocuments
+    public int writerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    public double ramBufferMB = 256;
+    // documents per batch, and batches per queue between two stages
+    public int batchSize = 100;
+    public int queueSize = 16;
+    public String idField = "id";
+    public String textField = "text";
+    public boolean storeText = false;
+    public boolean append = false;
+    public int reportInterval = 10;
+
+    public static final String USAGE = String.join("\n",
+            "usage: java -jar indexer.jar [options] <input directory> <index directory>",
+            "",
+            "Indexes the .txt files (one document per file) and the .jsonl files (one JSON",
+            "object per line, with the id and text fields) of the input directory.",
+            "",
+            "options:",
+            "  --level <n>            normalization level, 0 to 3 (default 1)",
+            "  --threads <n>          analysis threads (default: number of cores)",
+            "  --writer-threads <n>   threads adding documents to the index (default: cores / 4)",
+            "  --ram-buffer <mb>      RAM buffer of the IndexWriter in MB (default 256)",
+            "  --batch-size <n>       documents per batch (default 100)",
+            "  --queue-size <n>       batches waiting between two stages (default 16)",
+            "  --id-field <name>      field of the document ids (default id)",
+            "  --text-field <name>    field of the text (default text)",
+            "  --store                store the text in the index",
+            "  --append               add to an existing index instead of replacing it",
+            "  --report <seconds>     interval of the progress reports, 0 for none (default 10)");
+
+    public static IndexerConfig parse(final String[] args) {
+        final IndexerConfig res = new IndexerConfig();
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")) {
+            final String option = args[i];
+            i += 1;
+            switch (option) {
+            case "--store":
+                res.storeText = true;
+                continue;
+            case "--append":
+                res.append = true;
+                continue;
+            default:
+                break;
+            }
+            if (i == args.length)
+                throw new IllegalArgumentException("missing value of " + option);
+            final String value = args[i];
+            i += 1;
+            switch (option) {
+            case "--level":
+                res.normalizationLevel = parseInt(option, value, 0, 3);
+                break;
+            case "--threads":
+                res.threads = parseInt(option, value, 1, Integer.MAX_VALUE);
+                break;
+            case "--writer-threads":
+                res.writerThreads = parseInt(option, value, 1, Integer.MAX_VALUE);
+                break;
+            case "--ram-buffer":
+                try {
+                    res.ramBufferMB = Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid value of --ram-buffer: " + value);
+                }
+                if (res.ramBufferMB <= 0)
+                    throw new IllegalArgumentException("invalid value of --ram-buffer: " + value);
+                break;
+            case "--batch-size":
+                res.batchSize = parseInt(option, value, 1, Integer.MAX_VALUE);
+                break;
+            case "--queue-size":
+                res.queueSize = parseInt(option, value, 1, Integer.MAX_VALUE);
+                break;
+            case "--id-field":
+                res.idField = value;
+                break;
+            case "--text-field":
+                res.textField = value;
+                break;
+            case "--report":
+                res.reportInterval = parseInt(option, value, 0, Integer.MAX_VALUE);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option " + option);
+            }
+        }
+        if (args.length - i != 2)
+            throw new IllegalArgumentException("expected an input directory and an index directory");
+        res.input = Paths.get(args[i]);
+        res.index = Paths.get(args[i + 1]);
+        return res;
+    }
+
+    static int parseInt(final String option, final String value, final int min, final int max) {
+        final int res;
+        try {
+            res = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value of " + option + ": " + value);
+        }
+        if (res < min || res > max)
+            throw new IllegalArgumentException("invalid value of " + option + ": " + value);
+        return res;
+    }
+
+}
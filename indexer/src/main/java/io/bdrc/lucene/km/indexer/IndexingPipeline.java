@@ -0,0 +1,306 @@
+package io.bdrc.lucene.km.indexer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import io.bdrc.lucene.km.KhmerAnalyzer;
+
+/**
+ * Indexes a directory of documents with 3 stages running in their own threads and
+ * connected by bounded queues of batches:
+ *
+ * - reading: one thread reading the documents (see DocumentReader)
+ * - analysis: config.threads threads, each with its own KhmerAnalyzer, producing
+ *   Lucene documents with the tokens already computed (AnalyzedTokens)
+ * - indexing: config.writerThreads threads calling IndexWriter.addDocuments()
+ *
+ * A full queue blocks the previous stage, so the memory used is bounded. The time each
+ * stage spends waiting on its queues shows where the bottleneck is: for instance if the
+ * reader waits on a full queue while the analysis threads never wait for documents,
+ * the analysis is the bottleneck.
+ */
+public class IndexingPipeline {
+
+    // end of the input markers, compared by identity
+    private static final List<SourceDocument> END_OF_SOURCES = new ArrayList<>(0);
+    private static final List<Document> END_OF_DOCUMENTS = new ArrayList<>(0);
+
+    final IndexerConfig config;
+    final PrintStream out;
+
+    final BlockingQueue<List<SourceDocument>> sourceQueue;
+    final BlockingQueue<List<Document>> documentQueue;
+
+    final LongAdder docsRead = new LongAdder();
+    final LongAdder docsAnalyzed = new LongAdder();
+    final LongAdder docsIndexed = new LongAdder();
+    final LongAdder tokens = new LongAdder();
+    final LongAdder chars = new LongAdder();
+    // time waiting (in ns) on a full queue (backpressure) or an empty one (starvation)
+    final LongAdder readerBlocked = new LongAdder();
+    final LongAdder analysisStarved = new LongAdder();
+    final LongAdder analysisBlocked = new LongAdder();
+    final LongAdder writersStarved = new LongAdder();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicInteger runningAnalyzers = new AtomicInteger();
+
+    public IndexingPipeline(final IndexerConfig config, final PrintStream out) {
+        this.config = config;
+        this.out = out;
+        this.sourceQueue = new ArrayBlockingQueue<>(config.queueSize);
+        this.documentQueue = new ArrayBlockingQueue<>(config.queueSize);
+    }
+
+    public long getDocsIndexed() {
+        return docsIndexed.sum();
+    }
+
+    public long getTokens() {
+        return tokens.sum();
+    }
+
+    public long getChars() {
+        return chars.sum();
+    }
+
+    static <T> void put(final BlockingQueue<T> queue, final T e, final LongAdder blocked) throws InterruptedException {
+        if (queue.offer(e))
+            return;
+        final long start = System.nanoTime();
+        queue.put(e);
+        blocked.add(System.nanoTime() - start);
+    }
+
+    static <T> T take(final BlockingQueue<T> queue, final LongAdder starved) throws InterruptedException {
+        final T res = queue.poll();
+        if (res != null)
+            return res;
+        final long start = System.nanoTime();
+        try {
+            return queue.take();
+        } finally {
+            starved.add(System.nanoTime() - start);
+        }
+    }
+
+    private void startThread(final String name, final StageTask task) {
+        final Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (InterruptedException e) {
+                // stopped because of another failure
+            } catch (Throwable e) {
+                if (failure.compareAndSet(null, e)) {
+                    synchronized (threads) {
+                        for (final Thread t : threads)
+                            t.interrupt();
+                    }
+                }
+            }
+        }, name);
+        synchronized (threads) {
+            threads.add(thread);
+            thread.start();
+            // a thread failing before this one was added could not interrupt it
+            if (failure.get() != null)
+                thread.interrupt();
+        }
+    }
+
+    interface StageTask {
+        void run() throws Exception;
+    }
+
+    void readStage() throws IOException, InterruptedException {
+        final DocumentReader reader = new DocumentReader(config.idField, config.textField);
+        final List<List<SourceDocument>> current = new ArrayList<>(1);
+        current.add(new ArrayList<>(config.batchSize));
+        reader.read(config.input, doc -> {
+            current.get(0).add(doc);
+            docsRead.increment();
+            if (current.get(0).size() == config.batchSize) {
+                put(sourceQueue, current.get(0), readerBlocked);
+                current.set(0, new ArrayList<>(config.batchSize));
+            }
+        });
+        if (!current.get(0).isEmpty())
+            put(sourceQueue, current.get(0), readerBlocked);
+        for (int i = 0 ; i < config.threads ; i++)
+            put(sourceQueue, END_OF_SOURCES, readerBlocked);
+    }
+
+    void analysisStage() throws IOException, InterruptedException {
+        try (final KhmerAnalyzer analyzer = new KhmerAnalyzer(config.normalizationLevel)) {
+            while (true) {
+                final List<SourceDocument> batch = take(sourceQueue, analysisStarved);
+                if (batch == END_OF_SOURCES)
+                    break;
+                final List<Document> docs = new ArrayList<>(batch.size());
+                long nbTokens = 0;
+                long nbChars = 0;
+                for (final SourceDocument source : batch) {
+                    final AnalyzedTokens analyzed = AnalyzedTokens.record(analyzer.tokenStream(config.textField, source.text));
+                    final Document doc = new Document();
+                    doc.add(new StringField(config.idField, source.id, Field.Store.YES));
+                    doc.add(new Field(config.textField, analyzed, TextField.TYPE_NOT_STORED));
+                    if (config.storeText)
+                        doc.add(new StoredField(config.textField, source.text));
+                    docs.add(doc);
+                    nbTokens += analyzed.size();
+                    nbChars += source.text.length();
+                }
+                tokens.add(nbTokens);
+                chars.add(nbChars);
+                docsAnalyzed.add(batch.size());
+                put(documentQueue, docs, analysisBlocked);
+            }
+        } finally {
+            // the last analysis thread tells the writers to stop
+            if (runningAnalyzers.decrementAndGet() == 0 && failure.get() == null) {
+                for (int i = 0 ; i < config.writerThreads ; i++)
+                    put(documentQueue, END_OF_DOCUMENTS, analysisBlocked);
+            }
+        }
+    }
+
+    void writeStage(final IndexWriter writer) throws IOException, InterruptedException {
+        while (true) {
+            final List<Document> batch = take(documentQueue, writersStarved);
+            if (batch == END_OF_DOCUMENTS)
+                return;
+            writer.addDocuments(batch);
+            docsIndexed.add(batch.size());
+        }
+    }
+
+    /**
+     * Runs the pipeline and commits the index, or rolls it back if a stage fails.
+     */
+    public void run() throws IOException, InterruptedException {
+        final IndexWriterConfig iwc = new IndexWriterConfig(new KhmerAnalyzer(config.normalizationLevel));
+        iwc.setRAMBufferSizeMB(config.ramBufferMB);
+        iwc.setOpenMode(config.append ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND : IndexWriterConfig.OpenMode.CREATE);
+        final long start = System.nanoTime();
+        try (final Directory dir = FSDirectory.open(config.index)) {
+            final IndexWriter writer = new IndexWriter(dir, iwc);
+            ScheduledExecutorService reporter = null;
+            boolean committed = false;
+            try {
+                if (config.reportInterval > 0) {
+                    reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                        final Thread t = new Thread(r, "reporter");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    final Report report = new Report(start);
+                    reporter.scheduleAtFixedRate(report::print, config.reportInterval, config.reportInterval, TimeUnit.SECONDS);
+                }
+                runningAnalyzers.set(config.threads);
+                startThread("reader", this::readStage);
+                for (int i = 0 ; i < config.threads ; i++)
+                    startThread("analysis-" + i, this::analysisStage);
+                for (int i = 0 ; i < config.writerThreads ; i++)
+                    startThread("writer-" + i, () -> writeStage(writer));
+                final List<Thread> toJoin;
+                synchronized (threads) {
+                    toJoin = new ArrayList<>(threads);
+                }
+                for (final Thread t : toJoin)
+                    t.join();
+                final Throwable e = failure.get();
+                if (e != null) {
+                    try {
+                        writer.rollback();
+                    } catch (IOException re) {
+                        e.addSuppressed(re);
+                    }
+                    if (e instanceof IOException)
+                        throw (IOException) e;
+                    throw new IOException("indexing failed", e);
+                }
+                writer.commit();
+                writer.close();
+                committed = true;
+            } finally {
+                if (reporter != null)
+                    reporter.shutdownNow();
+                // interrupted while joining, or failed to commit: stop the stages and
+                // close the writer without committing (a no-op if it is already closed)
+                if (!committed) {
+                    synchronized (threads) {
+                        for (final Thread t : threads)
+                            t.interrupt();
+                    }
+                    writer.rollback();
+                }
+            }
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        out.printf("indexed %d documents, %d tokens, %d chars in %.1fs: %.0f docs/s, %.0f tokens/s, %.0f chars/s%n",
+                docsIndexed.sum(), tokens.sum(), chars.sum(), seconds,
+                docsIndexed.sum() / seconds, tokens.sum() / seconds, chars.sum() / seconds);
+    }
+
+    // progress report, with the rates and waiting times since the previous one
+    private final class Report {
+        private long lastTime;
+        private long lastDocs = 0, lastTokens = 0;
+        private long lastReaderBlocked = 0, lastAnalysisStarved = 0, lastAnalysisBlocked = 0, lastWritersStarved = 0;
+        private final long start;
+
+        Report(final long start) {
+            this.start = start;
+            this.lastTime = start;
+        }
+
+        private double percent(final long waited, final long interval, final int nbThreads) {
+            return 100.0 * waited / ((double) interval * nbThreads);
+        }
+
+        void print() {
+            final long now = System.nanoTime();
+            final long interval = now - lastTime;
+            final long docs = docsIndexed.sum();
+            final long toks = tokens.sum();
+            final long rb = readerBlocked.sum(), as = analysisStarved.sum(), ab = analysisBlocked.sum(), ws = writersStarved.sum();
+            out.printf("%.0fs: %d docs (%.0f docs/s), %d tokens (%.0f tokens/s) | queues: sources %d/%d, documents %d/%d"
+                    + " | waiting: reader %.0f%% (full), analysis %.0f%% (empty) %.0f%% (full), writers %.0f%% (empty)%n",
+                    (now - start) / 1e9, docs, (docs - lastDocs) * 1e9 / interval, toks, (toks - lastTokens) * 1e9 / interval,
+                    sourceQueue.size(), config.queueSize, documentQueue.size(), config.queueSize,
+                    percent(rb - lastReaderBlocked, interval, 1),
+                    percent(as - lastAnalysisStarved, interval, config.threads),
+                    percent(ab - lastAnalysisBlocked, interval, config.threads),
+                    percent(ws - lastWritersStarved, interval, config.writerThreads));
+            lastTime = now;
+            lastDocs = docs;
+            lastTokens = toks;
+            lastReaderBlocked = rb;
+            lastAnalysisStarved = as;
+            lastAnalysisBlocked = ab;
+            lastWritersStarved = ws;
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+package io.bdrc.lucene.km.indexer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Command line entry point, see IndexerConfig.USAGE.
+ */
+public class Main {
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final IndexerConfig config;
+        try {
+            config = IndexerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(IndexerConfig.USAGE);
+            System.exit(2);
+            return;
+        }
+        if (!Files.isDirectory(config.input)) {
+            System.err.println("not a directory: " + config.input);
+            System.exit(2);
+        }
+        System.out.printf("indexing %s in %s (level %d, %d analysis threads, %d writer threads, %.0fMB RAM buffer)%n",
+                config.input, config.index, config.normalizationLevel, config.threads, config.writerThreads, config.ramBufferMB);
+        new IndexingPipeline(config, System.out).run();
+    }
+
+}
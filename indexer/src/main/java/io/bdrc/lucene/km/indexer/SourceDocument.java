@@ -0,0 +1,16 @@
+package io.bdrc.lucene.km.indexer;
+
+/**
+ * A document as read from the input, before analysis.
+ */
+public final class SourceDocument {
+
+    public final String id;
+    public final String text;
+
+    public SourceDocument(final String id, final String text) {
+        this.id = id;
+        this.text = text;
+    }
+
+}
@@ -0,0 +1,90 @@
+package io.bdrc.lucene.km.indexer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexingPipelineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(final Path file, final String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void parseJson() throws IOException {
+        final DocumentReader reader = new DocumentReader("id", "text");
+        final SourceDocument doc = reader.parseJson("{\"meta\": {\"text\": \"x\"}, \"text\": \"ចង់\", \"id\": \"d1\"}", "f:1");
+        assertThat(doc.id, is("d1"));
+        assertThat(doc.text, is("ចង់"));
+        assertThat(reader.parseJson("{\"text\": \"ចង់\"}", "f:2").id, is("f:2"));
+        assertThat(reader.parseJson("{\"id\": \"d3\"}", "f:3"), nullValue());
+    }
+
+    @Test
+    public void indexDirectory() throws IOException, InterruptedException {
+        final Path input = folder.newFolder("input").toPath();
+        write(input.resolve("a.txt"), "ខ្ញុំ ចង់ធ្វើការ");
+        // the line without text is skipped, the one without id gets path:line
+        write(input.resolve("sub/b.jsonl"), "{\"id\": \"b1\", \"text\": \"ធ្វើការ\"}\n"
+                + "\n"
+                + "{\"id\": \"b2\"}\n"
+                + "{\"text\": \"ខ្ញុំ\"}\n");
+        write(input.resolve("c.md"), "ignored");
+        final IndexerConfig config = new IndexerConfig();
+        config.input = input;
+        config.index = folder.newFolder("index").toPath();
+        config.threads = 2;
+        config.writerThreads = 2;
+        config.batchSize = 1;
+        config.queueSize = 1;
+        config.reportInterval = 0;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final IndexingPipeline pipeline = new IndexingPipeline(config, new PrintStream(out, true, "UTF-8"));
+        pipeline.run();
+        assertThat(pipeline.getDocsIndexed(), is(3L));
+        // ខ្ញុំ ច ង់ ធ្វើ កា រ, ធ្វើ កា រ, ខ្ញុំ
+        assertThat(pipeline.getTokens(), is(10L));
+        assertThat(out.toString("UTF-8").startsWith("indexed 3 documents, 10 tokens"), is(true));
+        try (final Directory dir = FSDirectory.open(config.index) ; final DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertThat(reader.numDocs(), is(3));
+            final Terms terms = MultiTerms.getTerms(reader, "text");
+            final List<String> termList = new ArrayList<>();
+            final TermsEnum te = terms.iterator();
+            for (BytesRef term = te.next() ; term != null ; term = te.next())
+                termList.add(term.utf8ToString() + ":" + te.docFreq());
+            assertThat(termList.toString(), is("[កា:2, ខ្ញុំ:2, ង់:1, ច:1, ធ្វើ:2, រ:2]"));
+            final IndexSearcher searcher = new IndexSearcher(reader);
+            assertThat(searcher.count(new TermQuery(new Term("id", "a.txt"))), is(1));
+            assertThat(searcher.count(new TermQuery(new Term("id", "sub/b.jsonl:4"))), is(1));
+            assertThat(searcher.count(new TermQuery(new Term("id", "b2"))), is(0));
+        }
+    }
+
+}
@@ -0,0 +1,279 @@
+package io.bdrc.lucene.km;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the tokens (terms, position increments, offsets and types) of whole field values,
+ * used by KhmerCachingAnalyzer. The values are cached by field, so that the cache can be
+ * used with analyzers giving different tokens for different fields.
+ *
+ * The cache is split in segments by hash of the field and value, each segment being an
+ * LRU map with its share of the maximum size in bytes, evicting its least recently used
+ * values when it is full. The sizes are estimates of the memory used by the values and
+ * their tokens.
+ *
+ * The hits and misses are counted globally and by field, the values longer than the
+ * maximum length of the analyzer are counted as skipped.
+ */
+public final class AnalysisCache {
+
+    public static final long DEFAULT_MAX_BYTES = 32L << 20;
+    static final int NB_SEGMENTS = 16;
+    // estimate of the objects of an entry: key, value String, entry, array headers, map node
+    static final int ENTRY_OVERHEAD = 184;
+
+    // the tokens of a value: token i has the term chars[tokens[4*i-4], tokens[4*i]) (0 for
+    // the first one), the position increment tokens[4*i+1], the offsets tokens[4*i+2],
+    // tokens[4*i+3] and the type types[i]
+    static final class Entry {
+        final char[] chars;
+        final int[] tokens;
+        final String[] types;
+        final int nbTokens;
+        final int finalOffset;
+        final int finalPosInc;
+        final int bytes;
+
+        Entry(final String value, final char[] chars, final int nbChars, final int[] tokens, final String[] types, final int nbTokens, final int finalOffset, final int finalPosInc) {
+            this.chars = new char[nbChars];
+            System.arraycopy(chars, 0, this.chars, 0, nbChars);
+            this.tokens = new int[4 * nbTokens];
+            System.arraycopy(tokens, 0, this.tokens, 0, 4 * nbTokens);
+            // the types are shared constants
+            this.types = new String[nbTokens];
+            System.arraycopy(types, 0, this.types, 0, nbTokens);
+            this.nbTokens = nbTokens;
+            this.finalOffset = finalOffset;
+            this.finalPosInc = finalPosInc;
+            this.bytes = ENTRY_OVERHEAD + 2 * value.length() + 2 * nbChars + 24 * nbTokens;
+        }
+    }
+
+    // the field names are shared by the token streams, only the value is counted in the size
+    private static final class Key {
+        final String field;
+        final String value;
+        final int hash;
+
+        Key(final String field, final String value) {
+            this.field = field;
+            this.value = value;
+            this.hash = 31 * field.hashCode() + value.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key))
+                return false;
+            final Key other = (Key) o;
+            return hash == other.hash && value.equals(other.value) && field.equals(other.field);
+        }
+    }
+
+    // an LRU map, accessed under its lock
+    private static final class Segment extends LinkedHashMap<Key, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        final long maxBytes;
+        long bytes = 0;
+
+        Segment(final long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    static final class FieldCounters {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+    }
+
+    private final long maxBytes;
+    private final Segment[] segments = new Segment[NB_SEGMENTS];
+    private final LongAdder evictions = new LongAdder();
+    private final ConcurrentHashMap<String, FieldCounters> fields = new ConcurrentHashMap<>();
+
+    public AnalysisCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Cache using at most about maxBytes bytes.
+     */
+    public AnalysisCache(final long maxBytes) {
+        if (maxBytes < NB_SEGMENTS * ENTRY_OVERHEAD)
+            throw new IllegalArgumentException("maxBytes is too small: " + maxBytes);
+        this.maxBytes = maxBytes;
+        for (int i = 0 ; i < NB_SEGMENTS ; i++)
+            segments[i] = new Segment(maxBytes / NB_SEGMENTS);
+    }
+
+    private Segment segment(final Key key) {
+        final int h = key.hash * 0x9E3779B9;
+        return segments[(h ^ (h >>> 16)) & (NB_SEGMENTS - 1)];
+    }
+
+    Entry get(final String field, final String value) {
+        final Key key = new Key(field, value);
+        final Segment segment = segment(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    void put(final String field, final String value, final Entry entry) {
+        final Key key = new Key(field, value);
+        final Segment segment = segment(key);
+        if (entry.bytes > segment.maxBytes)
+            return;
+        synchronized (segment) {
+            final Entry previous = segment.put(key, entry);
+            if (previous != null)
+                segment.bytes -= previous.bytes;
+            segment.bytes += entry.bytes;
+            final Iterator<Entry> it = segment.values().iterator();
+            while (segment.bytes > segment.maxBytes) {
+                segment.bytes -= it.next().bytes;
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    FieldCounters fieldCounters(final String field) {
+        return fields.computeIfAbsent(field, f -> new FieldCounters());
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Estimate of the memory used by the values in the cache.
+     */
+    public long getBytes() {
+        long res = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                res += segment.bytes;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Number of values in the cache.
+     */
+    public int size() {
+        int res = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                res += segment.size();
+            }
+        }
+        return res;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * The fields analyzed since the creation of the cache.
+     */
+    public Set<String> getFields() {
+        return Collections.unmodifiableSet(fields.keySet());
+    }
+
+    public long getHits() {
+        long res = 0;
+        for (final FieldCounters counters : fields.values())
+            res += counters.hits.sum();
+        return res;
+    }
+
+    public long getMisses() {
+        long res = 0;
+        for (final FieldCounters counters : fields.values())
+            res += counters.misses.sum();
+        return res;
+    }
+
+    public long getSkipped() {
+        long res = 0;
+        for (final FieldCounters counters : fields.values())
+            res += counters.skipped.sum();
+        return res;
+    }
+
+    public double getHitRatio() {
+        final long h = getHits();
+        final long total = h + getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getHits(final String field) {
+        final FieldCounters counters = fields.get(field);
+        return counters == null ? 0 : counters.hits.sum();
+    }
+
+    public long getMisses(final String field) {
+        final FieldCounters counters = fields.get(field);
+        return counters == null ? 0 : counters.misses.sum();
+    }
+
+    public long getSkipped(final String field) {
+        final FieldCounters counters = fields.get(field);
+        return counters == null ? 0 : counters.skipped.sum();
+    }
+
+    /**
+     * Hit ratio of the values of a field that are short enough to be cached.
+     */
+    public double getHitRatio(final String field) {
+        final long h = getHits(field);
+        final long total = h + getMisses(field);
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Hit ratio of each field.
+     */
+    public Map<String, Double> getHitRatios() {
+        final Map<String, Double> res = new LinkedHashMap<>();
+        for (final String field : fields.keySet())
+            res.put(field, getHitRatio(field));
+        return res;
+    }
+
+    public void resetCounters() {
+        for (final FieldCounters counters : fields.values()) {
+            counters.hits.reset();
+            counters.misses.reset();
+            counters.skipped.reset();
+        }
+        evictions.reset();
+    }
+
+    public void clear() {
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.bytes = 0;
+            }
+        }
+    }
+
+}
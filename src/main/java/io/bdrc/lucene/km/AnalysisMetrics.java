@@ -0,0 +1,286 @@
+package io.bdrc.lucene.km;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the analysis stages (KhmerNormalizationCharFilter, GraphemeClusterTokenizer
+ * and CharReorderFilter), shared by all the components of an analyzer, see
+ * KhmerAnalyzer.enableMetrics().
+ *
+ * The counters are LongAdders so that the threads using the analyzer don't contend on
+ * them, the tokenizer and the filter count in plain fields and add their counts when the
+ * stream ends. The components not given an AnalysisMetrics, or given disabled ones, only
+ * pay a null check on a field. Calling System.nanoTime() for each token would double the analysis time, so the
+ * time of the tokenizer and of the reordering is measured on one token out of
+ * SAMPLING_RATE and multiplied by SAMPLING_RATE. The char filter is timed on each read(),
+ * which covers thousands of chars.
+ *
+ * The metrics can be disabled and enabled again with setEnabled(): the components check
+ * the flag when they start a stream (when they are reset, or created for the char filter),
+ * so a stream is either fully counted or not counted at all.
+ */
+public final class AnalysisMetrics implements AnalysisMetricsMXBean {
+
+    // must be a power of 2
+    public static final int SAMPLING_RATE = 16;
+    static final int SAMPLING_MASK = SAMPLING_RATE - 1;
+
+    // outcomes of the reordering of a token
+    static final int REORDERED = 0;
+    static final int UNCHANGED = 1;
+    static final int SKIPPED_LENGTH = 2;
+    static final int SKIPPED_NOT_BASE = 3;
+    static final int SKIPPED_SHORT = 4;
+    static final int NB_OUTCOMES = 5;
+
+    final NormalizationRules rules;
+    private volatile boolean enabled = true;
+
+    final LongAdder normalizationCharsIn = new LongAdder();
+    final LongAdder tokenizerCharsIn = new LongAdder();
+    final LongAdder tokensOut = new LongAdder();
+    final LongAdder tokensReordered = new LongAdder();
+    final LongAdder tokensUnchanged = new LongAdder();
+    final LongAdder tokensSkippedLength = new LongAdder();
+    final LongAdder tokensSkippedNotBase = new LongAdder();
+    final LongAdder tokensSkippedShort = new LongAdder();
+    final LongAdder normalizationNanos = new LongAdder();
+    // doesn't include the time spent reading the input
+    final LongAdder tokenizerNanos = new LongAdder();
+    final LongAdder reorderNanos = new LongAdder();
+    // indexed by rule number
+    final LongAdder[] ruleHits;
+
+    /**
+     * Metrics of an analysis chain normalizing with rules (null if there is no
+     * normalization).
+     */
+    public AnalysisMetrics(final NormalizationRules rules) {
+        this.rules = rules;
+        this.ruleHits = new LongAdder[rules == null ? 0 : rules.size()];
+        for (int i = 0 ; i < ruleHits.length ; i++)
+            ruleHits[i] = new LongAdder();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the counting, for the streams started after the call.
+     */
+    @Override
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // the metrics to use for a new stream: metrics if they are enabled, null otherwise
+    static final AnalysisMetrics active(final AnalysisMetrics metrics) {
+        return metrics != null && metrics.enabled ? metrics : null;
+    }
+
+    final void countRule(final int rule) {
+        ruleHits[rule].increment();
+    }
+
+    // called by CharReorderFilter with the token before and after reordering
+    static final int reorderOutcome(final char[] before, final int len, final char[] after, final int newlen) {
+        // a single char can't be reordered
+        if (len < 2)
+            return SKIPPED_SHORT;
+        if (len > CharReorderFilter.MAX_LEN)
+            return SKIPPED_LENGTH;
+        if (CharReorderFilter.charcat(before[0]) != CharReorderFilter.CAT_BASE)
+            return SKIPPED_NOT_BASE;
+        if (newlen != len)
+            return REORDERED;
+        for (int i = 0 ; i < len ; i++) {
+            if (before[i] != after[i])
+                return REORDERED;
+        }
+        return UNCHANGED;
+    }
+
+    // counts indexed by outcome
+    final void addReorderCounts(final long[] counts, final long sampledNanos) {
+        tokensReordered.add(counts[REORDERED]);
+        tokensUnchanged.add(counts[UNCHANGED]);
+        tokensSkippedLength.add(counts[SKIPPED_LENGTH]);
+        tokensSkippedNotBase.add(counts[SKIPPED_NOT_BASE]);
+        tokensSkippedShort.add(counts[SKIPPED_SHORT]);
+        reorderNanos.add(sampledNanos * SAMPLING_RATE);
+    }
+
+    final void addTokenizerCounts(final long chars, final long tokens, final long sampledNanos) {
+        tokenizerCharsIn.add(chars);
+        tokensOut.add(tokens);
+        tokenizerNanos.add(sampledNanos * SAMPLING_RATE);
+    }
+
+    @Override
+    public long getNormalizationCharsIn() {
+        return normalizationCharsIn.sum();
+    }
+
+    @Override
+    public long getTokenizerCharsIn() {
+        return tokenizerCharsIn.sum();
+    }
+
+    @Override
+    public long getTokensOut() {
+        return tokensOut.sum();
+    }
+
+    @Override
+    public long getTokensReordered() {
+        return tokensReordered.sum();
+    }
+
+    @Override
+    public long getTokensUnchanged() {
+        return tokensUnchanged.sum();
+    }
+
+    @Override
+    public long getTokensSkippedLength() {
+        return tokensSkippedLength.sum();
+    }
+
+    @Override
+    public long getTokensSkippedNotBase() {
+        return tokensSkippedNotBase.sum();
+    }
+
+    @Override
+    public long getTokensSkippedShort() {
+        return tokensSkippedShort.sum();
+    }
+
+    @Override
+    public long getNormalizationNanos() {
+        return normalizationNanos.sum();
+    }
+
+    /**
+     * The time spent in the tokenizer, not counting the time spent reading its input
+     * (in the char filter).
+     */
+    @Override
+    public long getTokenizerNanos() {
+        return tokenizerNanos.sum();
+    }
+
+    @Override
+    public long getReorderNanos() {
+        return reorderNanos.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRuleHits() {
+        final Map<String, Long> res = new LinkedHashMap<>();
+        for (int i = 0 ; i < ruleHits.length ; i++)
+            res.put(NormalizationRules.escape(rules.getSource(i)), ruleHits[i].sum());
+        return res;
+    }
+
+    @Override
+    public void reset() {
+        normalizationCharsIn.reset();
+        tokenizerCharsIn.reset();
+        tokensOut.reset();
+        tokensReordered.reset();
+        tokensUnchanged.reset();
+        tokensSkippedLength.reset();
+        tokensSkippedNotBase.reset();
+        tokensSkippedShort.reset();
+        normalizationNanos.reset();
+        tokenizerNanos.reset();
+        reorderNanos.reset();
+        for (final LongAdder hits : ruleHits)
+            hits.reset();
+    }
+
+    /**
+     * Returns a copy of the current values. The counters are updated concurrently, so
+     * the copy is not an atomic snapshot of all of them if the analyzer is in use, and
+     * the token streams that have not ended yet are not counted.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server under
+     * io.bdrc.lucene.km:type=AnalysisMetrics,name=(name), returns the name to use
+     * to unregister them.
+     */
+    public ObjectName register(final String name) throws JMException {
+        final ObjectName objectName = new ObjectName("io.bdrc.lucene.km:type=AnalysisMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public static void unregister(final ObjectName objectName) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName))
+            server.unregisterMBean(objectName);
+    }
+
+    public static final class Snapshot {
+        public final long normalizationCharsIn;
+        public final long tokenizerCharsIn;
+        public final long tokensOut;
+        public final long tokensReordered;
+        public final long tokensUnchanged;
+        public final long tokensSkippedLength;
+        public final long tokensSkippedNotBase;
+        public final long tokensSkippedShort;
+        public final long normalizationNanos;
+        public final long tokenizerNanos;
+        public final long reorderNanos;
+        public final Map<String, Long> ruleHits;
+
+        Snapshot(final AnalysisMetrics metrics) {
+            this.normalizationCharsIn = metrics.getNormalizationCharsIn();
+            this.tokenizerCharsIn = metrics.getTokenizerCharsIn();
+            this.tokensOut = metrics.getTokensOut();
+            this.tokensReordered = metrics.getTokensReordered();
+            this.tokensUnchanged = metrics.getTokensUnchanged();
+            this.tokensSkippedLength = metrics.getTokensSkippedLength();
+            this.tokensSkippedNotBase = metrics.getTokensSkippedNotBase();
+            this.tokensSkippedShort = metrics.getTokensSkippedShort();
+            this.normalizationNanos = metrics.getNormalizationNanos();
+            this.tokenizerNanos = metrics.getTokenizerNanos();
+            this.reorderNanos = metrics.getReorderNanos();
+            this.ruleHits = Collections.unmodifiableMap(metrics.getRuleHits());
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("normalization: ").append(normalizationCharsIn).append(" chars in ")
+                .append(normalizationNanos / 1000000).append("ms\n");
+            sb.append("tokenizer: ").append(tokenizerCharsIn).append(" chars, ").append(tokensOut)
+                .append(" tokens in ").append(tokenizerNanos / 1000000).append("ms\n");
+            sb.append("reorder: ").append(tokensReordered).append(" reordered, ").append(tokensUnchanged)
+                .append(" unchanged, ").append(tokensSkippedLength).append(" too long, ").append(tokensSkippedNotBase)
+                .append(" not starting with a base, ").append(tokensSkippedShort).append(" single chars in ").append(reorderNanos / 1000000).append("ms\n");
+            for (final Map.Entry<String, Long> e : ruleHits.entrySet()) {
+                if (e.getValue() > 0)
+                    sb.append("rule ").append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package io.bdrc.lucene.km;
+
+import java.util.Map;
+
+/**
+ * JMX view of AnalysisMetrics.
+ */
+public interface AnalysisMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getNormalizationCharsIn();
+
+    long getTokenizerCharsIn();
+
+    long getTokensOut();
+
+    long getTokensReordered();
+
+    long getTokensUnchanged();
+
+    long getTokensSkippedLength();
+
+    long getTokensSkippedNotBase();
+
+    long getTokensSkippedShort();
+
+    long getNormalizationNanos();
+
+    long getTokenizerNanos();
+
+    long getReorderNanos();
+
+    /**
+     * The number of times each normalization rule was applied, by source string
+     * (with \\uXXXX escapes).
+     */
+    Map<String, Long> getRuleHits();
+
+    void reset();
+
+}
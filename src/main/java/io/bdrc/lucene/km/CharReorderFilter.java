@@ -1,20 +1,61 @@
 package io.bdrc.lucene.km;
 
 import java.util.Arrays;
-import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
+/**
+ * Reorders the characters of a grapheme cluster in a canonical order and
+ * fixes a few common spelling variations (split vowels, upshifting, coeng ro position, etc.).
+ *
+ * The work is done in place in the term buffer and doesn't allocate anything. A
+ * ClusterCache shared between threads can be used to avoid reordering the same clusters
+ * again and again.
+ */
 public class CharReorderFilter extends TokenFilter  {
 
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
-    
+
+    // tokens longer than that are not reordered
+    public static final int MAX_LEN = 30;
+
+    // scratch space for the categories of the current token
+    private final char[] cats = new char[MAX_LEN];
+
+    // optional, can be shared with other filters
+    private final ClusterCache cache;
+    // optional, with a copy of the token before reordering and the counts of the
+    // current stream
+    private final AnalysisMetrics metrics;
+    // metrics if they were enabled when the stream was reset, null otherwise
+    private AnalysisMetrics active = null;
+    private final char[] before;
+    private final long[] outcomeCounts;
+    private long sampledNanos = 0;
+    private int nbTokens = 0;
+
     public CharReorderFilter(TokenStream input) {
+        this(input, null);
+    }
+
+    public CharReorderFilter(TokenStream input, ClusterCache cache) {
+        this(input, cache, null);
+    }
+
+    /**
+     * Filter counting the tokens reordered, unchanged and skipped, and the time spent
+     * reordering, in metrics (cache can be null).
+     */
+    public CharReorderFilter(TokenStream input, ClusterCache cache, AnalysisMetrics metrics) {
         super(input);
+        this.cache = cache;
+        this.metrics = metrics;
+        this.before = metrics == null ? null : new char[MAX_LEN];
+        this.outcomeCounts = metrics == null ? null : new long[AnalysisMetrics.NB_OUTCOMES];
     }
-    
+
     public static final char CAT_OTHER = 0;
     public static final char CAT_BASE = 1;
     public static final char CAT_ROBAT = 2;
@@ -24,7 +65,7 @@ public class CharReorderFilter extends TokenFilter  {
     public static final char CAT_VOWEL = 6;
     public static final char CAT_MS = 7;
     public static final char CAT_MF = 8;
-    
+
     public static final char[] categories = new char[94];
     static {
         for (int i = 0 ; i <= '\u17B3'-'\u1780' ; i++)
@@ -46,7 +87,7 @@ public class CharReorderFilter extends TokenFilter  {
             categories[i] = CAT_OTHER;
         categories['\u17DD'-'\u1780'] = CAT_MS;
     }
-    
+
     public static final char charcat(char c) {
         if ('\u1780' <= c && c <= '\u17DD')
             return categories[c-'\u1780'];
@@ -54,72 +95,297 @@ public class CharReorderFilter extends TokenFilter  {
             return CAT_Z;
         return CAT_OTHER;
     }
-    
-    final static String BNB = "[\u1780-\u1793\u1795-\u17A2]";
-    final static String SF = "[\u179E-\u17A0\u17A2]";
-    final static String SNF = "[\u1780-\u179D\u17A1]";
-    final static String SS = "[\u1784\u1789\u1793\u1794\u1798-\u179D]";
-    final static String VA = "[\u17B7-\u17BA\u17BE\u17D0\u17DD]|\u17B6\u17C6";
-    
-    final static Pattern triisapP = Pattern.compile("({SF}(?:\u17D2{BNB}){0,2}|{BNB}(?:\u17D2{SF}(?:\u17D2{BNB})?|\u17D2{BNB}\u17D2{SF}))\u17BB({VA})".replace("{SF}", SF).replace("{BNB}", BNB).replace("{VA}", VA));
-    final static Pattern muusikatoanP = Pattern.compile("({SS}(?:\u17D2{SNF}){0,2}|{SNF}(?:\u17D2{SS}(?:\u17D2{SNF})?|\u17D2{SNF}\u17D2{SS}))\u17BB({VA})".replace("{SS}", SS).replace("{SNF}", BNB).replace("{VA}", VA));
-    
+
+    // character classes used in the upshifting rules:
+    // BNB: [\u1780-\u1793\u1795-\u17A2]
+    static final boolean isBNB(final char c) {
+        return ('\u1780' <= c && c <= '\u1793') || ('\u1795' <= c && c <= '\u17A2');
+    }
+
+    // SF: [\u179E-\u17A0\u17A2]
+    static final boolean isSF(final char c) {
+        return ('\u179E' <= c && c <= '\u17A0') || c == '\u17A2';
+    }
+
+    // SS: [\u1784\u1789\u1793\u1794\u1798-\u179D]
+    static final boolean isSS(final char c) {
+        return c == '\u1784' || c == '\u1789' || c == '\u1793' || c == '\u1794' || ('\u1798' <= c && c <= '\u179D');
+    }
+
+    // VA (single char part): [\u17B7-\u17BA\u17BE\u17D0\u17DD], the other part is \u17B6\u17C6
+    static final boolean isVA(final char c) {
+        return ('\u17B7' <= c && c <= '\u17BA') || c == '\u17BE' || c == '\u17D0' || c == '\u17DD';
+    }
+
+    static final boolean isZW(final char c) {
+        return c == '\u200C' || c == '\u200D';
+    }
+
     @Override
     public final boolean incrementToken() throws java.io.IOException {
         if (!input.incrementToken()) {
             return false;
         }
+        final int len = termAtt.length();
+        if (active != null)
+            return incrementTokenWithMetrics(len);
+        final int newlen = cache == null ? reorder(termAtt.buffer(), len, cats) : cache.reorder(termAtt.buffer(), len, cats);
+        if (newlen != len)
+            termAtt.setLength(newlen);
+        return true;
+    }
 
+    private boolean incrementTokenWithMetrics(final int len) {
         final char[] buffer = termAtt.buffer();
-        final int len = termAtt.length();
+        System.arraycopy(buffer, 0, before, 0, Math.min(len, MAX_LEN));
+        final int newlen;
+        if ((++nbTokens & AnalysisMetrics.SAMPLING_MASK) == 0) {
+            final long start = System.nanoTime();
+            newlen = cache == null ? reorder(buffer, len, cats) : cache.reorder(buffer, len, cats);
+            sampledNanos += System.nanoTime() - start;
+        } else {
+            newlen = cache == null ? reorder(buffer, len, cats) : cache.reorder(buffer, len, cats);
+        }
+        outcomeCounts[AnalysisMetrics.reorderOutcome(before, len, buffer, newlen)] += 1;
+        if (newlen != len)
+            termAtt.setLength(newlen);
+        return true;
+    }
 
-        if (len < 2 || len > 30)
-            return true;
+    @Override
+    public void end() throws java.io.IOException {
+        super.end();
+        if (active != null) {
+            active.addReorderCounts(outcomeCounts, sampledNanos);
+            Arrays.fill(outcomeCounts, 0);
+            sampledNanos = 0;
+        }
+    }
+
+    @Override
+    public void reset() throws java.io.IOException {
+        super.reset();
+        active = AnalysisMetrics.active(metrics);
+        if (outcomeCounts != null)
+            Arrays.fill(outcomeCounts, 0);
+        sampledNanos = 0;
+    }
+
+    /**
+     * Reorders the first len chars of buffer in place, returns the new length
+     * (which can only be smaller or equal to len).
+     *
+     * @param buffer the chars of the cluster
+     * @param len the length of the cluster
+     * @param cats scratch space of at least MAX_LEN chars
+     * @return the new length
+     */
+    public static final int reorder(final char[] buffer, final int len, final char[] cats) {
+        if (len < 2 || len > MAX_LEN)
+            return len;
         // if token doesn't start with a base, don't reorder
         if (charcat(buffer[0]) != CAT_BASE)
-            return true;
-        
-        final char[] cats = new char[len];
-        
+            return len;
+
+        // categorize, noting at the same time if the token is already sorted
+        // and which rewrite rules can apply
+        boolean sorted = true;
+        int nbZW = 0, nbCoeng = 0;
+        boolean hasE = false, hasU = false, hasRo = false, hasDa = false;
+        char prevcat = CAT_OTHER;
         for (int i = 0 ; i < len ; i++) {
-            char cat = charcat(buffer[i]);
+            final char c = buffer[i];
+            char cat = charcat(c);
             // Recategorise base → coeng after coeng char
-            if (i > 0 && cat == CAT_BASE && cats[i-1] == CAT_COENG)
+            if (cat == CAT_BASE && prevcat == CAT_COENG)
                 cat = CAT_COENG;
+            if (cat < prevcat)
+                sorted = false;
             cats[i] = cat;
+            prevcat = cat;
+            switch (c) {
+            case '\u200C':
+            case '\u200D':
+                nbZW += 1;
+                break;
+            case '\u17D2':
+                nbCoeng += 1;
+                break;
+            case '\u17C1':
+                hasE = true;
+                break;
+            case '\u17BB':
+                hasU = true;
+                break;
+            case '\u179A':
+                hasRo = true;
+                break;
+            case '\u178A':
+                hasDa = true;
+                break;
+            }
         }
-        
-        final Integer[] indexes = new Integer[len];
-        for (Integer i = 0 ; i < len ; i++) {
-            indexes[i] = i;
+
+        // fast path: nothing to do
+        if (sorted && nbZW < 2 && nbCoeng == 0 && !hasE && !hasU)
+            return len;
+
+        if (!sorted) {
+            // stable insertion sort on the categories, fast on such small arrays
+            for (int i = 1 ; i < len ; i++) {
+                final char cat = cats[i];
+                if (cat >= cats[i-1])
+                    continue;
+                final char c = buffer[i];
+                int j = i - 1;
+                while (j >= 0 && cats[j] > cat) {
+                    cats[j+1] = cats[j];
+                    buffer[j+1] = buffer[j];
+                    j--;
+                }
+                cats[j+1] = cat;
+                buffer[j+1] = c;
+            }
         }
-        Arrays.sort(indexes, (a, b) -> cats[a] - cats[b]);
-        
-        char[] reordered = new char[len];
-        for (int i = 0; i < len ; i++) {
-            reordered[i] = buffer[indexes[i]];
+
+        int newlen = len;
+        if (nbZW > 1)
+            newlen = removeRepetitions(buffer, newlen, true); // remove multiple ZW(N)J
+        if (nbCoeng > 1)
+            newlen = removeRepetitions(buffer, newlen, false); // remove multiple coeng (not in document)
+        if (hasE) { // compose split vowels
+            newlen = composeVowels(buffer, newlen, '\u17C1', '\u17B8', '\u17BE');
+            newlen = composeVowels(buffer, newlen, '\u17C1', '\u17B6', '\u17C4');
+            newlen = composeVowels(buffer, newlen, '\u17B8', '\u17C1', '\u17BE');
+            newlen = composeVowels(buffer, newlen, '\u17B6', '\u17C1', '\u17C4');
+        }
+        if (hasU) {
+            reorderU(buffer, newlen); // reorder u before VA
+            upshift(buffer, newlen, true); // Upshifting triisap
+            upshift(buffer, newlen, false); // Upshifting muusikatoan
+        }
+        if (nbCoeng > 1 && hasRo)
+            coengRoSecond(buffer, newlen); // coeng ro 2nd
+        if (nbCoeng > 0 && hasDa)
+            coengDaToTa(buffer, newlen); // coeng da → ta
+        return newlen;
+    }
+
+    // replaces sequences of ZW(N)J (or coengs) by their first char
+    static final int removeRepetitions(final char[] buffer, final int len, final boolean zw) {
+        int w = 0;
+        int r = 0;
+        while (r < len) {
+            final char c = buffer[r++];
+            buffer[w++] = c;
+            if (zw ? isZW(c) : c == '\u17D2') {
+                while (r < len && (zw ? isZW(buffer[r]) : buffer[r] == '\u17D2'))
+                    r++;
+            }
+        }
+        return w;
+    }
+
+    // first + (\u17BB?) + second → (\u17BB?) + composed
+    static final int composeVowels(final char[] buffer, final int len, final char first, final char second, final char composed) {
+        int w = 0;
+        int r = 0;
+        while (r < len) {
+            final char c = buffer[r];
+            if (c == first) {
+                if (r + 2 < len && buffer[r+1] == '\u17BB' && buffer[r+2] == second) {
+                    buffer[w++] = '\u17BB';
+                    buffer[w++] = composed;
+                    r += 3;
+                    continue;
+                }
+                if (r + 1 < len && buffer[r+1] == second) {
+                    buffer[w++] = composed;
+                    r += 2;
+                    continue;
+                }
+            }
+            buffer[w++] = c;
+            r++;
+        }
+        return w;
+    }
+
+    // VA + \u17BB → \u17BB + VA
+    static final void reorderU(final char[] buffer, final int len) {
+        int i = 0;
+        while (i < len - 1) {
+            final char c = buffer[i];
+            if (isVA(c) && buffer[i+1] == '\u17BB') {
+                buffer[i] = '\u17BB';
+                buffer[i+1] = c;
+                i += 2;
+            } else if (c == '\u17B6' && i + 2 < len && buffer[i+1] == '\u17C6' && buffer[i+2] == '\u17BB') {
+                buffer[i] = '\u17BB';
+                buffer[i+1] = '\u17B6';
+                buffer[i+2] = '\u17C6';
+                i += 3;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    // replaces \u17BB by triisap (or muusikatoan) when it follows the right consonants and
+    // precedes a VA
+    static final void upshift(final char[] buffer, final int len, final boolean triisap) {
+        for (int k = 1 ; k < len - 1 ; k++) {
+            if (buffer[k] != '\u17BB')
+                continue;
+            final char next = buffer[k+1];
+            if (!isVA(next) && !(next == '\u17B6' && k + 2 < len && buffer[k+2] == '\u17C6'))
+                continue;
+            if (upshiftContext(buffer, k, triisap))
+                buffer[k] = triisap ? '\u17CA' : '\u17C9';
+        }
+    }
+
+    static final boolean isShifter(final char c, final boolean triisap) {
+        return triisap ? isSF(c) : isSS(c);
+    }
+
+    // true if the chars before k end with one of:
+    // X, X+BNB, BNB+X, X+BNB+BNB, BNB+X+BNB, BNB+BNB+X
+    // where X is SF (triisap) or SS (muusikatoan), and the consonants are joined with coengs
+    static final boolean upshiftContext(final char[] buffer, final int k, final boolean triisap) {
+        if (isShifter(buffer[k-1], triisap))
+            return true;
+        if (k < 3 || buffer[k-2] != '\u17D2')
+            return false;
+        final char c2 = buffer[k-3];
+        final char c3 = buffer[k-1];
+        if (isShifter(c2, triisap) && isBNB(c3) || isBNB(c2) && isShifter(c3, triisap))
+            return true;
+        if (k < 5 || buffer[k-4] != '\u17D2')
+            return false;
+        // the other 5 chars alternatives end with one of the 3 chars ones
+        return isShifter(buffer[k-5], triisap) && isBNB(c2) && isBNB(c3);
+    }
+
+    // \u17D2\u179A + \u17D2X → \u17D2X + \u17D2\u179A
+    static final void coengRoSecond(final char[] buffer, final int len) {
+        int i = 0;
+        while (i + 3 < len) {
+            if (buffer[i] == '\u17D2' && buffer[i+1] == '\u179A' && buffer[i+2] == '\u17D2'
+                    && '\u1780' <= buffer[i+3] && buffer[i+3] <= '\u17B3') {
+                buffer[i+1] = buffer[i+3];
+                buffer[i+3] = '\u179A';
+                i += 4;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    static final void coengDaToTa(final char[] buffer, final int len) {
+        for (int i = 1 ; i < len ; i++) {
+            if (buffer[i] == '\u178A' && buffer[i-1] == '\u17D2')
+                buffer[i] = '\u178F';
         }
-        
-        String res = new String(reordered);
-        res = res.replaceAll("([\u200C\u200D])[\u200C\u200D]+", "$1"); // remove multiple ZW(N)J
-        res = res.replaceAll("\u17D2\u17D2+", "\u17D2"); // remove multiple coeng (not in document)
-        res = res.replaceAll("\u17C1(\u17BB?)\u17B8", "$1\u17BE"); // compose split vowels
-        res = res.replaceAll("\u17C1(\u17BB?)\u17B6", "$1\u17C4");
-        res = res.replaceAll("\u17B8(\u17BB?)\u17C1", "$1\u17BE");
-        res = res.replaceAll("\u17B6(\u17BB?)\u17C1", "$1\u17C4");
-        res = res.replaceAll("([\u17B7-\u17BA\u17BE\u17D0\u17DD]|\u17B6\u17C6)(\u17BB)", "$2$1"); // reorder u before VA
-        res = triisapP.matcher(res).replaceAll("$1\u17CA$2"); // Upshifting triisap
-        res = muusikatoanP.matcher(res).replaceAll("$1\u17C9$2"); // Upshifting muusikatoan
-        res = res.replaceAll("(\u17D2\u179A)(\u17D2[\u1780-\u17B3])", "$2$1"); // coeng ro 2nd
-        res = res.replaceAll("(\u17D2)\u178A", "$1\u178F"); // coeng da → ta
-
-        final int newlen = res.length();
-        if (newlen != len)
-            termAtt.setLength(newlen);
-        
-        // almost magical
-        res.getChars(0, newlen, buffer, 0);
-        
-        return true;
     }
 }
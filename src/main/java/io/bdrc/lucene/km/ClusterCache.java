@@ -0,0 +1,255 @@
+package io.bdrc.lucene.km;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the output of CharReorderFilter.reorder(), that can be shared
+ * by the CharReorderFilters of all the threads.
+ *
+ * Real texts only use a few thousand distinct clusters, so most of them are found in the
+ * cache after a while. The lookup is done directly on the term buffer. The cache is a
+ * 4-way set associative table of immutable entries: lookups don't take any lock and
+ * insertions are a compare-and-set, a full set evicts an entry that hasn't been used since
+ * the last eviction in the set (second chance). Concurrent misses on the same cluster can
+ * compute it twice, which is harmless.
+ */
+public final class ClusterCache {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    static final int WAYS = 4;
+
+    private static final class Entry {
+        final int hash;
+        final char[] key;
+        final char[] value;
+        // set on each hit, cleared when the entry is spared by an eviction. Races on it
+        // only make the eviction less accurate.
+        boolean referenced = false;
+
+        Entry(final int hash, final char[] key, final char[] value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int setMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ClusterCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Cache of at most capacity clusters (rounded up to a power of two).
+     */
+    public ClusterCache(final int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        int nbSets = 1;
+        while (nbSets * WAYS < capacity)
+            nbSets <<= 1;
+        this.table = new AtomicReferenceArray<>(nbSets * WAYS);
+        this.setMask = nbSets - 1;
+    }
+
+    static final int hash(final char[] buffer, final int len) {
+        int h = 0;
+        for (int i = 0 ; i < len ; i++)
+            h = 31 * h + buffer[i];
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static final boolean sameChars(final char[] key, final char[] buffer, final int len) {
+        if (key.length != len)
+            return false;
+        for (int i = 0 ; i < len ; i++) {
+            if (key[i] != buffer[i])
+                return false;
+        }
+        return true;
+    }
+
+    private final Entry lookup(final int hash, final char[] buffer, final int len) {
+        final int base = (hash & setMask) * WAYS;
+        for (int i = base ; i < base + WAYS ; i++) {
+            final Entry e = table.get(i);
+            if (e != null && e.hash == hash && sameChars(e.key, buffer, len))
+                return e;
+        }
+        return null;
+    }
+
+    // inserts e in its set, evicting another entry only if evict is true
+    private final boolean insert(final Entry e, final boolean evict) {
+        final int base = (e.hash & setMask) * WAYS;
+        for (int i = base ; i < base + WAYS ; i++) {
+            if (table.get(i) == null && table.compareAndSet(i, null, e))
+                return true;
+        }
+        if (!evict)
+            return false;
+        // second chance, the first entry of the set is evicted if they were all referenced
+        int victim = base;
+        for (int i = base ; i < base + WAYS ; i++) {
+            final Entry old = table.get(i);
+            if (old == null || !old.referenced) {
+                victim = i;
+                break;
+            }
+            old.referenced = false;
+        }
+        if (table.getAndSet(victim, e) != null)
+            evictions.increment();
+        return true;
+    }
+
+    /**
+     * Same as CharReorderFilter.reorder(), using the cache.
+     *
+     * @param buffer the chars of the cluster
+     * @param len the length of the cluster
+     * @param cats scratch space of at least CharReorderFilter.MAX_LEN chars
+     * @return the new length
+     */
+    public final int reorder(final char[] buffer, final int len, final char[] cats) {
+        // same early returns as reorder(), cheaper than a lookup
+        if (len < 2 || len > CharReorderFilter.MAX_LEN || CharReorderFilter.charcat(buffer[0]) != CharReorderFilter.CAT_BASE)
+            return len;
+        final int hash = hash(buffer, len);
+        final Entry e = lookup(hash, buffer, len);
+        if (e != null) {
+            hits.increment();
+            e.referenced = true;
+            System.arraycopy(e.value, 0, buffer, 0, e.value.length);
+            return e.value.length;
+        }
+        misses.increment();
+        final char[] key = Arrays.copyOf(buffer, len);
+        final int newlen = CharReorderFilter.reorder(buffer, len, cats);
+        final char[] value = sameChars(key, buffer, newlen) ? key : Arrays.copyOf(buffer, newlen);
+        insert(new Entry(hash, key, value), true);
+        return newlen;
+    }
+
+    /**
+     * Adds clusters to the cache, without evicting anything: the first clusters should be
+     * the most frequent ones. Returns the number of clusters added.
+     */
+    public int warmUp(final Iterable<String> clusters) {
+        final char[] buffer = new char[CharReorderFilter.MAX_LEN];
+        final char[] cats = new char[CharReorderFilter.MAX_LEN];
+        int res = 0;
+        for (final String cluster : clusters) {
+            final int len = cluster.length();
+            // the clusters that reorder() never looks up
+            if (len < 2 || len > CharReorderFilter.MAX_LEN || CharReorderFilter.charcat(cluster.charAt(0)) != CharReorderFilter.CAT_BASE)
+                continue;
+            cluster.getChars(0, len, buffer, 0);
+            final int hash = hash(buffer, len);
+            if (lookup(hash, buffer, len) != null)
+                continue;
+            final char[] key = Arrays.copyOf(buffer, len);
+            final int newlen = CharReorderFilter.reorder(buffer, len, cats);
+            final char[] value = sameChars(key, buffer, newlen) ? key : Arrays.copyOf(buffer, newlen);
+            if (insert(new Entry(hash, key, value), false))
+                res += 1;
+        }
+        return res;
+    }
+
+    /**
+     * Adds the clusters of a frequency list to the cache, most frequent first. The list has
+     * one cluster per line (as it appears in the normalized text), optionally followed by a
+     * tab and its frequency, lines without frequency are considered in their order after
+     * the others. Empty lines and lines starting with # are ignored.
+     */
+    public int warmUp(final Reader frequencyList) throws IOException {
+        final Map<String, Long> frequencies = new LinkedHashMap<>();
+        final BufferedReader br = frequencyList instanceof BufferedReader ? (BufferedReader) frequencyList : new BufferedReader(frequencyList);
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.trim().isEmpty() || line.startsWith("#"))
+                continue;
+            final int tabIdx = line.indexOf('\t');
+            long frequency = -1;
+            if (tabIdx != -1) {
+                try {
+                    frequency = Long.parseLong(line.substring(tabIdx + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid frequency in cluster list line: " + line, e);
+                }
+                line = line.substring(0, tabIdx);
+            }
+            frequencies.merge(line.trim(), frequency, (a, b) -> a < 0 || b < 0 ? Math.max(a, b) : a + b);
+        }
+        final List<Map.Entry<String, Long>> entries = new ArrayList<>(frequencies.entrySet());
+        // stable sort, keeps the order of the lines without frequency
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        final List<String> clusters = new ArrayList<>(entries.size());
+        for (final Map.Entry<String, Long> e : entries)
+            clusters.add(e.getKey());
+        return warmUp(clusters);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRatio() {
+        final long h = hits.sum();
+        final long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public void resetCounters() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    public int capacity() {
+        return table.length();
+    }
+
+    /**
+     * Number of clusters in the cache (not a constant time operation).
+     */
+    public int size() {
+        int res = 0;
+        for (int i = 0 ; i < table.length() ; i++) {
+            if (table.get(i) != null)
+                res += 1;
+        }
+        return res;
+    }
+
+    public void clear() {
+        for (int i = 0 ; i < table.length() ; i++)
+            table.set(i, null);
+    }
+
+}
@@ -0,0 +1,49 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+/**
+ * Replaces each term by its id in a ClusterIdTable (2 chars), or by the term escaped if it
+ * is not in the table. It must be at the end of the chain, after CharReorderFilter, and the
+ * queries must be analyzed with the same table.
+ */
+public final class ClusterIdFilter extends TokenFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final ClusterIdTable table;
+
+    // the table of version 1, as in KhmerClusterIdAnalyzer
+    public ClusterIdFilter(final TokenStream input) {
+        this(input, ClusterIdTable.get(1));
+    }
+
+    public ClusterIdFilter(final TokenStream input, final ClusterIdTable table) {
+        super(input);
+        this.table = table;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (!input.incrementToken())
+            return false;
+        final int len = termAtt.length();
+        final int id = table.id(termAtt.buffer(), 0, len);
+        if (id != -1) {
+            final char[] buffer = termAtt.buffer();
+            buffer[0] = (char) (id >> 7);
+            buffer[1] = (char) (id & 0x7F);
+            termAtt.setLength(2);
+        } else {
+            final char[] buffer = termAtt.resizeBuffer(len + 1);
+            System.arraycopy(buffer, 0, buffer, 1, len);
+            buffer[0] = ClusterIdTable.ESCAPE;
+            termAtt.setLength(len + 1);
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,248 @@
+package io.bdrc.lucene.km;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Versioned static table of canonical clusters (as output by CharReorderFilter) with dense
+ * ids, used by ClusterIdFilter to index the clusters as fixed-width terms.
+ *
+ * An id is encoded in 2 chars below U+0080 (so 2 bytes in the terms dictionary instead of
+ * 3 bytes per Khmer char), the first one being at most U+007E. The terms that are not in
+ * the table (unknown clusters, numbers, words of a lexicon, etc.) are escaped with U+007F
+ * followed by the original term, so that they can't be confused with an id.
+ *
+ * The table of version 1 was generated from the structure of the clusters: bases and Khmer
+ * digits, consonant + vowel, consonant + sign, consonant + vowel + nikahit or reahmuk,
+ * consonant + shifter (+ vowel), consonant + subscript, and consonant + one of the 20 most
+ * common subscripts + vowel, each candidate being reordered so that only the canonical
+ * forms are kept. It is frozen in the resource cluster-ids-v1.txt (one cluster per line)
+ * so that a change of the code can't change the ids of an existing index. Later versions
+ * can only append clusters to the table, the index and the queries must use the same
+ * version (a cluster appended in a later version is escaped in an index written with an
+ * earlier one). Version 1 already uses 15,707 of the MAX_SIZE (16,256) ids, so the later
+ * versions can only append 549 clusters in total.
+ */
+public final class ClusterIdTable {
+
+    public static final int LATEST_VERSION = 1;
+    public static final char ESCAPE = '\u007F';
+    // 127 * 128 ids, the first char of an id can't be ESCAPE
+    public static final int MAX_SIZE = ESCAPE * 128;
+
+    private final int version;
+    private final String[] clusters;
+    private final CharArrayMap<Integer> ids;
+
+    ClusterIdTable(final int version, final List<String> clusters) {
+        if (clusters.size() > MAX_SIZE)
+            throw new IllegalArgumentException("a table can't have more than " + MAX_SIZE + " clusters");
+        this.version = version;
+        this.clusters = clusters.toArray(new String[0]);
+        this.ids = new CharArrayMap<>(this.clusters.length, false);
+        for (int i = 0 ; i < this.clusters.length ; i++)
+            this.ids.put(this.clusters[i], Integer.valueOf(i));
+    }
+
+    static final String resourceName(final int version) {
+        return "cluster-ids-v" + version + ".txt";
+    }
+
+    // one cluster per line, the lines starting with # are comments
+    static List<String> readClusters(final InputStream stream) throws IOException {
+        final List<String> res = new ArrayList<>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("#"))
+                    res.add(line);
+            }
+        }
+        return res;
+    }
+
+    static ClusterIdTable load(final int version) {
+        final InputStream stream = ClusterIdTable.class.getResourceAsStream(resourceName(version));
+        try {
+            if (stream == null)
+                throw new FileNotFoundException(resourceName(version));
+            return new ClusterIdTable(version, readClusters(stream));
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't read the cluster table " + resourceName(version), e);
+        }
+    }
+
+    // lazy initialization by the class loader, the table is loaded on first use
+    private static final class Version1 {
+        static final ClusterIdTable TABLE = load(1);
+    }
+
+    /**
+     * Returns the table of a version, IllegalArgumentException if the version is unknown.
+     */
+    public static ClusterIdTable get(final int version) {
+        if (version != 1)
+            throw new IllegalArgumentException("unknown cluster table version: " + version);
+        return Version1.TABLE;
+    }
+
+    public static ClusterIdTable latest() {
+        return get(LATEST_VERSION);
+    }
+
+    // the 20 most common subscripts, combined with the vowels: រតនមយវលកចសបពណញងអទធខហ
+    static final String COMMON_SUBSCRIPTS = "\u179A\u178F\u1793\u1798\u1799\u179C\u179B\u1780\u1785\u179F\u1794\u1796\u178E\u1789\u1784\u17A2\u1791\u1792\u1781\u17A0";
+    // ំះៈ់៌៍៎៏័៑៝
+    static final String SIGNS = "\u17C6\u17C7\u17C8\u17CB\u17CC\u17CD\u17CE\u17CF\u17D0\u17D1\u17DD";
+
+    // the generation of the table of version 1, only used to write its resource
+    static List<String> version1Clusters() {
+        final Set<String> res = new LinkedHashSet<>();
+        final char[] buffer = new char[8];
+        final char[] cats = new char[CharReorderFilter.MAX_LEN];
+        // bases and digits
+        for (char c = '\u1780' ; c <= '\u17B3' ; c++)
+            addCanonical(res, buffer, cats, c);
+        for (char c = '\u17E0' ; c <= '\u17E9' ; c++)
+            addCanonical(res, buffer, cats, c);
+        for (char c = '\u1780' ; c <= '\u17A2' ; c++) {
+            for (char v = '\u17B6' ; v <= '\u17C5' ; v++)
+                addCanonical(res, buffer, cats, c, v);
+        }
+        for (char c = '\u1780' ; c <= '\u17A2' ; c++) {
+            for (int i = 0 ; i < SIGNS.length() ; i++)
+                addCanonical(res, buffer, cats, c, SIGNS.charAt(i));
+        }
+        for (char c = '\u1780' ; c <= '\u17A2' ; c++) {
+            for (char v = '\u17B6' ; v <= '\u17C5' ; v++) {
+                addCanonical(res, buffer, cats, c, v, '\u17C6');
+                addCanonical(res, buffer, cats, c, v, '\u17C7');
+            }
+        }
+        for (char c = '\u1780' ; c <= '\u17A2' ; c++) {
+            for (char shifter = '\u17C9' ; shifter <= '\u17CA' ; shifter++) {
+                addCanonical(res, buffer, cats, c, shifter);
+                for (char v = '\u17B6' ; v <= '\u17C5' ; v++)
+                    addCanonical(res, buffer, cats, c, shifter, v);
+            }
+        }
+        for (char c = '\u1780' ; c <= '\u17A2' ; c++) {
+            for (char sub = '\u1780' ; sub <= '\u17A2' ; sub++)
+                addCanonical(res, buffer, cats, c, '\u17D2', sub);
+        }
+        for (char c = '\u1780' ; c <= '\u17A2' ; c++) {
+            for (int i = 0 ; i < COMMON_SUBSCRIPTS.length() ; i++) {
+                for (char v = '\u17B6' ; v <= '\u17C5' ; v++)
+                    addCanonical(res, buffer, cats, c, '\u17D2', COMMON_SUBSCRIPTS.charAt(i), v);
+            }
+        }
+        return new ArrayList<>(res);
+    }
+
+    private static void addCanonical(final Set<String> res, final char[] buffer, final char[] cats, final char... chars) {
+        System.arraycopy(chars, 0, buffer, 0, chars.length);
+        res.add(new String(buffer, 0, CharReorderFilter.reorder(buffer, chars.length, cats)));
+    }
+
+    /**
+     * Writes the resource of the table of version 1 in the directory given as argument.
+     * This was done once: the resource of a published version must never change.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: ClusterIdTable <output directory>");
+            System.exit(1);
+        }
+        final Path dir = Paths.get(args[0]);
+        Files.createDirectories(dir);
+        try (final BufferedWriter writer = Files.newBufferedWriter(dir.resolve(resourceName(1)), StandardCharsets.UTF_8)) {
+            writer.write("# clusters of the ClusterIdTable of version 1, the id of a cluster is its line number\n");
+            writer.write("# (not counting the comments) starting from 0. This file must never change.\n");
+            for (final String cluster : version1Clusters()) {
+                writer.write(cluster);
+                writer.write('\n');
+            }
+        }
+    }
+
+    public int version() {
+        return version;
+    }
+
+    public int size() {
+        return clusters.length;
+    }
+
+    /**
+     * Returns the id of the cluster in buffer[offset, offset+len), -1 if it is not in the
+     * table.
+     */
+    public int id(final char[] buffer, final int offset, final int len) {
+        final Integer res = ids.get(buffer, offset, len);
+        return res == null ? -1 : res.intValue();
+    }
+
+    /**
+     * Returns the cluster of an id.
+     */
+    public String cluster(final int id) {
+        return clusters[id];
+    }
+
+    static boolean isId(final CharSequence term) {
+        return term.length() == 2 && term.charAt(0) < ESCAPE && term.charAt(1) <= ESCAPE;
+    }
+
+    /**
+     * Returns the indexed form of a term (a cluster or any other token), as ClusterIdFilter
+     * does, to build queries by hand.
+     */
+    public String encode(final String term) {
+        final int id = id(term.toCharArray(), 0, term.length());
+        if (id != -1)
+            return new String(new char[] {(char) (id >> 7), (char) (id & 0x7F)});
+        return ESCAPE + term;
+    }
+
+    /**
+     * Returns the original term of an indexed term, for instance to display the terms of a
+     * term vector or of a TermsEnum. The highlighters don't need it as they use the offsets
+     * of the tokens in the original text.
+     */
+    public String decode(final CharSequence term) {
+        if (isId(term)) {
+            final int id = (term.charAt(0) << 7) | term.charAt(1);
+            if (id >= clusters.length)
+                throw new IllegalArgumentException("id " + id + " is not in the table of version " + version);
+            return clusters[id];
+        }
+        if (term.length() > 0 && term.charAt(0) == ESCAPE)
+            return term.subSequence(1, term.length()).toString();
+        // not encoded
+        return term.toString();
+    }
+
+    public String decode(final BytesRef term) {
+        // the ids are 2 bytes, the rest is UTF-8
+        if (term.length == 2 && term.bytes[term.offset] >= 0 && term.bytes[term.offset] < ESCAPE && term.bytes[term.offset + 1] >= 0)
+            return decode(new String(term.bytes, term.offset, 2, StandardCharsets.US_ASCII));
+        return decode(term.utf8ToString());
+    }
+
+}
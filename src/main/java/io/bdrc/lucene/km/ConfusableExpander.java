@@ -0,0 +1,237 @@
+package io.bdrc.lucene.km;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Expands a term of a field indexed with normalization level 1 into the level 1 terms that
+ * are confusable with it, that is that have the same form at level 3. This allows loose
+ * queries on a level 1 index instead of indexing the text at level 3 too.
+ *
+ * The expansions are generated by applying the level 2 and 3 rules backwards (replacement
+ * to source), starting from the term and its level 3 form, normalizing each candidate to
+ * level 1 and reordering its clusters as the analyzer does, and keeping the candidates with
+ * the same level 3 form as the term. Rules crossing cluster boundaries are not taken into
+ * account (for instance ":" → "ៈ", as ":" is not part of any token).
+ *
+ * The work for a term is bounded: at most maxCandidates strings are generated and at most
+ * maxExpansions terms are returned (the term itself first), terms longer than
+ * MAX_TERM_LENGTH are not expanded. The expansions of at most cacheSize terms are cached:
+ * as in AnalysisCache, the cache is split in segments by hash of the term, each segment
+ * being an LRU map with its share of cacheSize that evicts its least recently used term
+ * when it is full.
+ */
+public final class ConfusableExpander {
+
+    public static final int DEFAULT_MAX_EXPANSIONS = 32;
+    public static final int DEFAULT_MAX_CANDIDATES = 512;
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    // longer terms are not expanded
+    public static final int MAX_TERM_LENGTH = 64;
+    static final int NB_SEGMENTS = 16;
+
+    // the level 2 and 3 rules backwards: INVERSE_SOURCES[i] can be replaced by any of INVERSE_TARGETS[i]
+    static final String[] INVERSE_SOURCES;
+    static final String[][] INVERSE_TARGETS;
+    static {
+        final List<String> sources = new ArrayList<>();
+        final List<List<String>> targets = new ArrayList<>();
+        final List<String[]> rules = new ArrayList<>();
+        for (final String[] rule : NormalizationRules.LEVEL2)
+            rules.add(rule);
+        for (final String[] rule : NormalizationRules.LEVEL3)
+            rules.add(rule);
+        for (final String[] rule : rules) {
+            // the replacement is what we find in the term, the source what we generate
+            if (rule[1].isEmpty() || !isTokenChars(rule[0]))
+                continue;
+            int idx = sources.indexOf(rule[1]);
+            if (idx == -1) {
+                idx = sources.size();
+                sources.add(rule[1]);
+                targets.add(new ArrayList<>());
+            }
+            targets.get(idx).add(rule[0]);
+        }
+        INVERSE_SOURCES = sources.toArray(new String[0]);
+        INVERSE_TARGETS = new String[sources.size()][];
+        for (int i = 0 ; i < INVERSE_TARGETS.length ; i++)
+            INVERSE_TARGETS[i] = targets.get(i).toArray(new String[0]);
+    }
+
+    private final int maxExpansions;
+    private final int maxCandidates;
+    // an LRU map, accessed under its lock
+    private static final class Segment extends LinkedHashMap<String, String[]> {
+        private static final long serialVersionUID = 1L;
+
+        final int maxSize;
+
+        Segment(final int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String[]> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    // empty if cacheSize is 0, a single segment if it is smaller than NB_SEGMENTS
+    private final Segment[] segments;
+
+    public ConfusableExpander() {
+        this(DEFAULT_MAX_EXPANSIONS, DEFAULT_MAX_CANDIDATES, DEFAULT_CACHE_SIZE);
+    }
+
+    public ConfusableExpander(final int maxExpansions, final int maxCandidates, final int cacheSize) {
+        if (maxExpansions < 1 || maxCandidates < 1)
+            throw new IllegalArgumentException("maxExpansions and maxCandidates must be positive");
+        this.maxExpansions = maxExpansions;
+        this.maxCandidates = maxCandidates;
+        if (cacheSize < 0)
+            throw new IllegalArgumentException("cacheSize can't be negative: " + cacheSize);
+        final int nbSegments = cacheSize == 0 ? 0 : cacheSize < NB_SEGMENTS ? 1 : NB_SEGMENTS;
+        this.segments = new Segment[nbSegments];
+        for (int i = 0 ; i < nbSegments ; i++)
+            segments[i] = new Segment(cacheSize / nbSegments);
+    }
+
+    // true if all the chars of s can be part of a token of GraphemeClusterTokenizer
+    static boolean isTokenChars(final String s) {
+        for (int i = 0 ; i < s.length() ; i++) {
+            if (GraphemeClusterTokenizer.category(s.charAt(i)) == GraphemeClusterTokenizer.CHCAT_IGNORE)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the level 1 terms confusable with term (a level 1 term), starting with term.
+     */
+    public String[] expand(final String term) {
+        if (segments.length == 0)
+            return computeExpansions(term);
+        final int h = term.hashCode() * 0x9E3779B9;
+        final Segment segment = segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+        synchronized (segment) {
+            final String[] cached = segment.get(term);
+            if (cached != null)
+                return cached;
+        }
+        // computed outside of the lock, concurrent misses on the same term can compute
+        // it twice, which is harmless
+        final String[] res = computeExpansions(term);
+        synchronized (segment) {
+            segment.put(term, res);
+        }
+        return res;
+    }
+
+    /**
+     * Number of terms in the cache.
+     */
+    public int cacheSize() {
+        int res = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                res += segment.size();
+            }
+        }
+        return res;
+    }
+
+    String[] computeExpansions(final String term) {
+        if (term.length() > MAX_TERM_LENGTH || !isTokenChars(term))
+            return new String[] {term};
+        final String key = levelForm(term, 3);
+        final Set<String> res = new LinkedHashSet<>();
+        res.add(term);
+        // breadth first generation of the candidates, each one is checked when generated and
+        // only the confusable ones are expanded further (some rules can be applied backwards
+        // indefinitely, for instance ញ → ពា្ញ)
+        final Set<String> seen = new HashSet<>();
+        final ArrayDeque<String> queue = new ArrayDeque<>();
+        seen.add(term);
+        queue.add(term);
+        if (seen.add(key) && addIfConfusable(key, key, res))
+            queue.add(key);
+        while (!queue.isEmpty() && seen.size() < maxCandidates && res.size() < maxExpansions) {
+            final String s = queue.poll();
+            for (int i = 0 ; i < INVERSE_SOURCES.length ; i++) {
+                final String from = INVERSE_SOURCES[i];
+                for (int idx = s.indexOf(from) ; idx != -1 ; idx = s.indexOf(from, idx + 1)) {
+                    for (final String to : INVERSE_TARGETS[i]) {
+                        final String candidate = s.substring(0, idx) + to + s.substring(idx + from.length());
+                        if (seen.add(candidate) && addIfConfusable(candidate, key, res))
+                            queue.add(candidate);
+                        if (seen.size() >= maxCandidates || res.size() >= maxExpansions)
+                            return res.toArray(new String[0]);
+                    }
+                }
+            }
+        }
+        return res.toArray(new String[0]);
+    }
+
+    // adds the level 1 form of candidate to res if it has the level 3 form key
+    static boolean addIfConfusable(final String candidate, final String key, final Set<String> res) {
+        final String level1 = levelForm(candidate, 1);
+        if (!levelForm(level1, 3).equals(key))
+            return false;
+        res.add(level1);
+        return true;
+    }
+
+    /**
+     * Returns s (made of the chars of one or more tokens) normalized at level (1 to 3)
+     * and with its clusters reordered, as KhmerAnalyzer would index it.
+     */
+    static String levelForm(final String s, final int level) {
+        final NormalizationRules rules = NormalizationRules.get(level);
+        final char[] in = s.toCharArray();
+        final char[] out = new char[Math.max(1, in.length * rules.getMaxReplacementLength())];
+        final int len = rules.normalize(in, in.length, out);
+        return new String(out, 0, reorderClusters(out, len));
+    }
+
+    // reorders each cluster of buffer in place, as GraphemeClusterTokenizer and
+    // CharReorderFilter do, returns the new length
+    static int reorderClusters(final char[] buffer, final int len) {
+        for (int i = 0 ; i < len ; i++) {
+            // not made of tokens, leave it as it is
+            if (GraphemeClusterTokenizer.category(buffer[i]) == GraphemeClusterTokenizer.CHCAT_IGNORE)
+                return len;
+        }
+        final char[] cluster = new char[len];
+        final char[] cats = new char[CharReorderFilter.MAX_LEN];
+        int w = 0;
+        int start = 0;
+        int state = GraphemeClusterTokenizer.ST_INIT;
+        for (int i = 0 ; i <= len ; i++) {
+            final int charcat = i < len ? GraphemeClusterTokenizer.category(buffer[i]) : 0;
+            int tr = i < len ? GraphemeClusterTokenizer.transition(state, charcat) : GraphemeClusterTokenizer.TR_BREAK;
+            if ((tr & GraphemeClusterTokenizer.TR_BREAK) != 0 && i > start) {
+                final int clusterLen = i - start;
+                System.arraycopy(buffer, start, cluster, 0, clusterLen);
+                final int newLen = CharReorderFilter.reorder(cluster, clusterLen, cats);
+                System.arraycopy(cluster, 0, buffer, w, newLen);
+                w += newLen;
+                start = i;
+                // like the tokenizer, the next cluster starts from the initial state
+                if (i < len)
+                    tr = GraphemeClusterTokenizer.transition(GraphemeClusterTokenizer.ST_INIT, charcat);
+            }
+            state = tr & GraphemeClusterTokenizer.TR_STATE_MASK;
+        }
+        return w;
+    }
+
+}
@@ -12,6 +12,7 @@ import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
  * Tokenizes a string in Khmer grapheme clusters (not phonetic syllables), for instance:
  * "ខ្ញុំចង់ធ្វើការ" will be tokenized as "ខ្ញុំ", "ច", "ង់", "ធ្វើ", "កា", "រ", not "ខ្ញុំ", "ចង់", "ធ្វើ", "ការ". It uses a simple state machine to do so.
  * 
+ * KhmerSyllableFilter groups the clusters in orthographic syllables (after CharReorderFilter).
  */
 
 public class GraphemeClusterTokenizer  extends Tokenizer {
@@ -19,18 +20,43 @@ public class GraphemeClusterTokenizer  extends Tokenizer {
     
     private int offset = 0, bufferIndex = 0, dataLen = 0, finalOffset = 0;
     public static final int DEFAULT_MAX_WORD_LEN = 255;
-    private static final int IO_BUFFER_SIZE = 4096;
+    public static final int DEFAULT_IO_BUFFER_SIZE = 4096;
     private final int maxTokenLen = 255;
 
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
     private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
 
-    private final CharacterBuffer ioBuffer = CharacterUtils.newCharacterBuffer(IO_BUFFER_SIZE);
+    private final CharacterBuffer ioBuffer;
+    // optional, with the counts of the current stream
+    private final AnalysisMetrics metrics;
+    // metrics if they were enabled when the stream was reset, null otherwise
+    private AnalysisMetrics active = null;
+    private long nbChars = 0, nbTokens = 0, sampledNanos = 0, fillNanos = 0;
+    private int nbCalls = 0;
     
     /**
      * Construct a new TibSyllableTokenizer.
      */
     public GraphemeClusterTokenizer() {
+        this(DEFAULT_IO_BUFFER_SIZE);
+    }
+    
+    /**
+     * Tokenizer reading its input ioBufferSize chars at a time (at least 2). Larger buffers
+     * mean less read() calls, which helps with readers decoding directly in the buffer
+     * such as MappedUtf8Reader.
+     */
+    public GraphemeClusterTokenizer(final int ioBufferSize) {
+        this(ioBufferSize, null);
+    }
+
+    /**
+     * Tokenizer counting the chars read, the tokens output and the time spent (not
+     * including the time spent reading the input) in metrics.
+     */
+    public GraphemeClusterTokenizer(final int ioBufferSize, final AnalysisMetrics metrics) {
+        this.ioBuffer = CharacterUtils.newCharacterBuffer(ioBufferSize);
+        this.metrics = metrics;
     }
 
     // states
@@ -46,26 +72,169 @@ public class GraphemeClusterTokenizer  extends Tokenizer {
     public final static int CHCAT_DIGIT = 4; // digit
     public final static int CHCAT_IGNORE = 5; // ignore (punctuation and the rest)
     
+    // categories of the Khmer block (U+1780 to U+17FF)
+    private static final byte[] khmerCategories = new byte[0x80];
+    static {
+        for (int c = '\u1780' ; c <= '\u17FF' ; c++) {
+            final int cat;
+            if ('\u17E0' <= c && c <= '\u17F9') cat = CHCAT_DIGIT;
+            else if (c <= '\u17B3') cat = CHCAT_BASE;
+            else if (c == '\u17D2') cat = CHCAT_COENG;
+            else if (('\u17B6' <= c && c <= '\u17D3') || c == '\u17DD') cat = CHCAT_INSIDE;
+            else cat = CHCAT_IGNORE;
+            khmerCategories[c - '\u1780'] = (byte) cat;
+        }
+    }
+    
     public static final int category(int c) {
-        if (('\u17E0' <= c && c <= '\u17F9') || ('0' <= c && c <= '9')) return CHCAT_DIGIT;
-        if ('\u1780' <= c && c <= '\u17B3') return CHCAT_BASE;
-        if (c == '\u17D2') return CHCAT_COENG;
-        if (('\u17B6' <= c && c <= '\u17D3') || c == '\u17DD' || c == '\u200C' || c == '\u200D') return CHCAT_INSIDE;
+        final int i = c - '\u1780';
+        if (i >= 0 && i < 0x80) return khmerCategories[i];
+        if ('0' <= c && c <= '9') return CHCAT_DIGIT;
+        if (c == '\u200C' || c == '\u200D') return CHCAT_INSIDE;
         return CHCAT_IGNORE;
     }
     
+    /*
+     * The state machine, as (state × category) → (next state, break before the char):
+     * 
+     * afterother+other=nocut,other
+     * afterother+base=cut,inside
+     * afterother+digit=cut,afterdigit
+     * afterother+coeng=nocut,other
+     * 
+     * inside+coeng=nocut,aftercoeng
+     * inside+other=cut,other
+     * inside+base=cut,inside
+     * inside+digit=cut,afterdigit
+     * inside+inside=nocut,inside
+     * 
+     * aftercoeng+base=nocut,inside
+     * aftercoeng+digit=cut,afterdigit
+     * aftercoeng+other=cut,other
+     * aftercoeng+inside=nocut,inside
+     * aftercoeng+coeng=nocut,inside
+     * 
+     * afterdigit+digit=nocut,afterdigit
+     * afterdigit+base=cut,inside
+     * afterdigit+other=cut,other
+     * afterdigit+inside=cut,inside(error?)
+     * afterdigit+coeng=cut,other(error?)
+     * 
+     * When there is a cut the next state doesn't matter since the next token
+     * starts again from ST_INIT.
+     */
+    static final int TR_BREAK = 0x10;
+    static final int TR_STATE_MASK = 0x0F;
+    static final byte[] transitions = new byte[(ST_INIT + 1) << 3];
+    static {
+        setTransition(ST_INIT, CHCAT_BASE, ST_INSIDESYL, true);
+        setTransition(ST_INIT, CHCAT_DIGIT, ST_AFTERDIGIT, true);
+        setTransition(ST_INIT, CHCAT_INSIDE, ST_INIT, false);
+        setTransition(ST_INIT, CHCAT_COENG, ST_INIT, false);
+        
+        setTransition(ST_INSIDESYL, CHCAT_COENG, ST_AFTERCOENG, false);
+        setTransition(ST_INSIDESYL, CHCAT_INSIDE, ST_INSIDESYL, false);
+        setTransition(ST_INSIDESYL, CHCAT_BASE, ST_INSIDESYL, true);
+        setTransition(ST_INSIDESYL, CHCAT_DIGIT, ST_AFTERDIGIT, true);
+        
+        setTransition(ST_AFTERCOENG, CHCAT_BASE, ST_INSIDESYL, false);
+        setTransition(ST_AFTERCOENG, CHCAT_INSIDE, ST_INSIDESYL, false);
+        setTransition(ST_AFTERCOENG, CHCAT_COENG, ST_AFTERCOENG, false);
+        setTransition(ST_AFTERCOENG, CHCAT_DIGIT, ST_AFTERDIGIT, true);
+        
+        setTransition(ST_AFTERDIGIT, CHCAT_DIGIT, ST_AFTERDIGIT, false);
+        setTransition(ST_AFTERDIGIT, CHCAT_BASE, ST_INSIDESYL, true);
+        setTransition(ST_AFTERDIGIT, CHCAT_INSIDE, ST_INSIDESYL, true);
+        setTransition(ST_AFTERDIGIT, CHCAT_COENG, ST_INIT, true);
+    }
+    
+    private static void setTransition(final int state, final int charcat, final int next, final boolean breakB) {
+        transitions[(state << 3) | charcat] = (byte) (next | (breakB ? TR_BREAK : 0));
+    }
+    
+    /**
+     * Returns the transition of the state machine from state on a char of category
+     * charcat (which must not be CHCAT_IGNORE), the next state is
+     * (res & TR_STATE_MASK) and a token must end before the char if
+     * (res & TR_BREAK) != 0.
+     */
+    static final int transition(final int state, final int charcat) {
+        return transitions[(state << 3) | charcat];
+    }
+    
+    // true if c can be part of a token (Khmer block, digit, ZWNJ or ZWJ), it can still be
+    // CHCAT_IGNORE for the punctuation of the Khmer block
+    private static boolean maybeTokenChar(final char c) {
+        return (char) (c - '\u1780') < 0x80 | (char) (c - '0') < 10 | (char) (c - '\u200C') < 2;
+    }
+    
+    // cheaper test, true for all the chars for which maybeTokenChar() is true
+    private static boolean maybeTokenCharLoose(final char c) {
+        return (char) (c - '0') < 10 | c >= '\u1780';
+    }
+    
+    /**
+     * Returns the index of the first char of chars[from, limit) that may be part of a token
+     * (see maybeTokenChar()), or limit. The chars are first tested 4 at a time, without branching on each char and
+     * with a test that only needs 2 comparisons, which is much faster than category() on
+     * text without Khmer (Latin metadata, markup, etc.).
+     */
+    static final int skipIgnored(final char[] chars, int from, final int limit) {
+        while (true) {
+            while (from <= limit - 4) {
+                if (maybeTokenCharLoose(chars[from]) | maybeTokenCharLoose(chars[from + 1])
+                        | maybeTokenCharLoose(chars[from + 2]) | maybeTokenCharLoose(chars[from + 3]))
+                    break;
+                from += 4;
+            }
+            // at most 4 chars to test before going back to the blocks
+            final int end = Math.min(limit, from + 4);
+            while (from < end) {
+                if (maybeTokenChar(chars[from]))
+                    return from;
+                from += 1;
+            }
+            if (from == limit)
+                return limit;
+        }
+    }
+    
     @Override
     public final boolean incrementToken() throws IOException {
+      if (active == null)
+        return nextToken();
+      final boolean res;
+      if ((++nbCalls & AnalysisMetrics.SAMPLING_MASK) == 0) {
+        final long fillBefore = fillNanos;
+        final long start = System.nanoTime();
+        res = nextToken();
+        sampledNanos += System.nanoTime() - start - (fillNanos - fillBefore);
+      } else {
+        res = nextToken();
+      }
+      if (res)
+        nbTokens += 1;
+      return res;
+    }
+
+    private boolean nextToken() throws IOException {
       clearAttributes();
       int length = 0;
       int start = -1; // this variable is always initialized
       int end = -1;
       char[] buffer = termAtt.buffer();
       int state = ST_INIT;
+      scan:
       while (true) {
         if (bufferIndex >= dataLen) {
           offset += dataLen;
-          CharacterUtils.fill(ioBuffer, input); // read supplementary char aware with CharacterUtils
+          if (active == null) {
+            CharacterUtils.fill(ioBuffer, input); // read supplementary char aware with CharacterUtils
+          } else {
+            final long fillStart = System.nanoTime();
+            CharacterUtils.fill(ioBuffer, input);
+            fillNanos += System.nanoTime() - fillStart;
+          }
           if (ioBuffer.getLength() == 0) {
             dataLen = 0; // so next offset += dataLen won't decrement offset
             if (length > 0) {
@@ -77,110 +246,51 @@ public class GraphemeClusterTokenizer  extends Tokenizer {
           }
           dataLen = ioBuffer.getLength();
           bufferIndex = 0;
+          nbChars += dataLen;
         }
-        // use CharacterUtils here to support < 3.1 UTF-16 code unit behavior if the char based
-        // methods are gone
-        final int c = Character.codePointAt(ioBuffer.getBuffer(), bufferIndex, ioBuffer.getLength());
-        final int charCount = Character.charCount(c);
-        bufferIndex += charCount;
-        
-        final int charcat = category(c);
-        
-        if (charcat == CHCAT_IGNORE) {
-            if (length > 0)
-                break;
-            else
-                continue;
-        }
-        
-        //System.out.println(String.format("char %x , charcat %d, state %d", c, charcat, state));
-        
-        // break before the next character
-        boolean breakB = false;
-        
-        /*
-         * afterother+other=nocut,other
-         * afterother+base=cut,inside
-         * afterother+digit=cut,afterdigit
-         * afterother+coeng=nocut,other
-         * 
-         * inside+coeng=nocut,aftercoeng
-         * inside+other=cut,other
-         * inside+base=cut,inside
-         * inside+digit=cut,afterdigit
-         * inside+inside=nocut,inside
-         * 
-         * aftercoeng+base=nocut,inside
-         * aftercoeng+digit=cut,afterdigit
-         * aftercoeng+other=cut,other
-         * aftercoeng+inside=nocut,inside
-         * aftercoeng+coeng=nocut,inside
-         * 
-         * afterdigit+digit=nocut,afterdigit
-         * afterdigit+base=cut,inside
-         * afterdigit+other=cut,other
-         * afterdigit+inside=cut,inside(error?)
-         * afterdigit+coeng=cut,other(error?)
-         */
-        
-        switch (state) {
-        case ST_INIT:
-            if (charcat == CHCAT_BASE) {
-                breakB = true;
-                state = ST_INSIDESYL;
-            } else if (charcat == CHCAT_DIGIT) {
-                breakB = true;
-                state = ST_AFTERDIGIT;
+        // Scan the chars of the buffer directly: only BMP chars can be part of
+        // a token, surrogates are all in CHCAT_IGNORE and can be treated one
+        // char at a time.
+        final char[] ioChars = ioBuffer.getBuffer();
+        final int limit = dataLen;
+        int i = bufferIndex;
+        while (i < limit) {
+          final char c = ioChars[i];
+          final int charcat = category(c);
+          if (charcat == CHCAT_IGNORE) {
+            i += 1;
+            if (length > 0) {
+              bufferIndex = i;
+              break scan;
             }
-            break;
-        case ST_INSIDESYL:
-            if (charcat == CHCAT_COENG)
-                state = ST_AFTERCOENG;
-            else if (charcat != CHCAT_INSIDE)
-                breakB = true;
-            break;
-        case ST_AFTERCOENG:
-            if (charcat == CHCAT_DIGIT)
-                breakB = true;
-            else if (charcat != CHCAT_COENG)
-                state = ST_INSIDESYL;
-            break;
-        case ST_AFTERDIGIT:
-            if (charcat != CHCAT_DIGIT)
-                breakB = true;
-            break;
-        }
-        
-        //System.out.println(String.format("   => break %b , state %d, length %d", breakB, state, length));
-        
-        if (breakB && length > 0) {
-            bufferIndex -= charCount;
-            break;
-        }
-
-        if (length == 0) { // start of token
-          start = offset + bufferIndex - charCount;
-          end = start;
-          switch(charcat) {
-          case CHCAT_BASE:
-              state = ST_INSIDESYL;
-              break;
-          case CHCAT_DIGIT:
-              state = ST_AFTERDIGIT;
-              break;
+            // between tokens: skip the runs of chars that can't start one (single spaces
+            // between Khmer words are more common and don't need it)
+            if (i < limit && !maybeTokenChar(ioChars[i]))
+              i = skipIgnored(ioChars, i + 1, limit);
+            continue;
+          }
+          final int tr = transitions[(state << 3) | charcat];
+          // break before the char
+          if ((tr & TR_BREAK) != 0 && length > 0) {
+            bufferIndex = i;
+            break scan;
+          }
+          state = tr & TR_STATE_MASK;
+          if (length == 0) { // start of token
+            start = offset + i;
+            end = start;
+          } else if (length >= buffer.length - 1) {
+            buffer = termAtt.resizeBuffer(2 + length);
+          }
+          end += 1;
+          buffer[length++] = c;
+          i += 1;
+          if (length >= maxTokenLen) {
+            bufferIndex = i;
+            break scan;
           }
-        } else if (length >= buffer.length - 1) { // supplementary could run out of bounds?
-          // make sure a supplementary fits in the buffer
-          buffer = termAtt.resizeBuffer(2 + length);
-        }
-        
-        end += charCount;
-        length += Character.toChars(c, buffer, length); // buffer it, normalized
-        // buffer overflow! make sure to check for >= surrogate pair could break == test
-        // XXX: manual change here to cut after 0F7F
-        if (c == '\u0f7f' || length >= maxTokenLen) {
-          break;
         }
+        bufferIndex = i;
       }
 
       termAtt.setLength(length);
@@ -193,6 +303,12 @@ public class GraphemeClusterTokenizer  extends Tokenizer {
       super.end();
       // set final offset
       offsetAtt.setOffset(finalOffset, finalOffset);
+      if (active != null) {
+        active.addTokenizerCounts(nbChars, nbTokens, sampledNanos);
+        nbChars = 0;
+        nbTokens = 0;
+        sampledNanos = 0;
+      }
     }
 
     @Override
@@ -203,6 +319,10 @@ public class GraphemeClusterTokenizer  extends Tokenizer {
       dataLen = 0;
       finalOffset = 0;
       ioBuffer.reset(); // make sure to reset the IO buffer!!
+      active = AnalysisMetrics.active(metrics);
+      nbChars = 0;
+      nbTokens = 0;
+      sampledNanos = 0;
     }
     
 }
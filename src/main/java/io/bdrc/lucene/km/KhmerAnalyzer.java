@@ -4,32 +4,183 @@ import java.io.IOException;
 import java.io.Reader;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
 
 
 public class KhmerAnalyzer extends Analyzer {
     
     int normalizationlevel = 0;
+    KhmerLexicon lexicon = null;
+    boolean lowestCost = false;
+    ClusterCache clusterCache = null;
+    boolean syllables = false;
+    // given to all the components, which check if they are enabled for each stream
+    final AnalysisMetrics metrics;
 
     public KhmerAnalyzer() throws IOException {
-        this.normalizationlevel = 1;
+        this(1);
     }
     
     public KhmerAnalyzer(int normalizationlevel) throws IOException {
         this.normalizationlevel = normalizationlevel;
+        this.metrics = disabledMetrics(normalizationlevel);
+    }
+    
+    public KhmerAnalyzer(Options options) {
+        if (options.lexicon != null && options.syllables)
+            throw new IllegalArgumentException("an analyzer can't segment words of a lexicon and syllables");
+        if (options.lexicon != null && options.lexicon.getNormalizationLevel() != options.normalizationlevel)
+            throw new IllegalArgumentException("the lexicon has the normalization level " + options.lexicon.getNormalizationLevel()
+                    + ", not " + options.normalizationlevel);
+        if (options.lowestCost && options.lexicon == null)
+            throw new IllegalArgumentException("lowestCost requires a lexicon");
+        this.normalizationlevel = options.normalizationlevel;
+        this.lexicon = options.lexicon;
+        this.lowestCost = options.lowestCost;
+        this.clusterCache = options.clusterCache;
+        this.syllables = options.syllables;
+        this.metrics = disabledMetrics(options.normalizationlevel);
+    }
+    
+    private static AnalysisMetrics disabledMetrics(int normalizationlevel) {
+        final AnalysisMetrics res = new AnalysisMetrics(normalizationlevel > 0 ? NormalizationRules.get(normalizationlevel) : null);
+        res.setEnabled(false);
+        return res;
+    }
+    
+    /**
+     * Analyzer segmenting the text in the words of the lexicon (longest match first),
+     * the lexicon must have the same normalization level as the analyzer.
+     */
+    public KhmerAnalyzer(int normalizationlevel, KhmerLexicon lexicon) throws IOException {
+        this(normalizationlevel, lexicon, false);
+    }
+    
+    /**
+     * Analyzer segmenting the text in the words of the lexicon, using the longest match
+     * or the segmentation with the lowest cost according to the frequencies of the lexicon.
+     */
+    public KhmerAnalyzer(int normalizationlevel, KhmerLexicon lexicon, boolean lowestCost) throws IOException {
+        this(normalizationlevel, lexicon, lowestCost, null);
+    }
+    
+    /**
+     * Same as above, with a cache of the reordered clusters that can be shared between
+     * analyzers (lexicon can be null).
+     */
+    public KhmerAnalyzer(int normalizationlevel, KhmerLexicon lexicon, boolean lowestCost, ClusterCache clusterCache) throws IOException {
+        this(new Options().normalizationLevel(normalizationlevel).lexicon(lexicon).lowestCost(lowestCost).clusterCache(clusterCache));
+    }
+    
+    /**
+     * Analyzer indexing orthographic syllables (see KhmerSyllableFilter) instead of grapheme
+     * clusters if syllables is true.
+     */
+    public KhmerAnalyzer(int normalizationlevel, boolean syllables) throws IOException {
+        this(normalizationlevel, syllables, null);
+    }
+    
+    /**
+     * Same as above, with a cache of the reordered clusters (can be null).
+     */
+    public KhmerAnalyzer(int normalizationlevel, boolean syllables, ClusterCache clusterCache) throws IOException {
+        this(new Options().normalizationLevel(normalizationlevel).syllables(syllables).clusterCache(clusterCache));
+    }
+    
+    /**
+     * Options of a KhmerAnalyzer, for instance
+     * new KhmerAnalyzer(new KhmerAnalyzer.Options().normalizationLevel(2).lexicon(lexicon)).
+     * The analyzer checks them when it is created.
+     */
+    public static final class Options {
+        int normalizationlevel = 1;
+        KhmerLexicon lexicon = null;
+        boolean lowestCost = false;
+        ClusterCache clusterCache = null;
+        boolean syllables = false;
+        
+        public Options normalizationLevel(int normalizationlevel) {
+            this.normalizationlevel = normalizationlevel;
+            return this;
+        }
+        
+        /**
+         * Segments the text in the words of the lexicon (longest match first), the lexicon
+         * must have the same normalization level as the analyzer.
+         */
+        public Options lexicon(KhmerLexicon lexicon) {
+            this.lexicon = lexicon;
+            return this;
+        }
+        
+        /**
+         * Uses the segmentation with the lowest cost according to the frequencies of the
+         * lexicon instead of the longest match.
+         */
+        public Options lowestCost(boolean lowestCost) {
+            this.lowestCost = lowestCost;
+            return this;
+        }
+        
+        /**
+         * A cache of the reordered clusters that can be shared between analyzers.
+         */
+        public Options clusterCache(ClusterCache clusterCache) {
+            this.clusterCache = clusterCache;
+            return this;
+        }
+        
+        /**
+         * Indexes orthographic syllables (see KhmerSyllableFilter) instead of grapheme
+         * clusters, can't be used with a lexicon.
+         */
+        public Options syllables(boolean syllables) {
+            this.syllables = syllables;
+            return this;
+        }
+    }
+    
+    /**
+     * Enables the metrics of the analysis stages and returns them. The streams started
+     * after the call (in any thread) are counted, the counts are kept when the metrics
+     * are disabled and enabled again.
+     */
+    public AnalysisMetrics enableMetrics() {
+        this.metrics.setEnabled(true);
+        return this.metrics;
+    }
+    
+    /**
+     * Disables the metrics, for the streams started after the call.
+     */
+    public void disableMetrics() {
+        this.metrics.setEnabled(false);
+    }
+    
+    /**
+     * Returns the metrics, or null if they are not enabled.
+     */
+    public AnalysisMetrics getMetrics() {
+        return this.metrics.isEnabled() ? this.metrics : null;
     }
     
     @Override
     protected Reader initReader(String fieldName, Reader reader) {
         if (this.normalizationlevel > 0)
-            reader = new NormalizationCharFilter(reader, this.normalizationlevel);
+            reader = new KhmerNormalizationCharFilter(reader, this.metrics.rules, this.metrics);
         return super.initReader(fieldName, reader);
     }
     
     @Override
     protected TokenStreamComponents createComponents(final String fieldName) {
-        Tokenizer source = new GraphemeClusterTokenizer();
-        return new TokenStreamComponents(source, new CharReorderFilter(source));
+        Tokenizer source = new GraphemeClusterTokenizer(GraphemeClusterTokenizer.DEFAULT_IO_BUFFER_SIZE, this.metrics);
+        TokenStream res = new CharReorderFilter(source, this.clusterCache, this.metrics);
+        if (this.lexicon != null)
+            res = new WordSegmentationFilter(res, this.lexicon, this.lowestCost);
+        else if (this.syllables)
+            res = new KhmerSyllableFilter(res);
+        return new TokenStreamComponents(source, res);
     }
     
 }
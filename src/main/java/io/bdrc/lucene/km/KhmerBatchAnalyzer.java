@@ -0,0 +1,290 @@
+package io.bdrc.lucene.km;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.CloseableThreadLocal;
+
+/**
+ * Analyzes many short strings (titles, queries, authority records, etc.) without the
+ * overhead of a TokenStream per string (Reader, char filter and attributes), for instance
+ * to compute deduplication keys. It gives the same clusters as KhmerAnalyzer (without
+ * lexicon): the whole string is normalized with the rules of the level, split in clusters
+ * with the state machine of GraphemeClusterTokenizer, and each cluster is reordered as in
+ * CharReorderFilter.
+ *
+ * The buffers are reused between the strings analyzed in the same thread, they are
+ * shrunk after the strings longer than MAX_KEPT_LEN chars and released by close(). The
+ * methods taking a list split the lists longer than BATCH_SIZE in batches analyzed in a
+ * ForkJoinPool (the common pool by default). All the methods are thread safe.
+ */
+public final class KhmerBatchAnalyzer implements Closeable {
+
+    public static final int BATCH_SIZE = 512;
+    static final int MAX_TOKEN_LEN = 255;
+    // the cluster strings are shared, the table of a thread is emptied when it is full
+    static final int MAX_INTERNED = 8192;
+    // the buffers of a thread that grew larger than this are reallocated after the string
+    static final int MAX_KEPT_LEN = 4096;
+    static final int INITIAL_LEN = 256;
+
+    private final NormalizationRules rules;
+    // optional
+    private final ClusterCache clusterCache;
+    private final ForkJoinPool pool;
+    private final CloseableThreadLocal<Worker> workers = new CloseableThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker(rules, clusterCache);
+        }
+    };
+    private volatile boolean closed = false;
+
+    public KhmerBatchAnalyzer() {
+        this(1);
+    }
+
+    public KhmerBatchAnalyzer(final int normalizationlevel) {
+        this(normalizationlevel, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param clusterCache can be null
+     * @param pool the pool analyzing the lists longer than BATCH_SIZE
+     */
+    public KhmerBatchAnalyzer(final int normalizationlevel, final ClusterCache clusterCache, final ForkJoinPool pool) {
+        this.rules = normalizationlevel > 0 ? NormalizationRules.get(normalizationlevel) : null;
+        this.clusterCache = clusterCache;
+        this.pool = pool;
+    }
+
+    // the buffers of a thread, it doesn't reference the analyzer so that the threads of a
+    // pool don't keep it alive
+    static final class Worker {
+        final NormalizationRules rules;
+        final ClusterCache clusterCache;
+        char[] in = new char[INITIAL_LEN];
+        char[] normalized = new char[INITIAL_LEN];
+        char[] out = new char[INITIAL_LEN];
+        final char[] cluster = new char[CharReorderFilter.MAX_LEN];
+        final char[] cats = new char[CharReorderFilter.MAX_LEN];
+        // cluster i is out[clusterStarts[i], clusterEnds[i])
+        int[] clusterStarts = new int[32];
+        int[] clusterEnds = new int[32];
+        int nbClusters = 0;
+        int outLen = 0;
+        final CharArrayMap<String> interned = new CharArrayMap<>(MAX_INTERNED, false);
+
+        Worker(final NormalizationRules rules, final ClusterCache clusterCache) {
+            this.rules = rules;
+            this.clusterCache = clusterCache;
+        }
+
+        void analyze(final CharSequence s) {
+            final int len = s.length();
+            in = ArrayUtil.grow(in, len);
+            if (s instanceof String)
+                ((String) s).getChars(0, len, in, 0);
+            else
+                for (int i = 0 ; i < len ; i++)
+                    in[i] = s.charAt(i);
+            final char[] text;
+            final int textLen;
+            if (rules != null) {
+                normalized = ArrayUtil.grow(normalized, len * rules.getMaxReplacementLength());
+                textLen = rules.normalize(in, len, normalized);
+                text = normalized;
+            } else {
+                textLen = len;
+                text = in;
+            }
+            out = ArrayUtil.grow(out, textLen);
+            outLen = 0;
+            nbClusters = 0;
+            // same segmentation as GraphemeClusterTokenizer
+            int state = GraphemeClusterTokenizer.ST_INIT;
+            int start = -1;
+            for (int i = 0 ; i < textLen ; i++) {
+                final char c = text[i];
+                final int charcat = GraphemeClusterTokenizer.category(c);
+                if (charcat == GraphemeClusterTokenizer.CHCAT_IGNORE) {
+                    if (start != -1)
+                        addCluster(text, start, i);
+                    start = -1;
+                    state = GraphemeClusterTokenizer.ST_INIT;
+                    out[outLen++] = c;
+                    continue;
+                }
+                int tr = GraphemeClusterTokenizer.transition(state, charcat);
+                if (start != -1 && ((tr & GraphemeClusterTokenizer.TR_BREAK) != 0 || i - start == MAX_TOKEN_LEN)) {
+                    addCluster(text, start, i);
+                    start = -1;
+                    // the next cluster starts from the initial state
+                    tr = GraphemeClusterTokenizer.transition(GraphemeClusterTokenizer.ST_INIT, charcat);
+                }
+                if (start == -1)
+                    start = i;
+                state = tr & GraphemeClusterTokenizer.TR_STATE_MASK;
+            }
+            if (start != -1)
+                addCluster(text, start, textLen);
+        }
+
+        // reorders text[start, end) and appends it to out
+        private void addCluster(final char[] text, final int start, final int end) {
+            int len = end - start;
+            if (len <= CharReorderFilter.MAX_LEN) {
+                System.arraycopy(text, start, cluster, 0, len);
+                len = clusterCache != null ? clusterCache.reorder(cluster, len, cats) : CharReorderFilter.reorder(cluster, len, cats);
+                System.arraycopy(cluster, 0, out, outLen, len);
+            } else {
+                System.arraycopy(text, start, out, outLen, len);
+            }
+            if (nbClusters == clusterStarts.length) {
+                clusterStarts = ArrayUtil.grow(clusterStarts);
+                clusterEnds = ArrayUtil.grow(clusterEnds, clusterStarts.length);
+            }
+            clusterStarts[nbClusters] = outLen;
+            outLen += len;
+            clusterEnds[nbClusters] = outLen;
+            nbClusters += 1;
+        }
+
+        String[] clusters(final CharSequence s) {
+            analyze(s);
+            final String[] res = new String[nbClusters];
+            for (int i = 0 ; i < nbClusters ; i++) {
+                final int start = clusterStarts[i];
+                final int len = clusterEnds[i] - start;
+                String cluster = interned.get(out, start, len);
+                if (cluster == null) {
+                    cluster = new String(out, start, len);
+                    if (interned.size() >= MAX_INTERNED)
+                        interned.clear();
+                    interned.put(cluster, cluster);
+                }
+                res[i] = cluster;
+            }
+            shrink();
+            return res;
+        }
+
+        String normalize(final CharSequence s) {
+            analyze(s);
+            final String res = new String(out, 0, outLen);
+            shrink();
+            return res;
+        }
+
+        // a huge string doesn't keep its buffers (normalized can be several times its length)
+        private void shrink() {
+            if (in.length > MAX_KEPT_LEN)
+                in = new char[INITIAL_LEN];
+            if (normalized.length > MAX_KEPT_LEN)
+                normalized = new char[INITIAL_LEN];
+            if (out.length > MAX_KEPT_LEN)
+                out = new char[INITIAL_LEN];
+            if (clusterStarts.length > MAX_KEPT_LEN) {
+                clusterStarts = new int[32];
+                clusterEnds = new int[32];
+            }
+        }
+    }
+
+    Worker worker() {
+        if (closed)
+            throw new AlreadyClosedException("this KhmerBatchAnalyzer is closed");
+        return workers.get();
+    }
+
+    /**
+     * Returns the clusters of s, as KhmerAnalyzer would index them.
+     */
+    public String[] clusters(final CharSequence s) {
+        return worker().clusters(s);
+    }
+
+    /**
+     * Returns s normalized and with its clusters reordered, the chars between the clusters
+     * (spaces, punctuation, other scripts) are kept.
+     */
+    public String normalize(final CharSequence s) {
+        return worker().normalize(s);
+    }
+
+    /**
+     * Returns the clusters of each string of inputs.
+     */
+    public String[][] clusters(final List<? extends CharSequence> inputs) {
+        final String[][] res = new String[inputs.size()][];
+        run(new BatchTask(inputs, res, null, 0, res.length));
+        return res;
+    }
+
+    /**
+     * Returns each string of inputs normalized (see normalize(CharSequence)).
+     */
+    public String[] normalize(final List<? extends CharSequence> inputs) {
+        final String[] res = new String[inputs.size()];
+        run(new BatchTask(inputs, null, res, 0, res.length));
+        return res;
+    }
+
+    /**
+     * Releases the buffers of all the threads, the analyzer can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        workers.close();
+    }
+
+    private void run(final BatchTask task) {
+        if (task.to - task.from <= BATCH_SIZE)
+            task.compute();
+        else
+            pool.invoke(task);
+    }
+
+    // analyzes inputs[from, to) in clusters or normalized (the other one is null)
+    private final class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final List<? extends CharSequence> inputs;
+        final String[][] clusters;
+        final String[] normalized;
+        final int from;
+        final int to;
+
+        BatchTask(final List<? extends CharSequence> inputs, final String[][] clusters, final String[] normalized, final int from, final int to) {
+            this.inputs = inputs;
+            this.clusters = clusters;
+            this.normalized = normalized;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new BatchTask(inputs, clusters, normalized, from, middle),
+                        new BatchTask(inputs, clusters, normalized, middle, to));
+                return;
+            }
+            final Worker worker = worker();
+            for (int i = from ; i < to ; i++) {
+                if (clusters != null)
+                    clusters[i] = worker.clusters(inputs.get(i));
+                else
+                    normalized[i] = worker.normalize(inputs.get(i));
+            }
+        }
+    }
+
+}
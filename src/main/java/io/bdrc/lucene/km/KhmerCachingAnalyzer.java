@@ -0,0 +1,278 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Wraps an analyzer (typically a KhmerAnalyzer) and caches the tokens of the field values
+ * of at most maxValueLength chars in an AnalysisCache, so that values repeated in many
+ * documents (titles, series names, colophon phrases, etc.) are analyzed only once. The
+ * cached tokens are replayed without going through the normalization, the tokenizer
+ * and the filters. Only the first maxValueLength + 1 chars of a value are read before
+ * deciding whether it is cached: the longer values are streamed to the wrapped analyzer.
+ *
+ * Only the terms, position increments, offsets and types are output (also for the values
+ * that are not cached, so that the output doesn't depend on the state of the cache): the
+ * other attributes, such as the flags or the keyword attribute, are lost.
+ */
+public class KhmerCachingAnalyzer extends Analyzer {
+
+    public static final int DEFAULT_MAX_VALUE_LENGTH = 256;
+
+    final Analyzer analyzer;
+    final AnalysisCache cache;
+    final int maxValueLength;
+
+    public KhmerCachingAnalyzer(final Analyzer analyzer) {
+        this(analyzer, new AnalysisCache(), DEFAULT_MAX_VALUE_LENGTH);
+    }
+
+    /**
+     * @param cache the cache, it must only be used with analyzers giving the same tokens
+     * for the same field
+     */
+    public KhmerCachingAnalyzer(final Analyzer analyzer, final AnalysisCache cache, final int maxValueLength) {
+        // one token stream per field, so that it counts the hits of its field
+        super(PER_FIELD_REUSE_STRATEGY);
+        if (maxValueLength < 0 || maxValueLength >= ArrayUtil.MAX_ARRAY_LENGTH)
+            throw new IllegalArgumentException("invalid maxValueLength: " + maxValueLength);
+        this.analyzer = analyzer;
+        this.cache = cache;
+        this.maxValueLength = maxValueLength;
+    }
+
+    public AnalysisCache getCache() {
+        return cache;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(final String fieldName) {
+        final CachedValueTokenStream stream = new CachedValueTokenStream(fieldName);
+        return new TokenStreamComponents(stream::setReader, stream);
+    }
+
+    @Override
+    public int getPositionIncrementGap(final String fieldName) {
+        return analyzer.getPositionIncrementGap(fieldName);
+    }
+
+    @Override
+    public int getOffsetGap(final String fieldName) {
+        return analyzer.getOffsetGap(fieldName);
+    }
+
+    // reads the chars already read from a reader, then the rest of the reader
+    private static final class PrefixReader extends Reader {
+        private char[] prefix = null;
+        private int prefixLen = 0;
+        private int upto = 0;
+        private Reader rest = null;
+
+        PrefixReader set(final char[] prefix, final int prefixLen, final Reader rest) {
+            this.prefix = prefix;
+            this.prefixLen = prefixLen;
+            this.upto = 0;
+            this.rest = rest;
+            return this;
+        }
+
+        @Override
+        public int read(final char[] cbuf, final int off, final int len) throws IOException {
+            if (upto < prefixLen) {
+                final int n = Math.min(len, prefixLen - upto);
+                System.arraycopy(prefix, upto, cbuf, off, n);
+                upto += n;
+                return n;
+            }
+            return rest.read(cbuf, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (rest != null)
+                rest.close();
+            prefix = null;
+            rest = null;
+        }
+    }
+
+    // replays the tokens of the cache, or the tokens of the wrapped analyzer while
+    // recording them
+    private final class CachedValueTokenStream extends TokenStream {
+
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+
+        private final String field;
+        private final AnalysisCache.FieldCounters counters;
+
+        // the first chars of the value, all of them if it is not longer than maxValueLength
+        private char[] valueChars = new char[256];
+        private int valueLen = 0;
+        private String value = null;
+        // the rest of a value longer than maxValueLength
+        private Reader reader = null;
+        private final PrefixReader prefixReader = new PrefixReader();
+        // the cached tokens, or the stream of the wrapped analyzer
+        private AnalysisCache.Entry entry = null;
+        private int upto = 0;
+        private TokenStream delegate = null;
+        private boolean delegateOpen = false;
+        private CharTermAttribute delegateTermAtt = null;
+        private OffsetAttribute delegateOffsetAtt = null;
+        private PositionIncrementAttribute delegatePosIncAtt = null;
+        private TypeAttribute delegateTypeAtt = null;
+        // the tokens recorded from the delegate, if value is cached
+        private boolean record = false;
+        private char[] chars = new char[256];
+        private int nbChars = 0;
+        private int[] tokens = new int[64];
+        private String[] types = new String[16];
+        private int nbTokens = 0;
+
+        CachedValueTokenStream(final String field) {
+            this.field = field;
+            this.counters = cache.fieldCounters(field);
+        }
+
+        void setReader(final Reader reader) {
+            final int maxLen = maxValueLength + 1;
+            int len = 0;
+            try {
+                while (len < maxLen) {
+                    if (len == valueChars.length)
+                        valueChars = ArrayUtil.grow(valueChars, len + 1);
+                    final int n = reader.read(valueChars, len, Math.min(valueChars.length, maxLen) - len);
+                    if (n == -1)
+                        break;
+                    len += n;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            valueLen = len;
+            entry = null;
+            record = false;
+            if (len > maxValueLength) {
+                value = null;
+                this.reader = reader;
+                counters.skipped.increment();
+                return;
+            }
+            value = new String(valueChars, 0, len);
+            this.reader = null;
+            entry = cache.get(field, value);
+            if (entry != null) {
+                counters.hits.increment();
+            } else {
+                counters.misses.increment();
+                record = true;
+            }
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            upto = 0;
+            nbChars = 0;
+            nbTokens = 0;
+            if (entry != null)
+                return;
+            final TokenStream ts = value != null ? analyzer.tokenStream(field, value)
+                    : analyzer.tokenStream(field, prefixReader.set(valueChars, valueLen, reader));
+            if (ts != delegate) {
+                delegateTermAtt = ts.addAttribute(CharTermAttribute.class);
+                delegateOffsetAtt = ts.addAttribute(OffsetAttribute.class);
+                delegatePosIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+                delegateTypeAtt = ts.addAttribute(TypeAttribute.class);
+            }
+            delegate = ts;
+            delegateOpen = true;
+            delegate.reset();
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            clearAttributes();
+            if (entry != null) {
+                if (upto == entry.nbTokens)
+                    return false;
+                final int[] t = entry.tokens;
+                final int i = 4 * upto;
+                final int start = upto == 0 ? 0 : t[i - 4];
+                termAtt.copyBuffer(entry.chars, start, t[i] - start);
+                posIncAtt.setPositionIncrement(t[i + 1]);
+                offsetAtt.setOffset(t[i + 2], t[i + 3]);
+                typeAtt.setType(entry.types[upto]);
+                upto += 1;
+                return true;
+            }
+            if (!delegate.incrementToken())
+                return false;
+            final int len = delegateTermAtt.length();
+            termAtt.copyBuffer(delegateTermAtt.buffer(), 0, len);
+            posIncAtt.setPositionIncrement(delegatePosIncAtt.getPositionIncrement());
+            offsetAtt.setOffset(delegateOffsetAtt.startOffset(), delegateOffsetAtt.endOffset());
+            typeAtt.setType(delegateTypeAtt.type());
+            if (record) {
+                chars = ArrayUtil.grow(chars, nbChars + len);
+                System.arraycopy(delegateTermAtt.buffer(), 0, chars, nbChars, len);
+                nbChars += len;
+                tokens = ArrayUtil.grow(tokens, 4 * nbTokens + 4);
+                final int i = 4 * nbTokens;
+                tokens[i] = nbChars;
+                tokens[i + 1] = delegatePosIncAtt.getPositionIncrement();
+                tokens[i + 2] = delegateOffsetAtt.startOffset();
+                tokens[i + 3] = delegateOffsetAtt.endOffset();
+                types = ArrayUtil.grow(types, nbTokens + 1);
+                types[nbTokens] = delegateTypeAtt.type();
+                nbTokens += 1;
+            }
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            if (entry != null) {
+                offsetAtt.setOffset(entry.finalOffset, entry.finalOffset);
+                posIncAtt.setPositionIncrement(entry.finalPosInc);
+                return;
+            }
+            delegate.end();
+            final int finalOffset = delegateOffsetAtt.endOffset();
+            final int finalPosInc = delegatePosIncAtt.getPositionIncrement();
+            offsetAtt.setOffset(finalOffset, finalOffset);
+            posIncAtt.setPositionIncrement(finalPosInc);
+            if (record) {
+                cache.put(field, value, new AnalysisCache.Entry(value, chars, nbChars, tokens, types, nbTokens, finalOffset, finalPosInc));
+                record = false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (delegateOpen) {
+                delegate.close();
+                delegateOpen = false;
+            }
+            entry = null;
+            value = null;
+            reader = null;
+        }
+
+    }
+
+}
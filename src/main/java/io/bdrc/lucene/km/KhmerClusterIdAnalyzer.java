@@ -0,0 +1,51 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+
+/**
+ * KhmerAnalyzer indexing the grapheme clusters as their ids in a ClusterIdTable, which
+ * makes the terms dictionary smaller and the lookups of the frequent clusters faster. The
+ * same analyzer (with the same table version) must be used to analyze the queries, for
+ * instance with QueryBuilder or the query parser.
+ *
+ * The highlighters work as with KhmerAnalyzer, the terms read from the index can be
+ * decoded with ClusterIdTable.decode().
+ */
+public class KhmerClusterIdAnalyzer extends KhmerAnalyzer {
+
+    final ClusterIdTable table;
+
+    /**
+     * Uses the table of version 1, not the latest one, so that an index written with it
+     * can still be queried when a later version is added.
+     */
+    public KhmerClusterIdAnalyzer() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Uses the table of version 1, see KhmerClusterIdAnalyzer().
+     */
+    public KhmerClusterIdAnalyzer(int normalizationlevel) throws IOException {
+        this(new Options().normalizationLevel(normalizationlevel), ClusterIdTable.get(1));
+    }
+
+    /**
+     * @param table the table, for instance ClusterIdTable.get(1)
+     */
+    public KhmerClusterIdAnalyzer(Options options, ClusterIdTable table) {
+        super(options);
+        this.table = table;
+    }
+
+    public ClusterIdTable getTable() {
+        return table;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(final String fieldName) {
+        final TokenStreamComponents clusters = super.createComponents(fieldName);
+        return new TokenStreamComponents(clusters.getSource(), new ClusterIdFilter(clusters.getTokenStream(), this.table));
+    }
+
+}
@@ -0,0 +1,90 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.QueryBuilder;
+
+/**
+ * QueryBuilder matching the terms confusable with the terms of the query (see
+ * ConfusableExpander), so that a field indexed with normalization level 1 can be queried
+ * as if it was indexed with level 3.
+ *
+ * The analyzer must be the level 1 KhmerAnalyzer used for indexing. A term with confusable
+ * variants becomes a TermInSetQuery (constant score) and a phrase becomes a
+ * MultiPhraseQuery with the variants of each position.
+ */
+public class KhmerConfusableQueryBuilder extends QueryBuilder {
+
+    final ConfusableExpander expander;
+
+    public KhmerConfusableQueryBuilder(final Analyzer analyzer) {
+        this(analyzer, new ConfusableExpander());
+    }
+
+    /**
+     * The expander (and its cache) can be shared between query builders.
+     */
+    public KhmerConfusableQueryBuilder(final Analyzer analyzer, final ConfusableExpander expander) {
+        super(analyzer);
+        this.expander = expander;
+    }
+
+    public ConfusableExpander getExpander() {
+        return expander;
+    }
+
+    Term[] expand(final Term term) {
+        final String[] variants = expander.expand(term.text());
+        final Term[] res = new Term[variants.length];
+        for (int i = 0 ; i < variants.length ; i++)
+            res[i] = new Term(term.field(), variants[i]);
+        return res;
+    }
+
+    @Override
+    protected Query newTermQuery(final Term term, final float boost) {
+        final String[] variants = expander.expand(term.text());
+        if (variants.length == 1)
+            return super.newTermQuery(term, boost);
+        final List<BytesRef> bytes = new ArrayList<>(variants.length);
+        for (final String variant : variants)
+            bytes.add(new BytesRef(variant));
+        final Query res = new TermInSetQuery(term.field(), bytes);
+        return boost == 1f ? res : new BoostQuery(res, boost);
+    }
+
+    @Override
+    protected Query analyzePhrase(final String field, final TokenStream stream, final int slop) throws IOException {
+        final MultiPhraseQuery.Builder builder = new MultiPhraseQuery.Builder();
+        builder.setSlop(slop);
+        final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        final PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+        int position = -1;
+        boolean expanded = false;
+        stream.reset();
+        while (stream.incrementToken()) {
+            position += posIncAtt.getPositionIncrement();
+            final Term[] terms = expand(new Term(field, termAtt.toString()));
+            expanded |= terms.length > 1;
+            builder.add(terms, position);
+        }
+        if (!expanded) {
+            // the stream is a CachingTokenFilter and can be read again
+            return super.analyzePhrase(field, stream, slop);
+        }
+        return builder.build();
+    }
+
+}
@@ -0,0 +1,46 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+
+/**
+ * Analyzer for search-as-you-type: the index analyzer outputs the cluster-aligned edge
+ * n-grams of each segment (see KhmerEdgeNGramFilter), the query analyzer (query = true)
+ * outputs the whole segments, so that what has been typed is looked up as a single term
+ * instead of a prefix or wildcard query. Both must have the same parameters.
+ *
+ * Without a lexicon, a segment is a run of clusters between spaces or punctuation (which
+ * suits titles and names), with a lexicon each word is a segment. A word being typed is
+ * usually not in the lexicon yet: on the query side, the clusters that are not words at
+ * the end of the query form a single segment (see KhmerEdgeNGramFilter).
+ */
+public class KhmerEdgeNGramAnalyzer extends KhmerAnalyzer {
+
+    final int minClusters;
+    final int maxClusters;
+    final boolean query;
+
+    public KhmerEdgeNGramAnalyzer(boolean query) throws IOException {
+        this(new Options(), KhmerEdgeNGramFilter.DEFAULT_MIN_CLUSTERS, KhmerEdgeNGramFilter.DEFAULT_MAX_CLUSTERS, query);
+    }
+
+    /**
+     * @param options the options of the analyzer, the lexicon segments words
+     * @param query true for the query analyzer
+     */
+    public KhmerEdgeNGramAnalyzer(Options options, int minClusters, int maxClusters, boolean query) {
+        super(options);
+        if (minClusters < 1 || maxClusters < minClusters)
+            throw new IllegalArgumentException("minClusters must be positive and maxClusters at least minClusters");
+        this.minClusters = minClusters;
+        this.maxClusters = maxClusters;
+        this.query = query;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(final String fieldName) {
+        final TokenStreamComponents clusters = super.createComponents(fieldName);
+        return new TokenStreamComponents(clusters.getSource(), new KhmerEdgeNGramFilter(clusters.getTokenStream(),
+                this.minClusters, this.maxClusters, this.lexicon != null, this.query));
+    }
+
+}
@@ -0,0 +1,211 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Outputs the edge n-grams of each segment, made of the first minClusters to maxClusters
+ * grapheme clusters of the segment, at the position of the segment. The grams are always
+ * cut between clusters, for instance "ភ្នំពេញ" gives "ភ្នំ", "ភ្នំពេ", "ភ្នំពេញ".
+ *
+ * A segment is either a run of contiguous tokens (clusters of CharReorderFilter, not
+ * separated by spaces or punctuation), or each token if splitTokens is true (words of
+ * WordSegmentationFilter, which are split in clusters with the state machine of
+ * GraphemeClusterTokenizer). The grams cut inside a token have the offsets of the token.
+ *
+ * With longestOnly, only the longest gram of each segment is output (whatever its number
+ * of clusters), which is what the queries need: a partial input is a single term. With
+ * splitTokens too, the contiguous clusters that are not words of the lexicon (type
+ * &lt;CLUSTER&gt;) at the end of the input are the beginning of a word being typed: they
+ * form a single segment, so that "ធ្វើកា" (the clusters "ធ្វើ" and "កា", if "ធ្វើ" is
+ * not in the lexicon) is the gram "ធ្វើកា" of the word "ធ្វើការ", not two terms.
+ */
+public final class KhmerEdgeNGramFilter extends TokenFilter {
+
+    public static final int DEFAULT_MIN_CLUSTERS = 1;
+    public static final int DEFAULT_MAX_CLUSTERS = 10;
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+
+    private final int minClusters;
+    private final int maxClusters;
+    private final boolean splitTokens;
+    private final boolean longestOnly;
+
+    // the first maxClusters clusters of the segment: cluster i ends at clusterEnds[i] in
+    // chars, and at clusterEndOffsets[i] in the text
+    private char[] chars = new char[64];
+    private int len = 0;
+    private int[] clusterEnds = new int[16];
+    private int[] clusterEndOffsets = new int[16];
+    private int nbClusters = 0;
+    private int startOffset = 0;
+    private String type = null;
+    // the position increment of the next gram
+    private int posInc = 0;
+    // the next gram to output
+    private int gramIdx = 0;
+    // the tokens of the next segments, read to find the end of the current one
+    private final ArrayDeque<State> pending = new ArrayDeque<>();
+    private boolean inputDone = false;
+
+    public KhmerEdgeNGramFilter(final TokenStream input) {
+        this(input, DEFAULT_MIN_CLUSTERS, DEFAULT_MAX_CLUSTERS, false, false);
+    }
+
+    public KhmerEdgeNGramFilter(final TokenStream input, final int minClusters, final int maxClusters, final boolean splitTokens, final boolean longestOnly) {
+        super(input);
+        if (minClusters < 1 || maxClusters < minClusters)
+            throw new IllegalArgumentException("minClusters must be positive and maxClusters at least minClusters");
+        this.minClusters = minClusters;
+        this.maxClusters = maxClusters;
+        this.splitTokens = splitTokens;
+        this.longestOnly = longestOnly;
+    }
+
+    // end of the cluster of buffer starting at from
+    static int clusterEnd(final char[] buffer, final int from, final int limit) {
+        int state = GraphemeClusterTokenizer.ST_INIT;
+        for (int i = from ; i < limit ; i++) {
+            int charcat = GraphemeClusterTokenizer.category(buffer[i]);
+            // not in the tokens of GraphemeClusterTokenizer, kept in the cluster
+            if (charcat == GraphemeClusterTokenizer.CHCAT_IGNORE)
+                charcat = GraphemeClusterTokenizer.CHCAT_INSIDE;
+            final int tr = GraphemeClusterTokenizer.transition(state, charcat);
+            if ((tr & GraphemeClusterTokenizer.TR_BREAK) != 0 && i > from)
+                return i;
+            state = tr & GraphemeClusterTokenizer.TR_STATE_MASK;
+        }
+        return limit;
+    }
+
+    private void addCluster(final char[] buffer, final int from, final int to, final int endOffset) {
+        chars = ArrayUtil.grow(chars, len + to - from);
+        System.arraycopy(buffer, from, chars, len, to - from);
+        len += to - from;
+        if (nbClusters == clusterEnds.length) {
+            clusterEnds = ArrayUtil.grow(clusterEnds);
+            clusterEndOffsets = ArrayUtil.grow(clusterEndOffsets, clusterEnds.length);
+        }
+        clusterEnds[nbClusters] = len;
+        clusterEndOffsets[nbClusters] = endOffset;
+        nbClusters += 1;
+    }
+
+    // adds the clusters of the current token to the segment, up to maxClusters
+    private void addToken() {
+        final char[] buffer = termAtt.buffer();
+        final int tokenLen = termAtt.length();
+        final int endOffset = offsetAtt.endOffset();
+        if (!splitTokens) {
+            if (nbClusters < maxClusters)
+                addCluster(buffer, 0, tokenLen, endOffset);
+            return;
+        }
+        for (int i = 0 ; i < tokenLen && nbClusters < maxClusters ; ) {
+            final int end = clusterEnd(buffer, i, tokenLen);
+            addCluster(buffer, i, end, endOffset);
+            i = end;
+        }
+    }
+
+    private boolean nextInput() throws IOException {
+        if (!inputDone && !input.incrementToken())
+            inputDone = true;
+        return !inputDone;
+    }
+
+    // adds the contiguous clusters ending the input to the segment (a cluster), or keeps
+    // the tokens read for the next segments (pending is empty when it is called)
+    private void addTrailingClusters() throws IOException {
+        int endOffset = offsetAtt.endOffset();
+        while (nextInput()) {
+            pending.add(captureState());
+            if (!WordSegmentationFilter.TYPE_CLUSTER.equals(typeAtt.type()) || offsetAtt.startOffset() != endOffset
+                    || posIncAtt.getPositionIncrement() != 1)
+                return;
+            endOffset = offsetAtt.endOffset();
+        }
+        while (!pending.isEmpty()) {
+            restoreState(pending.poll());
+            addToken();
+        }
+    }
+
+    // reads the next segment, false at the end of the input
+    private boolean nextSegment() throws IOException {
+        if (!pending.isEmpty()) {
+            restoreState(pending.poll());
+        } else if (!nextInput()) {
+            return false;
+        }
+        len = 0;
+        nbClusters = 0;
+        startOffset = offsetAtt.startOffset();
+        type = typeAtt.type();
+        posInc += posIncAtt.getPositionIncrement();
+        addToken();
+        if (!splitTokens) {
+            int endOffset = offsetAtt.endOffset();
+            while (nextInput()) {
+                if (offsetAtt.startOffset() != endOffset || posIncAtt.getPositionIncrement() != 1) {
+                    pending.add(captureState());
+                    break;
+                }
+                addToken();
+                endOffset = offsetAtt.endOffset();
+            }
+        } else if (longestOnly && pending.isEmpty() && WordSegmentationFilter.TYPE_CLUSTER.equals(type)) {
+            addTrailingClusters();
+        }
+        gramIdx = longestOnly ? Math.max(nbClusters - 1, 0) : minClusters - 1;
+        return true;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        // segments shorter than minClusters have no gram
+        while (gramIdx >= nbClusters) {
+            if (!nextSegment())
+                return false;
+        }
+        clearAttributes();
+        termAtt.copyBuffer(chars, 0, clusterEnds[gramIdx]);
+        offsetAtt.setOffset(startOffset, clusterEndOffsets[gramIdx]);
+        posIncAtt.setPositionIncrement(posInc);
+        typeAtt.setType(type);
+        posInc = 0;
+        gramIdx += 1;
+        return true;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        // the position increment of the segments without gram
+        posIncAtt.setPositionIncrement(posIncAtt.getPositionIncrement() + posInc);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        len = 0;
+        nbClusters = 0;
+        gramIdx = 0;
+        posInc = 0;
+        pending.clear();
+        inputDone = false;
+    }
+
+}
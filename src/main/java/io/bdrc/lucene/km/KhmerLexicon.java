@@ -0,0 +1,139 @@
+package io.bdrc.lucene.km;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.FSTCompiler;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+/**
+ * A lexicon of Khmer words compiled in an FST, used by WordSegmentationFilter.
+ *
+ * The words are stored in the same form as the tokens they are matched against:
+ * normalized (with the normalization level of the lexicon), split in grapheme clusters,
+ * and reordered. The output of each word is its cost, lower for more frequent words.
+ *
+ * The lexicon file has one word per line, optionally followed by a tab and the frequency
+ * of the word. Empty lines and lines starting with # are ignored.
+ */
+public final class KhmerLexicon {
+
+    // cost of words without frequency
+    public static final int DEFAULT_COST = 1000;
+    // cost of a grapheme cluster that is not part of a word of the lexicon
+    public static final int UNKNOWN_CLUSTER_COST = 2000;
+
+    final FST<Long> fst;
+    final int normalizationlevel;
+    final int nbWords;
+
+    private KhmerLexicon(final FST<Long> fst, final int normalizationlevel, final int nbWords) {
+        this.fst = fst;
+        this.normalizationlevel = normalizationlevel;
+        this.nbWords = nbWords;
+    }
+
+    public int getNormalizationLevel() {
+        return normalizationlevel;
+    }
+
+    public int size() {
+        return nbWords;
+    }
+
+    public static KhmerLexicon fromFile(final String path, final int normalizationlevel) throws IOException {
+        try (final Reader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            return fromReader(reader, normalizationlevel);
+        }
+    }
+
+    public static KhmerLexicon fromStream(final InputStream stream, final int normalizationlevel) throws IOException {
+        try (final Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            return fromReader(reader, normalizationlevel);
+        }
+    }
+
+    public static KhmerLexicon fromReader(final Reader reader, final int normalizationlevel) throws IOException {
+        final Map<String, Long> frequencies = new TreeMap<>();
+        final BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        long totalFrequency = 0;
+        boolean hasFrequencies = false;
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            final int tabIdx = line.indexOf('\t');
+            long frequency = 0;
+            if (tabIdx != -1) {
+                try {
+                    frequency = Long.parseLong(line.substring(tabIdx + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid frequency in lexicon line: " + line, e);
+                }
+                line = line.substring(0, tabIdx);
+                hasFrequencies = true;
+                totalFrequency += frequency;
+            }
+            final String word = canonicalForm(line, normalizationlevel);
+            if (word.isEmpty())
+                continue;
+            frequencies.merge(word, frequency, Long::sum);
+        }
+        final Map<String, Long> costs = new TreeMap<>();
+        for (final Map.Entry<String, Long> e : frequencies.entrySet()) {
+            final long frequency = e.getValue();
+            final long cost;
+            if (!hasFrequencies || frequency <= 0)
+                cost = DEFAULT_COST;
+            else
+                cost = Math.max(1, Math.round(100 * Math.log((double) totalFrequency / frequency)));
+            costs.put(e.getKey(), cost);
+        }
+        return new KhmerLexicon(buildFST(costs), normalizationlevel, costs.size());
+    }
+
+    // words must be sorted by UTF-16 code units, which is the String order
+    static FST<Long> buildFST(final Map<String, Long> sortedCosts) throws IOException {
+        final PositiveIntOutputs outputs = PositiveIntOutputs.getSingleton();
+        final FSTCompiler<Long> compiler = new FSTCompiler.Builder<>(FST.INPUT_TYPE.BYTE2, outputs).build();
+        final IntsRefBuilder scratch = new IntsRefBuilder();
+        for (final Map.Entry<String, Long> e : sortedCosts.entrySet())
+            compiler.add(Util.toUTF16(e.getKey(), scratch), e.getValue());
+        return FST.fromFSTReader(compiler.compile(), compiler.getFSTReader());
+    }
+
+    /**
+     * Returns the form of the word as it will appear in a token stream: the concatenation
+     * of its normalized and reordered grapheme clusters.
+     */
+    public static String canonicalForm(final String word, final int normalizationlevel) throws IOException {
+        final Reader reader = normalizationlevel > 0 ? new KhmerNormalizationCharFilter(new StringReader(word), normalizationlevel) : new StringReader(word);
+        final GraphemeClusterTokenizer tokenizer = new GraphemeClusterTokenizer();
+        tokenizer.setReader(reader);
+        final StringBuilder sb = new StringBuilder();
+        try (final TokenStream ts = new CharReorderFilter(tokenizer)) {
+            final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+            ts.reset();
+            while (ts.incrementToken())
+                sb.append(termAtt.buffer(), 0, termAtt.length());
+            ts.end();
+        }
+        return sb.toString();
+    }
+
+}
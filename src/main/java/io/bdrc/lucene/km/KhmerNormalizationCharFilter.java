@@ -0,0 +1,230 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.CharFilter;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Applies the normalization rules of a given level (same rules and same output as
+ * NormalizationCharFilter) in a single pass over the input.
+ *
+ * Chars that cannot start a rule are copied in bulk, the others are looked up in the
+ * trie of NormalizationRules. The offset corrections are the same as the ones of
+ * MappingCharFilter, but the corrections that apply only to offsets lower than the last two
+ * offsets corrected are dropped, so that the memory doesn't grow with the size of the input.
+ * This supposes that offsets are corrected in increasing order, token by token, which is
+ * the case with the tokenizers of this package (and most tokenizers): correcting an offset
+ * smaller than the start of the previous token may give an approximate result.
+ */
+public class KhmerNormalizationCharFilter extends CharFilter {
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int INITIAL_CORRECTIONS_SIZE = 64;
+
+    private final NormalizationRules rules;
+    // optional, null if they were disabled when the filter was created
+    private final AnalysisMetrics metrics;
+
+    // input buffer, chars before inPos have been consumed
+    private final char[] inBuf;
+    private int inPos = 0;
+    private int inLen = 0;
+    private boolean eof = false;
+    // offset in the input of inBuf[inPos]
+    private int inputOff = 0;
+
+    // replacement being output
+    private char[] replacement = null;
+    private int replacementPos = 0;
+
+    // offset corrections, with the same semantics as in BaseCharFilter
+    private int[] offsets = new int[INITIAL_CORRECTIONS_SIZE];
+    private int[] diffs = new int[INITIAL_CORRECTIONS_SIZE];
+    private int nbCorrections = 0;
+    // the last two offsets corrected, the corrections for lower offsets can be dropped
+    private int lastCorrected = 0;
+    private int previousCorrected = 0;
+
+    private final char[] singleChar = new char[1];
+
+    public KhmerNormalizationCharFilter(final Reader in) {
+        this(in, 1);
+    }
+
+    public KhmerNormalizationCharFilter(final Reader in, final int level) {
+        this(in, NormalizationRules.get(level));
+    }
+
+    public KhmerNormalizationCharFilter(final Reader in, final NormalizationRules rules) {
+        this(in, rules, null);
+    }
+
+    /**
+     * Char filter counting the chars read, the time spent and the rules applied in metrics
+     * (which must have been created with the same rules), if they are enabled.
+     */
+    public KhmerNormalizationCharFilter(final Reader in, final NormalizationRules rules, final AnalysisMetrics metrics) {
+        super(in);
+        if (metrics != null && metrics.rules != rules)
+            throw new IllegalArgumentException("the metrics must have been created for the same normalization rules");
+        this.rules = rules;
+        this.metrics = AnalysisMetrics.active(metrics);
+        this.inBuf = new char[Math.max(BUFFER_SIZE, 2 * rules.maxLength)];
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(singleChar, 0, 1) == -1 ? -1 : singleChar[0];
+    }
+
+    @Override
+    public int read(final char[] cbuf, final int off, final int len) throws IOException {
+        if (metrics == null)
+            return doRead(cbuf, off, len);
+        final long start = System.nanoTime();
+        try {
+            return doRead(cbuf, off, len);
+        } finally {
+            metrics.normalizationNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private int doRead(final char[] cbuf, final int off, final int len) throws IOException {
+        if (len == 0)
+            return 0;
+        final int end = off + len;
+        int o = off;
+        while (o < end) {
+            if (replacement != null) {
+                final int n = Math.min(replacement.length - replacementPos, end - o);
+                System.arraycopy(replacement, replacementPos, cbuf, o, n);
+                o += n;
+                replacementPos += n;
+                if (replacementPos == replacement.length)
+                    replacement = null;
+                continue;
+            }
+            if (inPos == inLen && !fill())
+                break;
+            // fast path: copy the chars that cannot start a rule
+            final int limit = Math.min(inLen, inPos + end - o);
+            int p = inPos;
+            while (p < limit && !rules.canStart(inBuf[p]))
+                p++;
+            if (p > inPos) {
+                final int n = p - inPos;
+                System.arraycopy(inBuf, inPos, cbuf, o, n);
+                o += n;
+                inPos = p;
+                inputOff += n;
+                continue;
+            }
+            // a rule can start here, make sure the longest one fits in the buffer
+            while (inLen - inPos < rules.maxLength && fill())
+                ;
+            final int rule = rules.longestMatch(inBuf, inPos, inLen);
+            if (rule == -1) {
+                cbuf[o++] = inBuf[inPos++];
+                inputOff += 1;
+                continue;
+            }
+            if (metrics != null)
+                metrics.countRule(rule);
+            final int matchLen = rules.getSourceLength(rule);
+            final char[] repl = rules.getReplacement(rule);
+            inPos += matchLen;
+            inputOff += matchLen;
+            addCorrection(matchLen, repl.length);
+            if (repl.length > 0) {
+                replacement = repl;
+                replacementPos = 0;
+            }
+        }
+        final int res = o - off;
+        return res == 0 ? -1 : res;
+    }
+
+    // reads more input after the unconsumed chars, returns false if there is none
+    private boolean fill() throws IOException {
+        if (eof)
+            return false;
+        if (inPos > 0) {
+            System.arraycopy(inBuf, inPos, inBuf, 0, inLen - inPos);
+            inLen -= inPos;
+            inPos = 0;
+        }
+        final int read = input.read(inBuf, inLen, inBuf.length - inLen);
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        inLen += read;
+        if (metrics != null)
+            metrics.normalizationCharsIn.add(read);
+        return true;
+    }
+
+    // same computation as in MappingCharFilter, inputOff is the offset after the match
+    private void addCorrection(final int matchLen, final int replacementLen) {
+        final int diff = matchLen - replacementLen;
+        if (diff == 0)
+            return;
+        final int prevCumulativeDiff = nbCorrections == 0 ? 0 : diffs[nbCorrections - 1];
+        if (diff > 0) {
+            // replacement is shorter than matched input
+            addOffCorrectMap(inputOff - diff - prevCumulativeDiff, prevCumulativeDiff + diff);
+        } else {
+            // replacement is longer than matched input: remap
+            // the "extra" chars all back to the same input offset
+            final int outputStart = inputOff - prevCumulativeDiff;
+            for (int extraIdx = 0 ; extraIdx < -diff ; extraIdx++)
+                addOffCorrectMap(outputStart + extraIdx, prevCumulativeDiff - extraIdx - 1);
+        }
+    }
+
+    private void addOffCorrectMap(final int off, final int cumulativeDiff) {
+        if (nbCorrections > 0 && off == offsets[nbCorrections - 1]) {
+            diffs[nbCorrections - 1] = cumulativeDiff;
+            return;
+        }
+        if (nbCorrections == offsets.length)
+            trimCorrections();
+        offsets[nbCorrections] = off;
+        diffs[nbCorrections] = cumulativeDiff;
+        nbCorrections += 1;
+    }
+
+    // drops the corrections that can't be used anymore, or grows the arrays
+    private void trimCorrections() {
+        // keep the correction that applies to the threshold
+        final int threshold = Math.min(lastCorrected, previousCorrected);
+        int first = Arrays.binarySearch(offsets, 0, nbCorrections, threshold);
+        if (first < 0)
+            first = -2 - first;
+        if (first > 0) {
+            System.arraycopy(offsets, first, offsets, 0, nbCorrections - first);
+            System.arraycopy(diffs, first, diffs, 0, nbCorrections - first);
+            nbCorrections -= first;
+        }
+        if (nbCorrections > offsets.length / 2) {
+            offsets = ArrayUtil.grow(offsets, offsets.length + 1);
+            diffs = ArrayUtil.growExact(diffs, offsets.length);
+        }
+    }
+
+    @Override
+    protected int correct(final int currentOff) {
+        previousCorrected = lastCorrected;
+        lastCorrected = currentOff;
+        if (nbCorrections == 0)
+            return currentOff;
+        int index = Arrays.binarySearch(offsets, 0, nbCorrections, currentOff);
+        if (index < -1)
+            index = -2 - index;
+        return currentOff + (index < 0 ? 0 : diffs[index]);
+    }
+
+}
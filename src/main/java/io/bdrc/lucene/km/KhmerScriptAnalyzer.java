@@ -0,0 +1,69 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.FilteringTokenFilter;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+/**
+ * KhmerAnalyzer keeping the words in other scripts (see KhmerScriptTokenizer), lowercased,
+ * so that a field mixing Khmer and Latin (or Thai, etc.) text can be indexed in one pass
+ * instead of being indexed a second time with StandardAnalyzer.
+ *
+ * The normalization applies to the whole text: at levels 2 and 3 ":" is replaced by U+17C8
+ * (for "ស:" typed instead of "សៈ"). The U+17C8 that are not attached to a Khmer cluster,
+ * as in "10:30" or "note: ...", are dropped instead of being indexed as Khmer tokens, but
+ * they still separate the words around them ("a:b" gives "a" and "b", not "a:b").
+ */
+public class KhmerScriptAnalyzer extends KhmerAnalyzer {
+
+    public KhmerScriptAnalyzer() throws IOException {
+        super();
+    }
+
+    public KhmerScriptAnalyzer(int normalizationlevel) throws IOException {
+        super(normalizationlevel);
+    }
+
+    /**
+     * Analyzer segmenting the Khmer text in words of the lexicon of the options, the
+     * syllables are not supported.
+     */
+    public KhmerScriptAnalyzer(Options options) {
+        super(options);
+        if (this.syllables)
+            throw new IllegalArgumentException("KhmerScriptAnalyzer doesn't support syllables");
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(final String fieldName) {
+        final Tokenizer source = new KhmerScriptTokenizer();
+        TokenStream res = new CharReorderFilter(source, this.clusterCache, this.metrics);
+        if (this.normalizationlevel >= 2)
+            res = new LoneColonFilter(res);
+        res = new LowerCaseFilter(res);
+        if (this.lexicon != null)
+            res = new WordSegmentationFilter(res, this.lexicon, this.lowestCost);
+        return new TokenStreamComponents(source, res);
+    }
+
+    // drops the tokens made of U+17C8 alone, the ":" replaced by the normalization
+    static final class LoneColonFilter extends FilteringTokenFilter {
+
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+
+        LoneColonFilter(final TokenStream input) {
+            super(input);
+        }
+
+        @Override
+        protected boolean accept() {
+            return termAtt.length() != 1 || termAtt.charAt(0) != '\u17C8';
+        }
+
+    }
+
+}
@@ -0,0 +1,286 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+import java.lang.Character.UnicodeScript;
+import java.text.BreakIterator;
+import java.util.Locale;
+
+import org.apache.lucene.analysis.CharacterUtils;
+import org.apache.lucene.analysis.CharacterUtils.CharacterBuffer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.analysis.util.CharArrayIterator;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Tokenizes text mixing Khmer and other scripts in one pass: the runs of chars of the
+ * Khmer block are split in grapheme clusters with the state machine of
+ * GraphemeClusterTokenizer, the runs of other chars are split in words with the word
+ * BreakIterator of the JDK, keeping the words that contain a letter or a digit. The JDK
+ * boundaries are close to the Unicode ones used by StandardTokenizer, but hyphenated
+ * words are not split.
+ *
+ * Each token has a ScriptAttribute (KHMER for the clusters). The clusters have the default
+ * type, as with GraphemeClusterTokenizer, the other words &lt;ALPHANUM&gt; or &lt;NUM&gt;.
+ * ASCII digits belong to the non-Khmer runs (so that "1,000" or "abc123" are single
+ * tokens), Khmer digits to the Khmer runs.
+ *
+ * A non-Khmer run longer than MAX_RUN chars is segmented in pieces, cut after the last
+ * whitespace of each piece (as in SegmentingTokenizerBase.findSafeEnd), or at its last word
+ * boundary if it has no whitespace.
+ */
+public final class KhmerScriptTokenizer extends Tokenizer {
+
+    public static final int MAX_RUN = 4096;
+    public static final String TYPE_ALPHANUM = StandardTokenizer.TOKEN_TYPES[StandardTokenizer.ALPHANUM];
+    public static final String TYPE_NUM = StandardTokenizer.TOKEN_TYPES[StandardTokenizer.NUM];
+
+    private int offset = 0, bufferIndex = 0, dataLen = 0, finalOffset = 0;
+    private final int maxTokenLen = 255;
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+    private final ScriptAttribute scriptAtt = addAttribute(ScriptAttribute.class);
+
+    private final CharacterBuffer ioBuffer;
+
+    // the current non-Khmer run, starting at offset runStart
+    private char[] run = new char[256];
+    private int runLen = 0, runStart = 0;
+    private boolean inRun = false;
+    // start of the part of the run kept for the next piece (see MAX_RUN), -1 if none
+    private int runKeep = -1;
+    // the words of the run: word i is run[wordStarts[i], wordEnds[i])
+    private int[] wordStarts = new int[32];
+    private int[] wordEnds = new int[32];
+    private int nbWords = 0, wordIdx = 0;
+    private final BreakIterator wordBreaker = BreakIterator.getWordInstance(Locale.ROOT);
+    private final CharArrayIterator wrapper = CharArrayIterator.newWordInstance();
+
+    public KhmerScriptTokenizer() {
+        this(GraphemeClusterTokenizer.DEFAULT_IO_BUFFER_SIZE);
+    }
+
+    public KhmerScriptTokenizer(final int ioBufferSize) {
+        this.ioBuffer = CharacterUtils.newCharacterBuffer(ioBufferSize);
+    }
+
+    // true for the chars of the Khmer block
+    static final boolean isKhmer(final char c) {
+        return (char) (c - '\u1780') < 0x80;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+      clearAttributes();
+      if (wordIdx < nbWords)
+        return nextWord();
+      int length = 0;
+      int start = -1; // this variable is always initialized
+      int end = -1;
+      char[] buffer = termAtt.buffer();
+      int state = GraphemeClusterTokenizer.ST_INIT;
+      scan:
+      while (true) {
+        if (bufferIndex >= dataLen) {
+          offset += dataLen;
+          CharacterUtils.fill(ioBuffer, input);
+          if (ioBuffer.getLength() == 0) {
+            dataLen = 0; // so next offset += dataLen won't decrement offset
+            if (inRun) {
+              segmentRun(true);
+              if (wordIdx < nbWords)
+                return nextWord();
+            }
+            if (length > 0) {
+              break;
+            } else {
+              finalOffset = correctOffset(offset);
+              return false;
+            }
+          }
+          dataLen = ioBuffer.getLength();
+          bufferIndex = 0;
+        }
+        final char[] ioChars = ioBuffer.getBuffer();
+        final int limit = dataLen;
+        int i = bufferIndex;
+        if (inRun) {
+          compactRun();
+          final int runEnd = Math.min(limit, i + MAX_RUN - runLen);
+          run = ArrayUtil.grow(run, runLen + runEnd - i);
+          while (i < runEnd && !isKhmer(ioChars[i]))
+            run[runLen++] = ioChars[i++];
+          bufferIndex = i;
+          if (i < limit) {
+            segmentRun(isKhmer(ioChars[i]));
+            if (wordIdx < nbWords)
+              return nextWord();
+          }
+          continue;
+        }
+        while (i < limit) {
+          final char c = ioChars[i];
+          if (length == 0 && !isKhmer(c)) {
+            if (Character.isLetterOrDigit(c) || Character.isHighSurrogate(c)) {
+              inRun = true;
+              runStart = offset + i;
+              runLen = 0;
+              bufferIndex = i;
+              continue scan;
+            }
+            i += 1;
+            continue;
+          }
+          // ZWNJ and ZWJ can be inside a cluster
+          final int charcat = isKhmer(c) || c == '\u200C' || c == '\u200D' ? GraphemeClusterTokenizer.category(c) : GraphemeClusterTokenizer.CHCAT_IGNORE;
+          if (charcat == GraphemeClusterTokenizer.CHCAT_IGNORE) {
+            // the char is not consumed, it can start a non-Khmer run
+            if (length > 0) {
+              bufferIndex = i;
+              break scan;
+            }
+            i += 1;
+            continue;
+          }
+          final int tr = GraphemeClusterTokenizer.transition(state, charcat);
+          // break before the char
+          if ((tr & GraphemeClusterTokenizer.TR_BREAK) != 0 && length > 0) {
+            bufferIndex = i;
+            break scan;
+          }
+          state = tr & GraphemeClusterTokenizer.TR_STATE_MASK;
+          if (length == 0) { // start of token
+            start = offset + i;
+            end = start;
+          } else if (length >= buffer.length - 1) {
+            buffer = termAtt.resizeBuffer(2 + length);
+          }
+          end += 1;
+          buffer[length++] = c;
+          i += 1;
+          if (length >= maxTokenLen) {
+            bufferIndex = i;
+            break scan;
+          }
+        }
+        bufferIndex = i;
+      }
+
+      termAtt.setLength(length);
+      offsetAtt.setOffset(correctOffset(start), finalOffset = correctOffset(end));
+      scriptAtt.setScript(UnicodeScript.KHMER);
+      return true;
+    }
+
+    // removes the part of the run before runKeep, when its words have been output
+    private void compactRun() {
+        if (runKeep == -1)
+            return;
+        System.arraycopy(run, runKeep, run, 0, runLen - runKeep);
+        runStart += runKeep;
+        runLen -= runKeep;
+        runKeep = -1;
+    }
+
+    // splits the run in words, if the run is not complete the part after its last
+    // whitespace is kept for the next piece: the boundaries found by the BreakIterator
+    // before a word with punctuation ("foo-bar", "don't") depend on what follows it
+    private void segmentRun(final boolean complete) {
+        compactRun();
+        nbWords = 0;
+        wordIdx = 0;
+        final int safeEnd = complete ? runLen : safeEnd();
+        wrapper.setText(run, 0, safeEnd == 0 ? runLen : safeEnd);
+        wordBreaker.setText(wrapper);
+        int wordStart = wordBreaker.first();
+        for (int wordEnd = wordBreaker.next() ; wordEnd != BreakIterator.DONE ; wordStart = wordEnd, wordEnd = wordBreaker.next()) {
+            // no whitespace: cut at the last boundary, a word can't be cut if there is no
+            // other boundary in the piece
+            if (safeEnd == 0 && wordEnd == runLen && wordStart > 0) {
+                runKeep = wordStart;
+                return;
+            }
+            if (!hasLetterOrDigit(run, wordStart, wordEnd))
+                continue;
+            if (nbWords == wordStarts.length) {
+                wordStarts = ArrayUtil.grow(wordStarts);
+                wordEnds = ArrayUtil.grow(wordEnds, wordStarts.length);
+            }
+            wordStarts[nbWords] = wordStart;
+            wordEnds[nbWords] = wordEnd;
+            nbWords += 1;
+        }
+        if (complete)
+            inRun = false;
+        else
+            runKeep = safeEnd == 0 ? runLen : safeEnd;
+    }
+
+    // the end of the last whitespace of the run, 0 if it has none
+    private int safeEnd() {
+        for (int i = runLen ; i > 0 ; i--) {
+            if (Character.isWhitespace(run[i - 1]))
+                return i;
+        }
+        return 0;
+    }
+
+    private static boolean hasLetterOrDigit(final char[] chars, final int start, final int end) {
+        for (int i = start ; i < end ; i++) {
+            if (Character.isLetterOrDigit(Character.codePointAt(chars, i, end)))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean nextWord() {
+        final int start = wordStarts[wordIdx];
+        final int end = wordEnds[wordIdx];
+        wordIdx += 1;
+        termAtt.copyBuffer(run, start, end - start);
+        offsetAtt.setOffset(correctOffset(runStart + start), finalOffset = correctOffset(runStart + end));
+        // the script of the first letter, COMMON if there are only digits
+        UnicodeScript script = UnicodeScript.COMMON;
+        boolean hasLetter = false;
+        for (int i = start ; i < end ; ) {
+            final int cp = Character.codePointAt(run, i, end);
+            if (Character.isLetter(cp)) {
+                hasLetter = true;
+                script = UnicodeScript.of(cp);
+                break;
+            }
+            i += Character.charCount(cp);
+        }
+        scriptAtt.setScript(script);
+        typeAtt.setType(hasLetter ? TYPE_ALPHANUM : TYPE_NUM);
+        return true;
+    }
+
+    @Override
+    public void end() throws IOException {
+      super.end();
+      // set final offset
+      offsetAtt.setOffset(finalOffset, finalOffset);
+    }
+
+    @Override
+    public void reset() throws IOException {
+      super.reset();
+      bufferIndex = 0;
+      offset = 0;
+      dataLen = 0;
+      finalOffset = 0;
+      ioBuffer.reset(); // make sure to reset the IO buffer!!
+      inRun = false;
+      runLen = 0;
+      runKeep = -1;
+      nbWords = 0;
+      wordIdx = 0;
+    }
+
+}
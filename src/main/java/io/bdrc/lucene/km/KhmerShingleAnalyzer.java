@@ -0,0 +1,49 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.shingle.ShingleFilter;
+
+/**
+ * Analyzer producing the sequences of 2 to maxShingleSize adjacent grapheme clusters
+ * (without the clusters themselves), meant to be used on a companion field of a field
+ * analyzed with KhmerAnalyzer. Queries on the two fields can be built with
+ * KhmerShingleQueryBuilder.
+ */
+public class KhmerShingleAnalyzer extends KhmerAnalyzer {
+
+    public static final int DEFAULT_MAX_SHINGLE_SIZE = 3;
+    // clusters never contain spaces
+    public static final String SEPARATOR = " ";
+
+    final int maxShingleSize;
+
+    public KhmerShingleAnalyzer() throws IOException {
+        this(1, DEFAULT_MAX_SHINGLE_SIZE);
+    }
+
+    public KhmerShingleAnalyzer(int normalizationlevel) throws IOException {
+        this(normalizationlevel, DEFAULT_MAX_SHINGLE_SIZE);
+    }
+
+    public KhmerShingleAnalyzer(int normalizationlevel, int maxShingleSize) throws IOException {
+        super(normalizationlevel);
+        if (maxShingleSize < 2)
+            throw new IllegalArgumentException("maxShingleSize must be at least 2");
+        this.maxShingleSize = maxShingleSize;
+    }
+
+    public int getMaxShingleSize() {
+        return maxShingleSize;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(final String fieldName) {
+        final TokenStreamComponents clusters = super.createComponents(fieldName);
+        final ShingleFilter shingles = new ShingleFilter(clusters.getTokenStream(), 2, this.maxShingleSize);
+        shingles.setOutputUnigrams(false);
+        shingles.setTokenSeparator(SEPARATOR);
+        return new TokenStreamComponents(clusters.getSource(), shingles);
+    }
+
+}
@@ -0,0 +1,151 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.QueryBuilder;
+
+/**
+ * QueryBuilder using the shingles of KhmerShingleAnalyzer for exact phrases.
+ *
+ * The field must be analyzed with KhmerAnalyzer (the analyzer of this query builder)
+ * and the field with the shingleFieldSuffix with KhmerShingleAnalyzer. A phrase of
+ * up to maxShingleSize clusters becomes a single term query on the shingle field, a longer
+ * phrase becomes a phrase query on a few shingles covering it, which are much less frequent
+ * than the clusters. When verifyPositions is false, long phrases are only a conjunction of
+ * the shingles, which is faster but can match the shingles in a different order.
+ *
+ * The boolean queries (createBooleanQuery() and createMinShouldMatchQuery(), used by the
+ * query parsers for the text that is not quoted) group the contiguous clusters the same
+ * way: each run of clusters not separated by spaces or punctuation becomes the query of the
+ * run on the shingle field, and the runs are combined with the operator of the query.
+ *
+ * Phrases with a slop or gaps use the regular phrase query on the cluster field.
+ */
+public class KhmerShingleQueryBuilder extends QueryBuilder {
+
+    public static final String DEFAULT_SHINGLE_FIELD_SUFFIX = "_shingles";
+
+    final String shingleFieldSuffix;
+    final int maxShingleSize;
+    boolean verifyPositions = true;
+
+    public KhmerShingleQueryBuilder(final Analyzer analyzer) {
+        this(analyzer, DEFAULT_SHINGLE_FIELD_SUFFIX, KhmerShingleAnalyzer.DEFAULT_MAX_SHINGLE_SIZE);
+    }
+
+    public KhmerShingleQueryBuilder(final Analyzer analyzer, final String shingleFieldSuffix, final int maxShingleSize) {
+        super(analyzer);
+        if (maxShingleSize < 2)
+            throw new IllegalArgumentException("maxShingleSize must be at least 2");
+        this.shingleFieldSuffix = shingleFieldSuffix;
+        this.maxShingleSize = maxShingleSize;
+    }
+
+    public boolean getVerifyPositions() {
+        return verifyPositions;
+    }
+
+    public void setVerifyPositions(final boolean verifyPositions) {
+        this.verifyPositions = verifyPositions;
+    }
+
+    @Override
+    protected Query analyzePhrase(final String field, final TokenStream stream, final int slop) throws IOException {
+        if (slop != 0)
+            return super.analyzePhrase(field, stream, slop);
+        final List<String> clusters = new ArrayList<>();
+        final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        final PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+        boolean hasGaps = false;
+        stream.reset();
+        while (stream.incrementToken()) {
+            if (!clusters.isEmpty() && posIncAtt.getPositionIncrement() != 1)
+                hasGaps = true;
+            clusters.add(termAtt.toString());
+        }
+        if (hasGaps) {
+            // the stream is a CachingTokenFilter and can be read again
+            return super.analyzePhrase(field, stream, slop);
+        }
+        return createShingleQuery(field, clusters);
+    }
+
+    @Override
+    protected Query analyzeMultiBoolean(final String field, final TokenStream stream, final BooleanClause.Occur operator) throws IOException {
+        // the runs of contiguous clusters
+        final List<List<String>> runs = new ArrayList<>();
+        final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        final PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+        final OffsetAttribute offsetAtt = stream.addAttribute(OffsetAttribute.class);
+        int previousEnd = -1;
+        stream.reset();
+        while (stream.incrementToken()) {
+            // several tokens at the same position: regular query on the cluster field
+            if (posIncAtt.getPositionIncrement() == 0)
+                return super.analyzeMultiBoolean(field, stream, operator);
+            if (posIncAtt.getPositionIncrement() != 1 || offsetAtt.startOffset() != previousEnd)
+                runs.add(new ArrayList<>());
+            runs.get(runs.size() - 1).add(termAtt.toString());
+            previousEnd = offsetAtt.endOffset();
+        }
+        if (runs.size() == 1)
+            return createShingleQuery(field, runs.get(0));
+        final BooleanQuery.Builder builder = newBooleanQuery();
+        for (final List<String> run : runs)
+            builder.add(createShingleQuery(field, run), operator);
+        return builder.build();
+    }
+
+    /**
+     * Returns the query matching the sequence of clusters, using the shingle field.
+     */
+    public Query createShingleQuery(final String field, final List<String> clusters) {
+        final int nbClusters = clusters.size();
+        if (nbClusters == 0)
+            return null;
+        if (nbClusters == 1)
+            return newTermQuery(new Term(field, clusters.get(0)), 1f);
+        final String shingleField = field + shingleFieldSuffix;
+        if (nbClusters <= maxShingleSize)
+            return newTermQuery(new Term(shingleField, shingle(clusters, 0, nbClusters)), 1f);
+        // non-overlapping shingles, the last one ending with the last cluster
+        final PhraseQuery.Builder phraseBuilder = new PhraseQuery.Builder();
+        final BooleanQuery.Builder booleanBuilder = new BooleanQuery.Builder();
+        int start = 0;
+        while (true) {
+            final Term term = new Term(shingleField, shingle(clusters, start, maxShingleSize));
+            if (verifyPositions)
+                phraseBuilder.add(term, start);
+            else
+                booleanBuilder.add(new TermQuery(term), BooleanClause.Occur.MUST);
+            if (start + maxShingleSize == nbClusters)
+                break;
+            start = Math.min(start + maxShingleSize, nbClusters - maxShingleSize);
+        }
+        return verifyPositions ? phraseBuilder.build() : booleanBuilder.build();
+    }
+
+    static String shingle(final List<String> clusters, final int start, final int size) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = start ; i < start + size ; i++) {
+            if (i > start)
+                sb.append(KhmerShingleAnalyzer.SEPARATOR);
+            sb.append(clusters.get(i));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,178 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Groups the grapheme clusters produced by GraphemeClusterTokenizer and CharReorderFilter
+ * into orthographic syllables by attaching final consonants to the preceding cluster, for
+ * instance "ខ្ញុំ", "ច", "ង់", "ធ្វើ", "កា", "រ" becomes "ខ្ញុំ", "ចង់", "ធ្វើ", "ការ".
+ *
+ * Following the structure of the syllable in chapter 16 of the Unicode standard, a cluster
+ * is attached to the preceding one (if they are contiguous in the text) when it is a
+ * consonant followed only by signs marking a final consonant (bantoc, toandakhiat or
+ * robat), or when it is a consonant alone that is not followed by another consonant alone
+ * (two consonants alone, as in "ករ", usually form a syllable with an inherent vowel).
+ * A cluster takes at most one final consonant, and none if it starts with something else
+ * than a base or already ends with a sign closing the syllable (nikahit, reahmuk, etc.).
+ *
+ * This is a rule-based approximation: it doesn't know the pronunciation of words.
+ */
+public class KhmerSyllableFilter extends TokenFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+
+    // a token read from the input
+    private static final class Cluster {
+        char[] chars = new char[16];
+        int len, startOffset, endOffset, posInc;
+        String type;
+    }
+
+    // the syllable being built and the clusters read after it (at most 2)
+    private final Cluster syllable = new Cluster();
+    private Cluster next1 = new Cluster();
+    private Cluster next2 = new Cluster();
+    private int nbNext = 0;
+    private boolean inputDone = false;
+
+    public KhmerSyllableFilter(final TokenStream input) {
+        super(input);
+    }
+
+    static final boolean isConsonant(final char c) {
+        return c >= '\u1780' && c <= '\u17A2';
+    }
+
+    // signs marking a final consonant: robat, bantoc, toandakhiat
+    static final boolean isFinalMark(final char c) {
+        return c == '\u17CB' || c == '\u17CC' || c == '\u17CD';
+    }
+
+    // nikahit, reahmuk, yuukaleapintu and the final marks close the syllable
+    static final boolean isClosing(final char c) {
+        return (c >= '\u17C6' && c <= '\u17C8') || isFinalMark(c);
+    }
+
+    static final boolean isBareConsonant(final Cluster c) {
+        return isBareConsonant(c.chars, 0, c.len);
+    }
+
+    static final boolean isMarkedFinal(final Cluster c) {
+        return isMarkedFinal(c.chars, 0, c.len);
+    }
+
+    static final boolean canTakeFinal(final Cluster c) {
+        return canTakeFinal(c.chars, 0, c.len);
+    }
+
+    // the same on the cluster between start and end in chars (see KhmerTransliterationFilter)
+    static final boolean isBareConsonant(final char[] chars, final int start, final int end) {
+        return end - start == 1 && isConsonant(chars[start]);
+    }
+
+    static final boolean isMarkedFinal(final char[] chars, final int start, final int end) {
+        if (end - start < 2 || !isConsonant(chars[start]))
+            return false;
+        for (int i = start + 1 ; i < end ; i++) {
+            if (!isFinalMark(chars[i]))
+                return false;
+        }
+        return true;
+    }
+
+    static final boolean canTakeFinal(final char[] chars, final int start, final int end) {
+        if (chars[start] < '\u1780' || chars[start] > '\u17B3' || chars[end - 1] == '\u17D2')
+            return false;
+        for (int i = start + 1 ; i < end ; i++) {
+            if (isClosing(chars[i]))
+                return false;
+        }
+        return true;
+    }
+
+    // reads the next token of the input in c
+    private boolean read(final Cluster c) throws IOException {
+        if (inputDone || !input.incrementToken()) {
+            inputDone = true;
+            return false;
+        }
+        c.len = termAtt.length();
+        c.chars = ArrayUtil.grow(c.chars, c.len);
+        System.arraycopy(termAtt.buffer(), 0, c.chars, 0, c.len);
+        c.startOffset = offsetAtt.startOffset();
+        c.endOffset = offsetAtt.endOffset();
+        c.posInc = posIncAtt.getPositionIncrement();
+        c.type = typeAtt.type();
+        return true;
+    }
+
+    // makes next2 the first lookahead cluster
+    private void shift() {
+        final Cluster tmp = next1;
+        next1 = next2;
+        next2 = tmp;
+        nbNext -= 1;
+    }
+
+    private void copy(final Cluster from, final Cluster to) {
+        to.len = from.len;
+        to.chars = ArrayUtil.grow(to.chars, from.len);
+        System.arraycopy(from.chars, 0, to.chars, 0, from.len);
+        to.startOffset = from.startOffset;
+        to.endOffset = from.endOffset;
+        to.posInc = from.posInc;
+        to.type = from.type;
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        if (nbNext > 0) {
+            copy(next1, syllable);
+            shift();
+        } else if (!read(syllable)) {
+            return false;
+        }
+        if (nbNext == 0 && read(next1))
+            nbNext = 1;
+        if (nbNext > 0 && next1.startOffset == syllable.endOffset && canTakeFinal(syllable)) {
+            boolean attach = isMarkedFinal(next1);
+            if (!attach && isBareConsonant(next1)) {
+                if (nbNext == 1 && read(next2))
+                    nbNext = 2;
+                attach = nbNext < 2 || next2.startOffset != next1.endOffset || !isBareConsonant(next2);
+            }
+            if (attach) {
+                syllable.chars = ArrayUtil.grow(syllable.chars, syllable.len + next1.len);
+                System.arraycopy(next1.chars, 0, syllable.chars, syllable.len, next1.len);
+                syllable.len += next1.len;
+                syllable.endOffset = next1.endOffset;
+                shift();
+            }
+        }
+        clearAttributes();
+        termAtt.copyBuffer(syllable.chars, 0, syllable.len);
+        offsetAtt.setOffset(syllable.startOffset, syllable.endOffset);
+        posIncAtt.setPositionIncrement(syllable.posInc);
+        typeAtt.setType(syllable.type);
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        nbNext = 0;
+        inputDone = false;
+    }
+
+}
@@ -0,0 +1,46 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+
+/**
+ * KhmerAnalyzer romanizing its tokens with KhmerTransliterationFilter, either as stacked
+ * tokens (so that a single field can be queried in Khmer or in Latin script) or in place
+ * of the Khmer tokens. The tokens are the words of the lexicon of the options, or
+ * syllables (see KhmerSyllableFilter) if there is no lexicon, as romanized text is
+ * typed by syllable or by word.
+ *
+ * Queries in Latin script can be analyzed with a non-stacked KhmerTransliterationAnalyzer
+ * if they are typed in Khmer, or with a simple lowercasing analyzer if they are typed in
+ * Latin script, for instance "Phnum Penh" as a phrase query matches "ភ្នំពេញ" (the
+ * romanized tokens are not segmented, so they must be typed with the same granularity
+ * as the index, syllables or words of the lexicon).
+ */
+public class KhmerTransliterationAnalyzer extends KhmerAnalyzer {
+
+    final KhmerTransliterationFilter.Scheme scheme;
+    final boolean stacked;
+
+    public KhmerTransliterationAnalyzer() throws IOException {
+        this(new Options(), KhmerTransliterationFilter.Scheme.UNGEGN, true);
+    }
+
+    /**
+     * @param options the options of the analyzer, the lexicon segments words, the text is
+     * segmented in syllables without a lexicon
+     * @param stacked true to output the romanized tokens after the Khmer ones, false to
+     * replace them
+     */
+    public KhmerTransliterationAnalyzer(Options options, KhmerTransliterationFilter.Scheme scheme, boolean stacked) {
+        super(options);
+        this.syllables = this.lexicon == null;
+        this.scheme = scheme;
+        this.stacked = stacked;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(final String fieldName) {
+        final TokenStreamComponents khmer = super.createComponents(fieldName);
+        return new TokenStreamComponents(khmer.getSource(), new KhmerTransliterationFilter(khmer.getTokenStream(), this.scheme, this.stacked));
+    }
+
+}
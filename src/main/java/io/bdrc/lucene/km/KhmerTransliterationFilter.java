@@ -0,0 +1,321 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Romanizes the tokens of KhmerSyllableFilter (syllables) or WordSegmentationFilter
+ * (words). The romanized tokens are either output after the Khmer tokens at the same
+ * position (stacked, with the type &lt;LATIN&gt;), or replace them. The tokens of
+ * CharReorderFilter (clusters) can be romanized too, but romanized text is typed by
+ * syllable or by word, not by cluster ("ពេញ" is typed "penh", not "pe nh").
+ *
+ * The romanization is a lookup in precomputed tables, one entry per char, and relies on
+ * the canonical order of the chars: the vowels come after the consonant and the register
+ * shifter they depend on. Two schemes are available:
+ *
+ * - UNGEGN: the ASCII romanization commonly used to type Khmer, close to the UNGEGN system
+ *   without its diacritics, where the vowels depend on the series of the consonant
+ *   (for instance the syllables "ភ្នំ", "ពេញ", "ចង់" → "phnum", "penh", "chang")
+ * - INDIC: the transliteration used for Pali and Sanskrit, close to ALA-LC, with diacritics
+ *   (for instance "ធម៌" → "dharm")
+ *
+ * The inherent vowel is added after the base consonant of the syllables with no written
+ * vowel, "a" or "o" depending on the series in UNGEGN, always "a" in INDIC. The syllables
+ * of a token (a word, or a syllable and its final consonant) are found with the rules of
+ * KhmerSyllableFilter.
+ *
+ * To index the romanized text in a separate field in the same analysis pass, the Khmer
+ * token stream can be wrapped in a TeeSinkTokenFilter, the field of the tee must then
+ * be added to the document before the field of the sink (wrapped in a non-stacked
+ * KhmerTransliterationFilter).
+ */
+public class KhmerTransliterationFilter extends TokenFilter {
+
+    public static final String TYPE_LATIN = "<LATIN>";
+
+    // the romanization of a char has at most that many chars
+    static final int MAX_CHAR_LEN = 4;
+
+    static final int SERIES_A = 0;
+    static final int SERIES_O = 1;
+
+    public enum Scheme {
+        UNGEGN(new String[][] {
+            // consonants, series A then O
+            {"\u1780", "k", "A"}, {"\u1781", "kh", "A"}, {"\u1782", "k", "O"}, {"\u1783", "kh", "O"}, // ក ខ គ ឃ
+            {"\u1784", "ng", "O"}, {"\u1785", "ch", "A"}, {"\u1786", "chh", "A"}, {"\u1787", "ch", "O"}, // ង ច ឆ ជ
+            {"\u1788", "chh", "O"}, {"\u1789", "nh", "O"}, {"\u178A", "d", "A"}, {"\u178B", "th", "A"}, // ឈ ញ ដ ឋ
+            {"\u178C", "d", "O"}, {"\u178D", "th", "O"}, {"\u178E", "n", "A"}, {"\u178F", "t", "A"}, // ឌ ឍ ណ ត
+            {"\u1790", "th", "A"}, {"\u1791", "t", "O"}, {"\u1792", "th", "O"}, {"\u1793", "n", "O"}, // ថ ទ ធ ន
+            {"\u1794", "b", "A"}, {"\u1795", "ph", "A"}, {"\u1796", "p", "O"}, {"\u1797", "ph", "O"}, // ប ផ ព ភ
+            {"\u1798", "m", "O"}, {"\u1799", "y", "O"}, {"\u179A", "r", "O"}, {"\u179B", "l", "O"}, // ម យ រ ល
+            {"\u179C", "v", "O"}, {"\u179D", "s", "A"}, {"\u179E", "s", "A"}, {"\u179F", "s", "A"}, // វ ឝ ឞ ស
+            {"\u17A0", "h", "A"}, {"\u17A1", "l", "A"}, {"\u17A2", "", "A"}, // ហ ឡ អ
+            // independent vowels
+            {"\u17A3", "a", "A"}, {"\u17A4", "aa", "A"}, {"\u17A5", "e", "A"}, {"\u17A6", "ei", "A"}, // ឣ ឤ ឥ ឦ
+            {"\u17A7", "o", "A"}, {"\u17A8", "ouk", "A"}, {"\u17A9", "ou", "A"}, {"\u17AA", "au", "A"}, // ឧ ឨ ឩ ឪ
+            {"\u17AB", "rue", "A"}, {"\u17AC", "rueu", "A"}, {"\u17AD", "lue", "A"}, {"\u17AE", "lueu", "A"}, // ឫ ឬ ឭ ឮ
+            {"\u17AF", "ae", "A"}, {"\u17B0", "ai", "A"}, {"\u17B1", "ao", "A"}, {"\u17B2", "ao", "A"}, // ឯ ឰ ឱ ឲ
+            {"\u17B3", "au", "A"}, // ឳ
+            // dependent vowels: series A, series O
+            {"\u17B6", "a", "ea"}, {"\u17B7", "e", "i"}, {"\u17B8", "ei", "i"}, {"\u17B9", "oe", "ue"}, // ា ិ ី ឹ
+            {"\u17BA", "eu", "ueu"}, {"\u17BB", "o", "u"}, {"\u17BC", "ou", "u"}, {"\u17BD", "uo", "uo"}, // ឺ ុ ូ ួ
+            {"\u17BE", "aeu", "eu"}, {"\u17BF", "oea", "oea"}, {"\u17C0", "ie", "ie"}, {"\u17C1", "e", "e"}, // ើ ឿ ៀ េ
+            {"\u17C2", "ae", "eae"}, {"\u17C3", "ai", "ey"}, {"\u17C4", "ao", "o"}, {"\u17C5", "au", "ov"}, // ែ ៃ ោ ៅ
+            // signs
+            {"\u17C6", "am", "um"}, {"\u17C7", "h", "h"}, {"\u17C8", "h", "h"}, {"\u17CC", "r", "r"}, // ំ ះ ៈ ៌
+            {"\u17D0", "a", "a"}, // ័
+        }, new String[] {"om", "um"}, new String[] {"am", "oam"}, new String[] {"a", "o"}, true),
+        INDIC(new String[][] {
+            {"\u1780", "k", "A"}, {"\u1781", "kh", "A"}, {"\u1782", "g", "O"}, {"\u1783", "gh", "O"}, // ក k ខ kh គ g ឃ gh
+            {"\u1784", "\u1E45", "O"}, {"\u1785", "c", "A"}, {"\u1786", "ch", "A"}, {"\u1787", "j", "O"}, // ង ṅ ច c ឆ ch ជ j
+            {"\u1788", "jh", "O"}, {"\u1789", "\u00F1", "O"}, {"\u178A", "\u1E6D", "A"}, {"\u178B", "\u1E6Dh", "A"}, // ឈ jh ញ ñ ដ ṭ ឋ ṭh
+            {"\u178C", "\u1E0D", "O"}, {"\u178D", "\u1E0Dh", "O"}, {"\u178E", "\u1E47", "A"}, {"\u178F", "t", "A"}, // ឌ ḍ ឍ ḍh ណ ṇ ត t
+            {"\u1790", "th", "A"}, {"\u1791", "d", "O"}, {"\u1792", "dh", "O"}, {"\u1793", "n", "O"}, // ថ th ទ d ធ dh ន n
+            {"\u1794", "p", "A"}, {"\u1795", "ph", "A"}, {"\u1796", "b", "O"}, {"\u1797", "bh", "O"}, // ប p ផ ph ព b ភ bh
+            {"\u1798", "m", "O"}, {"\u1799", "y", "O"}, {"\u179A", "r", "O"}, {"\u179B", "l", "O"}, // ម m យ y រ r ល l
+            {"\u179C", "v", "O"}, {"\u179D", "\u015B", "A"}, {"\u179E", "\u1E63", "A"}, {"\u179F", "s", "A"}, // វ v ឝ ś ឞ ṣ ស s
+            {"\u17A0", "h", "A"}, {"\u17A1", "\u1E37", "A"}, {"\u17A2", "\u02BC", "A"}, // ហ h ឡ ḷ អ ʼ
+            {"\u17A3", "a", "A"}, {"\u17A4", "\u0101", "A"}, {"\u17A5", "i", "A"}, {"\u17A6", "\u012B", "A"}, // ឣ a ឤ ā ឥ i ឦ ī
+            {"\u17A7", "u", "A"}, {"\u17A8", "uk", "A"}, {"\u17A9", "\u016B", "A"}, {"\u17AA", "au", "A"}, // ឧ u ឨ uk ឩ ū ឪ au
+            {"\u17AB", "\u1E5B", "A"}, {"\u17AC", "\u1E5D", "A"}, {"\u17AD", "\u1E37", "A"}, {"\u17AE", "\u1E39", "A"}, // ឫ ṛ ឬ ṝ ឭ ḷ ឮ ḹ
+            {"\u17AF", "e", "A"}, {"\u17B0", "ai", "A"}, {"\u17B1", "o", "A"}, {"\u17B2", "o", "A"}, // ឯ e ឰ ai ឱ o ឲ o
+            {"\u17B3", "au", "A"}, // ឳ au
+            {"\u17B6", "\u0101", "\u0101"}, {"\u17B7", "i", "i"}, {"\u17B8", "\u012B", "\u012B"}, {"\u17B9", "\u1E8F", "\u1E8F"}, // ា ā ិ i ី ī ឹ ẏ
+            {"\u17BA", "\u0233", "\u0233"}, {"\u17BB", "u", "u"}, {"\u17BC", "\u016B", "\u016B"}, {"\u17BD", "ua", "ua"}, // ឺ ȳ ុ u ូ ū ួ ua
+            {"\u17BE", "oe", "oe"}, {"\u17BF", "\u1E8Fa", "\u1E8Fa"}, {"\u17C0", "ia", "ia"}, {"\u17C1", "e", "e"}, // ើ oe ឿ ẏa ៀ ia េ e
+            {"\u17C2", "ae", "ae"}, {"\u17C3", "ai", "ai"}, {"\u17C4", "o", "o"}, {"\u17C5", "au", "au"}, // ែ ae ៃ ai ោ o ៅ au
+            {"\u17C6", "\u1E43", "\u1E43"}, {"\u17C7", "\u1E25", "\u1E25"}, {"\u17C8", "\u1E25", "\u1E25"}, {"\u17CC", "r", "r"}, // ំ ṃ ះ ḥ ៈ ḥ ៌ r
+            {"\u17D0", "a", "a"}, // ័ a
+        }, null, null, new String[] {"a", "a"}, false);
+
+        // indexed by series and char - 0x1780, null for the chars that are copied as they are
+        final char[][][] table = new char[2][0x80][];
+        // series of the consonants and independent vowels
+        final byte[] series = new byte[0x80];
+        // ុំ and ាំ, by series, if they are not the concatenation of their chars
+        final char[][] uNikahit;
+        final char[][] aaNikahit;
+        // the inherent vowel, by series
+        final char[][] inherent;
+        // true if the romanization of nikahit includes a vowel
+        final boolean nikahitVowel;
+
+        Scheme(final String[][] entries, final String[] uNikahit, final String[] aaNikahit, final String[] inherent, final boolean nikahitVowel) {
+            for (final String[] entry : entries) {
+                final int idx = entry[0].charAt(0) - '\u1780';
+                if (idx <= 0x17B3 - 0x1780) {
+                    table[SERIES_A][idx] = table[SERIES_O][idx] = entry[1].toCharArray();
+                    series[idx] = (byte) (entry[2].equals("O") ? SERIES_O : SERIES_A);
+                } else {
+                    table[SERIES_A][idx] = entry[1].toCharArray();
+                    table[SERIES_O][idx] = entry[2].toCharArray();
+                }
+            }
+            // the other signs are not romanized, the punctuation and symbols are copied
+            for (int c = '\u17B4' ; c <= '\u17D3' ; c++) {
+                for (int s = 0 ; s < 2 ; s++) {
+                    if (table[s][c - '\u1780'] == null)
+                        table[s][c - '\u1780'] = new char[0];
+                }
+            }
+            // digits
+            for (int d = 0 ; d < 10 ; d++) {
+                table[SERIES_A][0x17E0 - 0x1780 + d] = table[SERIES_O][0x17E0 - 0x1780 + d] = new char[] {(char) ('0' + d)};
+                table[SERIES_A][0x17F0 - 0x1780 + d] = table[SERIES_O][0x17F0 - 0x1780 + d] = new char[] {(char) ('0' + d)};
+            }
+            this.uNikahit = uNikahit == null ? null : new char[][] {uNikahit[0].toCharArray(), uNikahit[1].toCharArray()};
+            this.aaNikahit = aaNikahit == null ? null : new char[][] {aaNikahit[0].toCharArray(), aaNikahit[1].toCharArray()};
+            this.inherent = new char[][] {inherent[0].toCharArray(), inherent[1].toCharArray()};
+            this.nikahitVowel = nikahitVowel;
+        }
+    }
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+
+    private final Scheme scheme;
+    private final boolean stacked;
+
+    // the romanized token, waiting to be output if latinLen != -1
+    private char[] latin = new char[64];
+    private int latinLen = -1;
+
+    public KhmerTransliterationFilter(final TokenStream input) {
+        this(input, Scheme.UNGEGN, true);
+    }
+
+    /**
+     * @param stacked true to output the romanized tokens after the Khmer ones, false to
+     * replace them
+     */
+    public KhmerTransliterationFilter(final TokenStream input, final Scheme scheme, final boolean stacked) {
+        super(input);
+        this.scheme = scheme;
+        this.stacked = stacked;
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        // the other attributes (offsets, etc.) are the ones of the Khmer token
+        if (latinLen != -1) {
+            termAtt.copyBuffer(latin, 0, latinLen);
+            posIncAtt.setPositionIncrement(0);
+            typeAtt.setType(TYPE_LATIN);
+            latinLen = -1;
+            return true;
+        }
+        int skippedPositions = 0;
+        while (input.incrementToken()) {
+            final char[] buffer = termAtt.buffer();
+            final int len = termAtt.length();
+            latin = ArrayUtil.grow(latin, len * MAX_CHAR_LEN);
+            final int newLen = transliterate(scheme, buffer, len, latin);
+            if (stacked) {
+                if (newLen > 0 && !sameChars(latin, newLen, buffer, len))
+                    latinLen = newLen;
+                return true;
+            }
+            // tokens with nothing to romanize (signs alone) are dropped
+            if (newLen == 0) {
+                skippedPositions += posIncAtt.getPositionIncrement();
+                continue;
+            }
+            termAtt.copyBuffer(latin, 0, newLen);
+            typeAtt.setType(TYPE_LATIN);
+            posIncAtt.setPositionIncrement(posIncAtt.getPositionIncrement() + skippedPositions);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean sameChars(final char[] a, final int aLen, final char[] b, final int bLen) {
+        if (aLen != bLen)
+            return false;
+        for (int i = 0 ; i < aLen ; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the romanization of the first len chars of in in out, returns its length. The
+     * length of out must be at least len * 4.
+     */
+    public static int transliterate(final Scheme scheme, final char[] in, final int len, final char[] out) {
+        int o = 0;
+        int series = SERIES_A;
+        boolean afterCoeng = false;
+        // the end of the current cluster, where its inherent vowel goes (-1 if it has none)
+        int end = 0;
+        int inherentAt = -1;
+        // true if the current cluster starts a syllable that can take a final consonant
+        boolean takesFinal = false;
+        for (int i = 0 ; i < len ; i++) {
+            final char c = in[i];
+            if (i == inherentAt) {
+                o = appendInherent(scheme, series, out, o);
+                inherentAt = -1;
+            }
+            if (i >= end) {
+                end = clusterEnd(in, i, len);
+                final boolean isFinal = takesFinal && isFinal(in, i, end, len);
+                takesFinal = !isFinal && KhmerSyllableFilter.canTakeFinal(in, i, end);
+                if (!isFinal && KhmerSyllableFilter.isConsonant(c))
+                    inherentAt = inherentPosition(scheme, in, i, end);
+            }
+            final int idx = c - '\u1780';
+            if (idx < 0 || idx >= 0x80) {
+                if (c != '\u200C' && c != '\u200D')
+                    out[o++] = c;
+                continue;
+            }
+            final char[] repl;
+            if (idx <= 0x17B3 - 0x1780) {
+                // the series is given by the base, not by the subscripts
+                if (!afterCoeng)
+                    series = scheme.series[idx];
+                // robat is written after the base but read before it
+                if (i + 1 < len && in[i + 1] == '\u17CC')
+                    out[o++] = 'r';
+                repl = scheme.table[series][idx];
+            } else if (c == '\u17C9' || c == '\u17CA' || c == '\u17CC') {
+                // register shifters, robat (already output)
+                if (c != '\u17CC')
+                    series = c == '\u17C9' ? SERIES_A : SERIES_O;
+                afterCoeng = false;
+                continue;
+            } else if (scheme.uNikahit != null && (c == '\u17BB' || c == '\u17B6') && i + 1 < len && in[i + 1] == '\u17C6') {
+                repl = c == '\u17BB' ? scheme.uNikahit[series] : scheme.aaNikahit[series];
+                i += 1;
+            } else {
+                repl = scheme.table[series][idx];
+            }
+            afterCoeng = c == '\u17D2';
+            if (repl == null) {
+                out[o++] = c;
+                continue;
+            }
+            System.arraycopy(repl, 0, out, o, repl.length);
+            o += repl.length;
+        }
+        if (inherentAt == len)
+            o = appendInherent(scheme, series, out, o);
+        return o;
+    }
+
+    private static int appendInherent(final Scheme scheme, final int series, final char[] out, final int o) {
+        final char[] vowel = scheme.inherent[series];
+        System.arraycopy(vowel, 0, out, o, vowel.length);
+        return o + vowel.length;
+    }
+
+    // the end of the cluster starting at start: the base, its subscripts and its signs
+    static int clusterEnd(final char[] in, final int start, final int len) {
+        int i = start + 1;
+        while (i < len && ((in[i] >= '\u17B4' && in[i] <= '\u17D3') || in[i] == '\u17DD'
+                || (in[i - 1] == '\u17D2' && in[i] >= '\u1780' && in[i] <= '\u17B3')))
+            i++;
+        return i;
+    }
+
+    // true if the cluster is the final consonant of the preceding one, as in KhmerSyllableFilter
+    static boolean isFinal(final char[] in, final int start, final int end, final int len) {
+        if (KhmerSyllableFilter.isMarkedFinal(in, start, end))
+            return true;
+        if (!KhmerSyllableFilter.isBareConsonant(in, start, end))
+            return false;
+        // two consonants alone form a syllable with an inherent vowel
+        return end == len || !KhmerSyllableFilter.isBareConsonant(in, end, clusterEnd(in, end, len));
+    }
+
+    // where the inherent vowel of the cluster goes (before its signs), -1 if it has a written vowel
+    static int inherentPosition(final Scheme scheme, final char[] in, final int start, final int end) {
+        int pos = end;
+        for (int i = end - 1 ; i > start ; i--) {
+            final char c = in[i];
+            if ((c >= '\u17B6' && c <= '\u17C5') || c == '\u17D0' || (c == '\u17C6' && scheme.nikahitVowel))
+                return -1;
+            // the subscripts, register shifters and robat come before the vowel
+            if (c >= '\u17C6' && c != '\u17C9' && c != '\u17CA' && c != '\u17CC' && c != '\u17D2')
+                pos = i;
+        }
+        return pos;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        latinLen = -1;
+    }
+
+}
@@ -0,0 +1,50 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Tokenizer;
+
+/**
+ * Analyzer tokenizing the text once (with level 1 normalization) and producing the
+ * level 1, 2 and 3 variants of each grapheme cluster as tokens at the same position,
+ * the level 2 and 3 variants being prefixed with a level marker (see
+ * NormalizationVariantsFilter). This replaces indexing the same text in one field per
+ * normalization level.
+ *
+ * Queries must be analyzed with KhmerVariantsQueryAnalyzer, the level of the query
+ * analyzer giving the looseness of the matching.
+ */
+public class KhmerVariantsAnalyzer extends KhmerAnalyzer {
+
+    final int maxLevel;
+
+    public KhmerVariantsAnalyzer() throws IOException {
+        this(3);
+    }
+
+    /**
+     * @param maxLevel the highest level of the variants (2 or 3)
+     */
+    public KhmerVariantsAnalyzer(int maxLevel) throws IOException {
+        this(maxLevel, null);
+    }
+
+    public KhmerVariantsAnalyzer(int maxLevel, ClusterCache clusterCache) throws IOException {
+        super(new Options().clusterCache(clusterCache));
+        if (maxLevel < 2 || maxLevel > 3)
+            throw new IllegalArgumentException("maxLevel must be 2 or 3");
+        this.maxLevel = maxLevel;
+    }
+
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(final String fieldName) {
+        // the variants filter does the reordering
+        final Tokenizer source = new GraphemeClusterTokenizer();
+        return new TokenStreamComponents(source, new NormalizationVariantsFilter(source, this.maxLevel, this.clusterCache));
+    }
+
+}
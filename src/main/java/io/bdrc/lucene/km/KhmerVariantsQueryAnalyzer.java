@@ -0,0 +1,89 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Analyzer of the queries on a field analyzed with KhmerVariantsAnalyzer: the query is
+ * normalized with the rules of the level, and each cluster is looked up in the variants of
+ * that level and of the stricter ones (a variant is only indexed when it differs from the
+ * stricter ones), as tokens at the same position. For instance at level 2 "ឡ" gives "ឡ" and
+ * LEVEL2_PREFIX + "ឡ", which match "ឡ" and "ទ្ប", while at level 1 it only matches "ឡ".
+ *
+ * The level must be at most the maxLevel of the KhmerVariantsAnalyzer of the index.
+ */
+public class KhmerVariantsQueryAnalyzer extends KhmerAnalyzer {
+
+    public KhmerVariantsQueryAnalyzer(int level) {
+        this(level, null);
+    }
+
+    /**
+     * @param level the level of the matching (1 to 3)
+     * @param clusterCache can be null
+     */
+    public KhmerVariantsQueryAnalyzer(int level, ClusterCache clusterCache) {
+        super(new Options().normalizationLevel(level).clusterCache(clusterCache));
+        if (level < 1 || level > 3)
+            throw new IllegalArgumentException("level must be 1, 2 or 3");
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(final String fieldName) {
+        final TokenStreamComponents clusters = super.createComponents(fieldName);
+        return new TokenStreamComponents(clusters.getSource(), new LevelPrefixFilter(clusters.getTokenStream(), this.normalizationlevel));
+    }
+
+    // adds the cluster prefixed with the marker of each level from 2 to maxLevel
+    static final class LevelPrefixFilter extends TokenFilter {
+
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+
+        private final int maxLevel;
+        private char[] cluster = new char[16];
+        private int clusterLen = 0;
+        // the level of the next token, 0 to read the next cluster
+        private int nextLevel = 0;
+
+        LevelPrefixFilter(final TokenStream input, final int maxLevel) {
+            super(input);
+            this.maxLevel = maxLevel;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (nextLevel != 0) {
+                final char[] buffer = termAtt.resizeBuffer(clusterLen + 1);
+                buffer[0] = nextLevel == 2 ? NormalizationVariantsFilter.LEVEL2_PREFIX : NormalizationVariantsFilter.LEVEL3_PREFIX;
+                System.arraycopy(cluster, 0, buffer, 1, clusterLen);
+                termAtt.setLength(clusterLen + 1);
+                posIncAtt.setPositionIncrement(0);
+                nextLevel = nextLevel == maxLevel ? 0 : nextLevel + 1;
+                return true;
+            }
+            if (!input.incrementToken())
+                return false;
+            if (maxLevel > 1) {
+                clusterLen = termAtt.length();
+                cluster = ArrayUtil.grow(cluster, clusterLen);
+                System.arraycopy(termAtt.buffer(), 0, cluster, 0, clusterLen);
+                nextLevel = 2;
+            }
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            nextLevel = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,180 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a UTF-8 file through a memory mapping, decoding the bytes directly in the
+ * buffer passed to read(): used as the input of GraphemeClusterTokenizer, this avoids
+ * the byte and char buffers of InputStreamReader and their copies. ASCII and the
+ * 3 bytes sequences of the Khmer block are decoded in a tight loop.
+ *
+ * The chars are the same as the ones of an InputStreamReader on the file, so the offsets
+ * of the tokens are positions in the decoded chars as usual. Chars outside of the BMP are
+ * decoded as surrogate pairs. Malformed sequences are replaced by U+FFFD, one per invalid
+ * byte (InputStreamReader sometimes uses a single U+FFFD for several bytes).
+ *
+ * Files larger than the window size (1GB by default) are mapped one window at a time.
+ */
+public class MappedUtf8Reader extends Reader {
+
+    public static final long DEFAULT_WINDOW_SIZE = 1L << 30;
+
+    private final FileChannel channel; // null when reading from a ByteBuffer
+    private final long size;
+    private final long windowSize;
+
+    // current window, starting at windowStart in the file
+    private ByteBuffer bytes;
+    private long windowStart = 0;
+    // second char of a surrogate pair that didn't fit in the previous read
+    private char pendingLowSurrogate = 0;
+
+    private final char[] singleChar = new char[1];
+
+    public MappedUtf8Reader(final Path path) throws IOException {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Reader mapping windowSize bytes of the file at a time (at least 4).
+     */
+    public MappedUtf8Reader(final Path path, final long windowSize) throws IOException {
+        if (windowSize < 4 || windowSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid window size: " + windowSize);
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        this.bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(windowSize, size));
+    }
+
+    /**
+     * Reader decoding the remaining bytes of a buffer (mapped or not).
+     */
+    public MappedUtf8Reader(final ByteBuffer bytes) {
+        this.channel = null;
+        this.bytes = bytes.slice();
+        this.size = this.bytes.remaining();
+        this.windowSize = size;
+    }
+
+    // maps the window starting at the current position, returns false at the end of the file
+    private boolean nextWindow() throws IOException {
+        final long position = windowStart + bytes.position();
+        if (channel == null || position >= size)
+            return false;
+        windowStart = position;
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+        return true;
+    }
+
+    @Override
+    public int read(final char[] cbuf, final int off, final int len) throws IOException {
+        if (len == 0)
+            return 0;
+        final int end = off + len;
+        int o = off;
+        if (pendingLowSurrogate != 0) {
+            cbuf[o++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+        while (true) {
+            final ByteBuffer buf = bytes;
+            final int limit = buf.limit();
+            // a sequence starting before safeLimit is complete in the window
+            final boolean lastWindow = windowStart + limit >= size;
+            final int safeLimit = lastWindow ? limit : limit - 3;
+            int p = buf.position();
+            while (o < end && p < safeLimit) {
+                final int b = buf.get(p);
+                if (b >= 0) {
+                    cbuf[o++] = (char) b;
+                    p += 1;
+                    continue;
+                }
+                // lead byte of U+1000 to U+1FFF (the Khmer blocks), no overlong
+                // form or surrogate possible
+                if (b == (byte) 0xE1 && p + 2 < limit) {
+                    final int b1 = buf.get(p + 1);
+                    final int b2 = buf.get(p + 2);
+                    if ((b1 & 0xC0) == 0x80 && (b2 & 0xC0) == 0x80) {
+                        cbuf[o++] = (char) (0x1000 | ((b1 & 0x3F) << 6) | (b2 & 0x3F));
+                        p += 3;
+                        continue;
+                    }
+                }
+                if ((b & 0xF0) == 0xE0) {
+                    // other 3 bytes sequences
+                    if (p + 2 < limit) {
+                        final int b1 = buf.get(p + 1);
+                        final int b2 = buf.get(p + 2);
+                        if ((b1 & 0xC0) == 0x80 && (b2 & 0xC0) == 0x80) {
+                            final int c = ((b & 0x0F) << 12) | ((b1 & 0x3F) << 6) | (b2 & 0x3F);
+                            // no overlong form, no surrogate
+                            if (c >= 0x800 && (c < 0xD800 || c > 0xDFFF)) {
+                                cbuf[o++] = (char) c;
+                                p += 3;
+                                continue;
+                            }
+                        }
+                    }
+                } else if ((b & 0xE0) == 0xC0) {
+                    if (p + 1 < limit) {
+                        final int b1 = buf.get(p + 1);
+                        final int c = ((b & 0x1F) << 6) | (b1 & 0x3F);
+                        if ((b1 & 0xC0) == 0x80 && c >= 0x80) {
+                            cbuf[o++] = (char) c;
+                            p += 2;
+                            continue;
+                        }
+                    }
+                } else if ((b & 0xF8) == 0xF0) {
+                    if (p + 3 < limit) {
+                        final int b1 = buf.get(p + 1);
+                        final int b2 = buf.get(p + 2);
+                        final int b3 = buf.get(p + 3);
+                        if ((b1 & 0xC0) == 0x80 && (b2 & 0xC0) == 0x80 && (b3 & 0xC0) == 0x80) {
+                            final int c = ((b & 0x07) << 18) | ((b1 & 0x3F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F);
+                            if (c >= 0x10000 && c <= Character.MAX_CODE_POINT) {
+                                cbuf[o++] = Character.highSurrogate(c);
+                                if (o < end)
+                                    cbuf[o++] = Character.lowSurrogate(c);
+                                else
+                                    pendingLowSurrogate = Character.lowSurrogate(c);
+                                p += 4;
+                                continue;
+                            }
+                        }
+                    }
+                }
+                // malformed
+                cbuf[o++] = '\uFFFD';
+                p += 1;
+            }
+            buf.position(p);
+            // continue in the next window if needed
+            if (o == end || p < safeLimit || lastWindow || !nextWindow())
+                break;
+        }
+        final int res = o - off;
+        return res == 0 ? -1 : res;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(singleChar, 0, 1) == -1 ? -1 : singleChar[0];
+    }
+
+    @Override
+    public void close() throws IOException {
+        bytes = ByteBuffer.allocate(0);
+        windowStart = size;
+        if (channel != null)
+            channel.close();
+    }
+
+}
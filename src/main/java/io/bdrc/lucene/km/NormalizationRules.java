@@ -0,0 +1,499 @@
+package io.bdrc.lucene.km;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The normalization rules of the 3 levels, and their compiled form: a trie over the
+ * chars of the rules, with a bitset of the chars that can start a rule.
+ *
+ * Matching follows the same semantics as MappingCharFilter: at each position the
+ * longest rule matching is applied, and the replacement is not matched again.
+ *
+ * The compiled rules can be saved and loaded back without compiling them again. The rules
+ * of the 3 levels are compiled at build time (by running main() on the output directory)
+ * in resources loaded on first use, custom rule files can be compiled with main() too:
+ *
+ *   java -cp lucene-km.jar io.bdrc.lucene.km.NormalizationRules rules.txt rules.bin
+ *
+ * A rule file has one rule per line: the source, a tab and the replacement, \\uXXXX escapes
+ * can be used. Empty lines and lines starting with # are ignored.
+ */
+public final class NormalizationRules {
+
+    // same display ("formally confusable")
+    static final String[][] LEVEL1 = {
+        {"\u17C1\u17B8", "\u17BE"}, // កេី=កើ
+        {"\u17C1\u17B6", "\u17C4"}, // កេា=កោ
+        {"\u17D2\u179A\u17D2", "\u17D2\u179A"}, // coeng rho must be the last coeng
+        // TODO: check
+        //{"\u17BB\u17D0", "\u17C9\u17D0"}, // samyok sannya causes downshifting so cannot occur with -u (មុ័=ម៉័)
+        {"\u17B4", ""}, // invisible, discouraged
+        {"\u17B5", ""}, // invisible, discouraged
+        {"\u17E2\u17D3", "\u19E0"}, // deprecated
+        {"\u17A3", "\u17A2"}, // deprecated
+        {"\u17A4", "\u17A2\u17B6"}, // deprecated
+        {"\u17A8", "\u17A7\u1780"}, // deprecated
+        {"\u17D8", "\u17D4\u179B\u17D4"}, // deprecated
+    };
+
+    // similar display ("informally confusable")
+    static final String[][] LEVEL2 = {
+        {"\u1791\u17D2\u1794", "\u17A1"}, // ទ្យ ~ ឡ
+        {"\u17BE\u17D2\u1799", "\u17BF"}, // កើ្យ ~ កឿ
+        {"\u17C1\u17B8\u17D2\u1799", "\u17BF"}, // កេី្យ ~ កឿ
+        {"\u17D2\u1799\u17BE", "\u17BF"}, // ក្យើ ~ កឿ
+        {"\u17C1\u17D2\u1799", "\u17C0"}, // កេ្យ ~ កៀ
+        {"\u1794\u17D2\u1789", "\u17AB"}, // ប្ញ ~ ឫ
+        {"\u17AD\u17B6", "\u1789"}, // ឭា ~ ញ
+        {"\u17AE\u17B6", "\u1789"}, // ឮា ~ ញ
+        {"\u1796\u17D2\u1789", "\u17AD"}, // ព្ញ ~ ឭ
+        {"\u1796\u17B6\u17D2\u1789", "\u1789"}, // ពា្ញ ~ ញ
+        {"\u1796\u17D2\u178B", "\u17D2\u1792"}, // ព្ឋ ~ ឰ
+        {"\u178A\u17D2\u178B", "\u178A\u17D2\u1792"}, // ដ្ឋ ~ ដ្ធ
+        {"\u1791\u17D2\u178B", "\u1791\u17D2\u1792"}, // ទ្ឋ ~ ទ្ធ
+        {"\u1796\u17D0\u1793\u17D2\u178B", "\u17D2\u1792"}, // ព័ន្ឋ ~ ព័ន្ធ
+        {"\u1796\u1793\u17D2\u178B", "\u17D2\u1792"}, // ពន្ឋ ~ ពន្ធ
+        {"\u17AA\u17D2\u1799", "\u17B1\u17D2\u1799"}, // ឪ្យ ~ ឱ្យ
+        {"\u17B3\u17D2\u1799", "\u17B1\u17D2\u1799"}, // ឳ្យ ~ ឱ្យ
+        {"\u17A7\u17B7", "\u17B1"}, // ឧិ ~ ឱ
+        {"\u17A7\u17CC", "\u17B1"}, // ឧ៌ ~ ឱ
+        {"\u17A7\u17CD", "\u17B1"}, // ឧ៍ ~ ឱ
+        {"\u178A\u17D2\u1792", "\u178A\u17D2\u178B"}, // ដ្ធ ~ ដ្ឋ
+        {"\u1789\u17D2\u179C", "\u1796\u17D2\u179C\u17B6"}, // ញ្វ ~ ព្វា
+        {":", "\u17C8"}, // common confusion
+        {"\u17D2\u178A", "\u17D2\u178F"}, // Coeng Da / Coeng Ta
+    };
+
+    static final String[][] LEVEL3 = {
+        {"\u17DD", "\u17D1"},
+        {"\u17B2", "\u17B1"},
+        {"\u17D3", "\u17D6"},
+        {"\u17E0", "0"},
+        {"\u17E1", "1"},
+        {"\u17E2", "2"},
+        {"\u17E3", "3"},
+        {"\u17E4", "4"},
+        {"\u17E5", "5"},
+        {"\u17E6", "6"},
+        {"\u17E7", "7"},
+        {"\u17E8", "8"},
+        {"\u17E9", "9"},
+        {"\u17C9", "\u17CA"}, // from examples in the document, ex: ស៉ី / ស៊ី or ស៉ើប / ស៊ើប
+        {"\u17A7\u17CA", "\u17A8"}, // ឧ៊ ~ ឨ
+    };
+
+    /**
+     * Returns the rules of a level (1, 2 or 3) as {from, to} pairs, including the rules
+     * of the lower levels.
+     */
+    public static List<String[]> getRules(final int level) {
+        final List<String[]> res = new ArrayList<>(Arrays.asList(LEVEL1));
+        if (level >= 2)
+            res.addAll(Arrays.asList(LEVEL2));
+        if (level >= 3)
+            res.addAll(Arrays.asList(LEVEL3));
+        return res;
+    }
+
+    // compiled format
+    static final int MAGIC = 0x4B4D4E52; // "KMNR"
+    static final int VERSION = 1;
+
+    static final String resourceName(final int level) {
+        return "normalization-level" + level + ".bin";
+    }
+
+    // loads the rules compiled at build time, or compiles them if they're not there
+    static NormalizationRules loadLevel(final int level) {
+        return loadLevel(level, NormalizationRules.class.getResourceAsStream(resourceName(level)));
+    }
+
+    // stream is null if the resource is absent, a resource that can't be read is an error
+    // (packaging problem) rather than a reason to compile the rules
+    static NormalizationRules loadLevel(final int level, final InputStream stream) {
+        if (stream == null)
+            return new NormalizationRules(getRules(level));
+        try (final InputStream in = stream) {
+            return load(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException("can't read the compiled normalization rules " + resourceName(level), e);
+        }
+    }
+
+    // lazy initialization by the class loader, each level is loaded on first use
+    private static final class Level1 {
+        static final NormalizationRules RULES = loadLevel(1);
+    }
+
+    private static final class Level2 {
+        static final NormalizationRules RULES = loadLevel(2);
+    }
+
+    private static final class Level3 {
+        static final NormalizationRules RULES = loadLevel(3);
+    }
+
+    /**
+     * Returns the compiled rules of a level (1, 2 or 3).
+     */
+    public static NormalizationRules get(final int level) {
+        if (level <= 1)
+            return Level1.RULES;
+        if (level == 2)
+            return Level2.RULES;
+        return Level3.RULES;
+    }
+
+    // chars that can start a rule
+    private final long[] startChars = new long[1024];
+    // the trie: children of node n are labels / targets [childStarts[n], childStarts[n+1])
+    private final int[] childStarts;
+    private final char[] labels;
+    private final int[] targets;
+    // rule index of the nodes that end a rule, -1 otherwise
+    private final int[] nodeRules;
+    private final String[] sources;
+    private final char[][] replacements;
+    final int maxLength;
+    final int maxReplacementLength;
+
+    private NormalizationRules(final String[] sources, final char[][] replacements, final long[] startChars, final int[] childStarts,
+            final char[] labels, final int[] targets, final int[] nodeRules) {
+        this.sources = sources;
+        this.replacements = replacements;
+        System.arraycopy(startChars, 0, this.startChars, 0, this.startChars.length);
+        this.childStarts = childStarts;
+        this.labels = labels;
+        this.targets = targets;
+        this.nodeRules = nodeRules;
+        int maxLen = 0;
+        int maxReplacementLen = 1;
+        for (int i = 0 ; i < sources.length ; i++) {
+            maxLen = Math.max(maxLen, sources[i].length());
+            maxReplacementLen = Math.max(maxReplacementLen, replacements[i].length);
+        }
+        this.maxLength = maxLen;
+        this.maxReplacementLength = maxReplacementLen;
+    }
+
+    /**
+     * Compiles a list of {from, to} rules.
+     */
+    public NormalizationRules(final List<String[]> rules) {
+        final Map<String, Integer> bySource = new TreeMap<>();
+        for (int i = 0 ; i < rules.size() ; i++) {
+            final String from = rules.get(i)[0];
+            if (from.isEmpty())
+                throw new IllegalArgumentException("normalization rules cannot have an empty source");
+            if (bySource.put(from, i) != null)
+                throw new IllegalArgumentException("source \"" + from + "\" was already added");
+        }
+        this.sources = new String[bySource.size()];
+        this.replacements = new char[bySource.size()][];
+        int ruleIdx = 0;
+        int maxLen = 0;
+        int maxReplacementLen = 1;
+        for (final Map.Entry<String, Integer> e : bySource.entrySet()) {
+            sources[ruleIdx] = e.getKey();
+            replacements[ruleIdx] = rules.get(e.getValue())[1].toCharArray();
+            maxLen = Math.max(maxLen, e.getKey().length());
+            maxReplacementLen = Math.max(maxReplacementLen, replacements[ruleIdx].length);
+            final char first = e.getKey().charAt(0);
+            startChars[first >>> 6] |= 1L << first;
+            ruleIdx += 1;
+        }
+        this.maxLength = maxLen;
+        this.maxReplacementLength = maxReplacementLen;
+        // build the trie breadth first so that the children of each node are contiguous,
+        // the sources are sorted so the children are sorted by label
+        final List<int[]> nodes = new ArrayList<>(); // {first rule, last rule (excl.), depth}
+        nodes.add(new int[] {0, sources.length, 0});
+        final List<Integer> childStartList = new ArrayList<>();
+        final List<Character> labelList = new ArrayList<>();
+        final List<Integer> targetList = new ArrayList<>();
+        final List<Integer> nodeRuleList = new ArrayList<>();
+        for (int n = 0 ; n < nodes.size() ; n++) {
+            final int[] node = nodes.get(n);
+            final int depth = node[2];
+            childStartList.add(labelList.size());
+            int rule = node[0];
+            // the rule ending at this node, if any, is first in sorted order
+            if (rule < node[1] && sources[rule].length() == depth) {
+                nodeRuleList.add(rule);
+                rule += 1;
+            } else {
+                nodeRuleList.add(-1);
+            }
+            while (rule < node[1]) {
+                final char label = sources[rule].charAt(depth);
+                int end = rule + 1;
+                while (end < node[1] && sources[end].charAt(depth) == label)
+                    end += 1;
+                labelList.add(label);
+                targetList.add(nodes.size());
+                nodes.add(new int[] {rule, end, depth + 1});
+                rule = end;
+            }
+        }
+        childStartList.add(labelList.size());
+        this.childStarts = childStartList.stream().mapToInt(Integer::intValue).toArray();
+        this.targets = targetList.stream().mapToInt(Integer::intValue).toArray();
+        this.nodeRules = nodeRuleList.stream().mapToInt(Integer::intValue).toArray();
+        this.labels = new char[labelList.size()];
+        for (int i = 0 ; i < labels.length ; i++)
+            labels[i] = labelList.get(i);
+    }
+
+    /**
+     * Returns true if a rule starts with c.
+     */
+    public final boolean canStart(final char c) {
+        return (startChars[c >>> 6] & (1L << c)) != 0;
+    }
+
+    /**
+     * Returns the index of the longest rule matching chars at position start
+     * (looking at chars up to end excluded), or -1 if no rule matches.
+     */
+    public final int longestMatch(final char[] chars, final int start, final int end) {
+        int node = 0;
+        int res = -1;
+        for (int i = start ; i < end ; i++) {
+            final char c = chars[i];
+            int child = -1;
+            for (int k = childStarts[node] ; k < childStarts[node + 1] ; k++) {
+                if (labels[k] == c) {
+                    child = targets[k];
+                    break;
+                }
+            }
+            if (child == -1)
+                break;
+            node = child;
+            if (nodeRules[node] != -1)
+                res = nodeRules[node];
+        }
+        return res;
+    }
+
+    /**
+     * Applies the rules to the first len chars of in, writes the result in out and
+     * returns its length. The length of out must be at least len * getMaxReplacementLength().
+     */
+    public final int normalize(final char[] in, final int len, final char[] out) {
+        int o = 0;
+        int i = 0;
+        while (i < len) {
+            final char c = in[i];
+            final int rule = canStart(c) ? longestMatch(in, i, len) : -1;
+            if (rule == -1) {
+                out[o++] = c;
+                i += 1;
+                continue;
+            }
+            final char[] repl = replacements[rule];
+            System.arraycopy(repl, 0, out, o, repl.length);
+            o += repl.length;
+            i += sources[rule].length();
+        }
+        return o;
+    }
+
+    public final int getMaxReplacementLength() {
+        return maxReplacementLength;
+    }
+
+    /**
+     * Saves the compiled rules, they can be loaded with load().
+     */
+    public void save(final OutputStream stream) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(sources.length);
+        for (int i = 0 ; i < sources.length ; i++) {
+            out.writeUTF(sources[i]);
+            out.writeUTF(new String(replacements[i]));
+        }
+        // the non-zero words of the bitset
+        int nbWords = 0;
+        for (final long l : startChars)
+            nbWords += l == 0 ? 0 : 1;
+        out.writeInt(nbWords);
+        for (int i = 0 ; i < startChars.length ; i++) {
+            if (startChars[i] != 0) {
+                out.writeShort(i);
+                out.writeLong(startChars[i]);
+            }
+        }
+        out.writeInt(labels.length);
+        for (int i = 0 ; i < labels.length ; i++) {
+            out.writeChar(labels[i]);
+            out.writeInt(targets[i]);
+        }
+        out.writeInt(nodeRules.length);
+        for (int n = 0 ; n < nodeRules.length ; n++) {
+            out.writeInt(childStarts[n]);
+            out.writeInt(nodeRules[n]);
+        }
+        out.writeInt(childStarts[nodeRules.length]);
+        out.flush();
+    }
+
+    /**
+     * Loads rules saved with save().
+     */
+    public static NormalizationRules load(final InputStream stream) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC)
+            throw new IOException("not compiled normalization rules");
+        final int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("unsupported version of compiled normalization rules: " + version);
+        final int nbRules = in.readInt();
+        final String[] sources = new String[nbRules];
+        final char[][] replacements = new char[nbRules][];
+        for (int i = 0 ; i < nbRules ; i++) {
+            sources[i] = in.readUTF();
+            replacements[i] = in.readUTF().toCharArray();
+        }
+        final long[] startChars = new long[1024];
+        final int nbWords = in.readInt();
+        for (int i = 0 ; i < nbWords ; i++) {
+            final int idx = in.readUnsignedShort();
+            if (idx >= startChars.length)
+                throw new IOException("invalid compiled normalization rules");
+            startChars[idx] = in.readLong();
+        }
+        final int nbLabels = in.readInt();
+        final char[] labels = new char[nbLabels];
+        final int[] targets = new int[nbLabels];
+        for (int i = 0 ; i < nbLabels ; i++) {
+            labels[i] = in.readChar();
+            targets[i] = in.readInt();
+        }
+        final int nbNodes = in.readInt();
+        final int[] childStarts = new int[nbNodes + 1];
+        final int[] nodeRules = new int[nbNodes];
+        for (int n = 0 ; n < nbNodes ; n++) {
+            childStarts[n] = in.readInt();
+            nodeRules[n] = in.readInt();
+        }
+        childStarts[nbNodes] = in.readInt();
+        return new NormalizationRules(sources, replacements, startChars, childStarts, labels, targets, nodeRules);
+    }
+
+    /**
+     * Reads a rule file (see above) as {from, to} pairs.
+     */
+    public static List<String[]> readRuleFile(final Reader reader) throws IOException {
+        final List<String[]> res = new ArrayList<>();
+        final BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.trim().isEmpty() || line.startsWith("#"))
+                continue;
+            final int tabIdx = line.indexOf('\t');
+            if (tabIdx == -1)
+                throw new IOException("normalization rule without tab: " + line);
+            res.add(new String[] {unescape(line.substring(0, tabIdx)), unescape(line.substring(tabIdx + 1))});
+        }
+        return res;
+    }
+
+    static String unescape(final String s) throws IOException {
+        if (s.indexOf('\\') == -1)
+            return s;
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0 ; i < s.length() ; i++) {
+            final char c = s.charAt(i);
+            if (c == '\\' && i + 5 < s.length() && s.charAt(i + 1) == 'u') {
+                try {
+                    sb.append((char) Integer.parseInt(s.substring(i + 2, i + 6), 16));
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid escape in normalization rule: " + s, e);
+                }
+                i += 5;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // inverse of unescape, for the chars outside of printable ASCII
+    static String escape(final String s) {
+        final StringBuilder sb = new StringBuilder(s.length() * 6);
+        for (int i = 0 ; i < s.length() ; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x20 || c > 0x7E || c == '\\')
+                sb.append(String.format("\\u%04X", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * With one argument, saves the compiled rules of the 3 levels in the directory given
+     * as argument (done at build time). With two arguments, compiles the rule file given as
+     * first argument into the file given as second argument.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length == 1) {
+            final Path dir = Paths.get(args[0]);
+            Files.createDirectories(dir);
+            for (int level = 1 ; level <= 3 ; level++) {
+                try (final OutputStream out = Files.newOutputStream(dir.resolve(resourceName(level)))) {
+                    new NormalizationRules(getRules(level)).save(out);
+                }
+            }
+        } else if (args.length == 2) {
+            final NormalizationRules rules;
+            try (final Reader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+                rules = new NormalizationRules(readRuleFile(reader));
+            }
+            try (final OutputStream out = Files.newOutputStream(Paths.get(args[1]))) {
+                rules.save(out);
+            }
+        } else {
+            System.err.println("usage: NormalizationRules <output directory> | <rule file> <compiled file>");
+            System.exit(1);
+        }
+    }
+
+    public final int size() {
+        return sources.length;
+    }
+
+    public final String getSource(final int rule) {
+        return sources[rule];
+    }
+
+    public final int getSourceLength(final int rule) {
+        return sources[rule].length();
+    }
+
+    public final char[] getReplacement(final int rule) {
+        return replacements[rule];
+    }
+
+}
@@ -0,0 +1,168 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Adds the level 2 and level 3 variants of the clusters of a level 1 analysis, as tokens
+ * at the same position, so that one field can be queried with the 3 levels of
+ * normalization. The input must be the grapheme clusters of level 1 normalized text (the
+ * output of GraphemeClusterTokenizer), they are reordered by this filter, for instance:
+ *
+ * "ទ្ប" (level 1) → "ទ្ប" (&lt;LEVEL1&gt;), LEVEL2_PREFIX + "ឡ" (&lt;LEVEL2&gt;)
+ *
+ * The level 2 and 3 variants are prefixed with LEVEL2_PREFIX and LEVEL3_PREFIX (control
+ * chars, that are never in the clusters), so that the variants of a level are only matched
+ * by the queries of that level (see KhmerVariantsQueryAnalyzer): a level 1 query for "ឡ"
+ * doesn't match "ទ្ប". The types are only informative, they are not indexed.
+ *
+ * The variants are obtained by applying the rules of the higher levels to the cluster
+ * before reordering it. A variant identical to the one of the stricter level is not output.
+ * This gives the same tokens as analyzing the text with the higher level, except for the
+ * rules matching across clusters (such as ":" at level 2), that are only applied at
+ * level 1, and for the replacements that would split a cluster (such as U+17D3 at level 3):
+ * the chars that are not part of clusters are removed from the variant instead.
+ */
+public class NormalizationVariantsFilter extends TokenFilter {
+
+    public static final String TYPE_LEVEL1 = "<LEVEL1>";
+    public static final String TYPE_LEVEL2 = "<LEVEL2>";
+    public static final String TYPE_LEVEL3 = "<LEVEL3>";
+    public static final char LEVEL2_PREFIX = '\u0002';
+    public static final char LEVEL3_PREFIX = '\u0003';
+
+    // the rules to apply on level 1 text to get level 2 and level 3 text
+    static final NormalizationRules level2Rules = new NormalizationRules(Arrays.asList(NormalizationRules.LEVEL2));
+    static final NormalizationRules level3Rules;
+    static {
+        final List<String[]> rules = new ArrayList<>(Arrays.asList(NormalizationRules.LEVEL2));
+        rules.addAll(Arrays.asList(NormalizationRules.LEVEL3));
+        level3Rules = new NormalizationRules(rules);
+    }
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+
+    private final int maxLevel;
+    private final ClusterCache cache;
+    private final char[] cats = new char[CharReorderFilter.MAX_LEN];
+
+    // the cluster before reordering, and the variants waiting to be output
+    private char[] raw = new char[16];
+    private char[] level2 = new char[16];
+    private char[] level3 = new char[16];
+    private int level2Len = -1;
+    private int level3Len = -1;
+
+    public NormalizationVariantsFilter(final TokenStream input) {
+        this(input, 3, null);
+    }
+
+    /**
+     * @param maxLevel the highest level of the variants (2 or 3)
+     */
+    public NormalizationVariantsFilter(final TokenStream input, final int maxLevel) {
+        this(input, maxLevel, null);
+    }
+
+    /**
+     * @param maxLevel the highest level of the variants (2 or 3)
+     * @param cache optional cache of the reordered clusters, can be null
+     */
+    public NormalizationVariantsFilter(final TokenStream input, final int maxLevel, final ClusterCache cache) {
+        super(input);
+        if (maxLevel < 2 || maxLevel > 3)
+            throw new IllegalArgumentException("maxLevel must be 2 or 3");
+        this.maxLevel = maxLevel;
+        this.cache = cache;
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        // the other attributes (offsets, etc.) are the ones of the level 1 token
+        if (level2Len != -1) {
+            copyPrefixed(LEVEL2_PREFIX, level2, level2Len);
+            posIncAtt.setPositionIncrement(0);
+            typeAtt.setType(TYPE_LEVEL2);
+            level2Len = -1;
+            return true;
+        }
+        if (level3Len != -1) {
+            copyPrefixed(LEVEL3_PREFIX, level3, level3Len);
+            posIncAtt.setPositionIncrement(0);
+            typeAtt.setType(TYPE_LEVEL3);
+            level3Len = -1;
+            return true;
+        }
+        if (!input.incrementToken())
+            return false;
+        typeAtt.setType(TYPE_LEVEL1);
+        final int rawLen = termAtt.length();
+        raw = ArrayUtil.grow(raw, rawLen);
+        System.arraycopy(termAtt.buffer(), 0, raw, 0, rawLen);
+        final char[] buffer = termAtt.buffer();
+        final int len = reorder(buffer, rawLen);
+        termAtt.setLength(len);
+        level2 = ArrayUtil.grow(level2, rawLen * level2Rules.getMaxReplacementLength());
+        final int len2 = reorder(level2, removeIgnored(level2, level2Rules.normalize(raw, rawLen, level2)));
+        if (len2 > 0 && !sameChars(level2, len2, buffer, len))
+            level2Len = len2;
+        if (maxLevel < 3)
+            return true;
+        level3 = ArrayUtil.grow(level3, rawLen * level3Rules.getMaxReplacementLength());
+        final int len3 = reorder(level3, removeIgnored(level3, level3Rules.normalize(raw, rawLen, level3)));
+        // compared to the closest stricter variant that is output
+        if (len3 > 0 && (level2Len != -1 ? !sameChars(level3, len3, level2, len2) : !sameChars(level3, len3, buffer, len)))
+            level3Len = len3;
+        return true;
+    }
+
+    private void copyPrefixed(final char prefix, final char[] chars, final int len) {
+        final char[] buffer = termAtt.resizeBuffer(len + 1);
+        buffer[0] = prefix;
+        System.arraycopy(chars, 0, buffer, 1, len);
+        termAtt.setLength(len + 1);
+    }
+
+    private int reorder(final char[] chars, final int len) {
+        return cache == null ? CharReorderFilter.reorder(chars, len, cats) : cache.reorder(chars, len, cats);
+    }
+
+    // removes the chars that GraphemeClusterTokenizer doesn't put in tokens
+    static final int removeIgnored(final char[] chars, final int len) {
+        int w = 0;
+        for (int r = 0 ; r < len ; r++) {
+            if (GraphemeClusterTokenizer.category(chars[r]) != GraphemeClusterTokenizer.CHCAT_IGNORE)
+                chars[w++] = chars[r];
+        }
+        return w;
+    }
+
+    static final boolean sameChars(final char[] a, final int aLen, final char[] b, final int bLen) {
+        if (aLen != bLen)
+            return false;
+        for (int i = 0 ; i < aLen ; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        level2Len = -1;
+        level3Len = -1;
+    }
+
+}
@@ -0,0 +1,17 @@
+package io.bdrc.lucene.km;
+
+import java.lang.Character.UnicodeScript;
+
+import org.apache.lucene.util.Attribute;
+
+/**
+ * The script of a token, set by KhmerScriptTokenizer: KHMER for the grapheme clusters, the
+ * script of the first letter for the other tokens (COMMON for numbers).
+ */
+public interface ScriptAttribute extends Attribute {
+
+    UnicodeScript getScript();
+
+    void setScript(UnicodeScript script);
+
+}
@@ -0,0 +1,47 @@
+package io.bdrc.lucene.km;
+
+import java.lang.Character.UnicodeScript;
+
+import org.apache.lucene.util.AttributeImpl;
+import org.apache.lucene.util.AttributeReflector;
+
+public class ScriptAttributeImpl extends AttributeImpl implements ScriptAttribute {
+
+    private UnicodeScript script = UnicodeScript.UNKNOWN;
+
+    @Override
+    public UnicodeScript getScript() {
+        return script;
+    }
+
+    @Override
+    public void setScript(final UnicodeScript script) {
+        this.script = script;
+    }
+
+    @Override
+    public void clear() {
+        script = UnicodeScript.UNKNOWN;
+    }
+
+    @Override
+    public void copyTo(final AttributeImpl target) {
+        ((ScriptAttribute) target).setScript(script);
+    }
+
+    @Override
+    public void reflectWith(final AttributeReflector reflector) {
+        reflector.reflect(ScriptAttribute.class, "script", script.name());
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return other instanceof ScriptAttributeImpl && ((ScriptAttributeImpl) other).script == script;
+    }
+
+    @Override
+    public int hashCode() {
+        return script.hashCode();
+    }
+
+}
@@ -0,0 +1,294 @@
+package io.bdrc.lucene.km;
+
+import java.io.IOException;
+import java.lang.Character.UnicodeScript;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * Groups the grapheme clusters produced by GraphemeClusterTokenizer and CharReorderFilter
+ * into words of a KhmerLexicon, for instance "ខ្ញុំ", "ច", "ង់", "ធ្វើ", "កា", "រ" becomes
+ * "ខ្ញុំ", "ចង់", "ធ្វើ", "ការ".
+ *
+ * Clusters are grouped only if they are contiguous in the original text (no space or
+ * punctuation in between). The clusters of a run that are not part of a word of the lexicon
+ * are output unchanged. The segmentation is either the longest match from left to right or
+ * the segmentation with the lowest total cost (using the frequencies of the lexicon).
+ *
+ * The runs are segmented by blocks of MAX_RUN clusters: when a run is longer, the last
+ * MAX_CARRY clusters of a block (from the start of the segment containing the first of them)
+ * are segmented again with the next block, so only the words of more than MAX_CARRY
+ * clusters can be missed at the cut.
+ *
+ * If the tokens have a ScriptAttribute (KhmerScriptTokenizer), the non-Khmer tokens are
+ * output unchanged, with their type and script.
+ */
+public class WordSegmentationFilter extends TokenFilter {
+
+    public static final String TYPE_WORD = "<WORD>";
+    public static final String TYPE_CLUSTER = "<CLUSTER>";
+
+    // maximum number of clusters segmented together
+    public static final int MAX_RUN = 256;
+    // maximum number of clusters carried over to the next block of a long run
+    public static final int MAX_CARRY = 64;
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+    // null if the input has no script
+    private final ScriptAttribute scriptAtt;
+
+    private final FST<Long> fst;
+    private final FST.BytesReader fstReader;
+    private final FST.Arc<Long> arc = new FST.Arc<>();
+    private final boolean lowestCost;
+
+    // the current run of clusters
+    private char[] runChars = new char[1024];
+    private final int[] clusterEnds = new int[MAX_RUN]; // end of each cluster in runChars
+    private final int[] startOffsets = new int[MAX_RUN];
+    private final int[] endOffsets = new int[MAX_RUN];
+    private final int[] posIncs = new int[MAX_RUN];
+    private int nbClusters = 0;
+    // the clusters from carryFrom to nbClusters are segmented again with the next block
+    private int carryFrom = 0;
+    private boolean carry = false;
+    private boolean inputDone = false;
+    // script and type of the run, the runs of other scripts than Khmer have one token
+    private UnicodeScript runScript = null;
+    private String runType = null;
+
+    // the first cluster of the next run, read when looking for the end of the current one
+    private char[] pendingChars = new char[32];
+    private int pendingLen = 0, pendingStartOffset = 0, pendingEndOffset = 0, pendingPosInc = 0;
+    private boolean hasPending = false;
+    private UnicodeScript pendingScript = null;
+    private String pendingType = null;
+
+    // words of the lexicon starting at a given cluster
+    private final int[] matchEnds = new int[MAX_RUN]; // index of the last cluster of the word
+    private final long[] matchCosts = new long[MAX_RUN];
+
+    // segmentation of the run: segment i covers clusters segmentStarts[i] to segmentStarts[i+1]-1
+    private final int[] segmentStarts = new int[MAX_RUN + 1];
+    private final boolean[] segmentIsWord = new boolean[MAX_RUN];
+    private int nbSegments = 0;
+    private int segmentIdx = 0;
+
+    // lowest cost search: best segmentation of the first i clusters
+    private final long[] bestCosts = new long[MAX_RUN + 1];
+    private final int[] bestPrevious = new int[MAX_RUN + 1];
+    private final boolean[] bestIsWord = new boolean[MAX_RUN + 1];
+
+    public WordSegmentationFilter(final TokenStream input, final KhmerLexicon lexicon) {
+        this(input, lexicon, false);
+    }
+
+    public WordSegmentationFilter(final TokenStream input, final KhmerLexicon lexicon, final boolean lowestCost) {
+        super(input);
+        this.fst = lexicon.fst;
+        this.fstReader = fst.getBytesReader();
+        this.lowestCost = lowestCost;
+        this.scriptAtt = hasAttribute(ScriptAttribute.class) ? getAttribute(ScriptAttribute.class) : null;
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        if (segmentIdx >= nbSegments && !fillRun())
+            return false;
+        final int first = segmentStarts[segmentIdx];
+        final int last = segmentStarts[segmentIdx + 1] - 1;
+        final int start = first == 0 ? 0 : clusterEnds[first - 1];
+        final int end = clusterEnds[last];
+        clearAttributes();
+        termAtt.copyBuffer(runChars, start, end - start);
+        offsetAtt.setOffset(startOffsets[first], endOffsets[last]);
+        posIncAtt.setPositionIncrement(posIncs[first]);
+        typeAtt.setType(segmentIsWord[segmentIdx] ? TYPE_WORD : TYPE_CLUSTER);
+        if (scriptAtt != null) {
+            scriptAtt.setScript(runScript);
+            if (runScript != UnicodeScript.KHMER)
+                typeAtt.setType(runType);
+        }
+        segmentIdx += 1;
+        return true;
+    }
+
+    // reads the next run of contiguous clusters and segments it
+    private boolean fillRun() throws IOException {
+        if (carry) {
+            moveCarried();
+        } else if (hasPending) {
+            nbClusters = 0;
+            addCluster(pendingChars, pendingLen, pendingStartOffset, pendingEndOffset, pendingPosInc);
+            runScript = pendingScript;
+            runType = pendingType;
+            hasPending = false;
+        } else {
+            nbClusters = 0;
+            if (inputDone || !input.incrementToken()) {
+                inputDone = true;
+                return false;
+            }
+            addCluster(termAtt.buffer(), termAtt.length(), offsetAtt.startOffset(), offsetAtt.endOffset(), posIncAtt.getPositionIncrement());
+            runScript = scriptAtt == null ? null : scriptAtt.getScript();
+            runType = typeAtt.type();
+        }
+        while (nbClusters < MAX_RUN && !inputDone && (runScript == null || runScript == UnicodeScript.KHMER)) {
+            if (!input.incrementToken()) {
+                inputDone = true;
+                break;
+            }
+            if (offsetAtt.startOffset() != endOffsets[nbClusters - 1] || (scriptAtt != null && scriptAtt.getScript() != UnicodeScript.KHMER)) {
+                pendingLen = termAtt.length();
+                pendingChars = ArrayUtil.grow(pendingChars, pendingLen);
+                System.arraycopy(termAtt.buffer(), 0, pendingChars, 0, pendingLen);
+                pendingStartOffset = offsetAtt.startOffset();
+                pendingEndOffset = offsetAtt.endOffset();
+                pendingPosInc = posIncAtt.getPositionIncrement();
+                pendingScript = scriptAtt == null ? null : scriptAtt.getScript();
+                pendingType = typeAtt.type();
+                hasPending = true;
+                break;
+            }
+            addCluster(termAtt.buffer(), termAtt.length(), offsetAtt.startOffset(), offsetAtt.endOffset(), posIncAtt.getPositionIncrement());
+        }
+        if (lowestCost)
+            segmentLowestCost();
+        else
+            segmentLongestMatch();
+        // the run continues in the next block
+        carry = nbClusters == MAX_RUN && !inputDone && !hasPending;
+        if (carry) {
+            int s = 1;
+            while (s < nbSegments && segmentStarts[s] < MAX_RUN - MAX_CARRY)
+                s += 1;
+            nbSegments = s;
+            carryFrom = segmentStarts[s];
+            carry = carryFrom < nbClusters;
+        }
+        segmentIdx = 0;
+        return true;
+    }
+
+    // moves the clusters carried over at the start of the run
+    private void moveCarried() {
+        final int base = clusterEnds[carryFrom - 1];
+        System.arraycopy(runChars, base, runChars, 0, clusterEnds[nbClusters - 1] - base);
+        final int nbCarried = nbClusters - carryFrom;
+        for (int i = 0 ; i < nbCarried ; i++)
+            clusterEnds[i] = clusterEnds[carryFrom + i] - base;
+        System.arraycopy(startOffsets, carryFrom, startOffsets, 0, nbCarried);
+        System.arraycopy(endOffsets, carryFrom, endOffsets, 0, nbCarried);
+        System.arraycopy(posIncs, carryFrom, posIncs, 0, nbCarried);
+        nbClusters = nbCarried;
+        carry = false;
+    }
+
+    private void addCluster(final char[] chars, final int len, final int startOffset, final int endOffset, final int posInc) {
+        final int start = nbClusters == 0 ? 0 : clusterEnds[nbClusters - 1];
+        runChars = ArrayUtil.grow(runChars, start + len);
+        System.arraycopy(chars, 0, runChars, start, len);
+        clusterEnds[nbClusters] = start + len;
+        startOffsets[nbClusters] = startOffset;
+        endOffsets[nbClusters] = endOffset;
+        posIncs[nbClusters] = posInc;
+        nbClusters += 1;
+    }
+
+    // fills matchEnds and matchCosts with the words of the lexicon starting at cluster from,
+    // shortest first, and returns their number
+    private int findWords(final int from) throws IOException {
+        int nbMatches = 0;
+        fst.getFirstArc(arc);
+        long cost = 0;
+        int cluster = from;
+        final int end = clusterEnds[nbClusters - 1];
+        for (int i = from == 0 ? 0 : clusterEnds[from - 1] ; i < end ; i++) {
+            if (fst.findTargetArc(runChars[i], arc, arc, fstReader) == null)
+                break;
+            cost += arc.output();
+            if (i + 1 == clusterEnds[cluster]) {
+                // words can only end at the end of a cluster
+                if (arc.isFinal()) {
+                    matchEnds[nbMatches] = cluster;
+                    matchCosts[nbMatches] = cost + arc.nextFinalOutput();
+                    nbMatches += 1;
+                }
+                cluster += 1;
+            }
+        }
+        return nbMatches;
+    }
+
+    private void segmentLongestMatch() throws IOException {
+        nbSegments = 0;
+        int i = 0;
+        while (i < nbClusters) {
+            final int nbMatches = findWords(i);
+            segmentStarts[nbSegments] = i;
+            if (nbMatches > 0) {
+                segmentIsWord[nbSegments] = true;
+                i = matchEnds[nbMatches - 1] + 1;
+            } else {
+                segmentIsWord[nbSegments] = false;
+                i += 1;
+            }
+            nbSegments += 1;
+        }
+        segmentStarts[nbSegments] = nbClusters;
+    }
+
+    private void segmentLowestCost() throws IOException {
+        bestCosts[0] = 0;
+        for (int j = 1 ; j <= nbClusters ; j++)
+            bestCosts[j] = Long.MAX_VALUE;
+        for (int i = 0 ; i < nbClusters ; i++) {
+            // i is always reachable: all the clusters can be unknown
+            relax(i, i + 1, KhmerLexicon.UNKNOWN_CLUSTER_COST, false);
+            final int nbMatches = findWords(i);
+            for (int k = 0 ; k < nbMatches ; k++)
+                relax(i, matchEnds[k] + 1, matchCosts[k], true);
+        }
+        nbSegments = 0;
+        for (int j = nbClusters ; j > 0 ; j = bestPrevious[j])
+            nbSegments += 1;
+        segmentStarts[nbSegments] = nbClusters;
+        int s = nbSegments;
+        for (int j = nbClusters ; j > 0 ; j = bestPrevious[j]) {
+            s -= 1;
+            segmentStarts[s] = bestPrevious[j];
+            segmentIsWord[s] = bestIsWord[j];
+        }
+    }
+
+    private void relax(final int from, final int to, final long cost, final boolean isWord) {
+        final long total = bestCosts[from] + cost;
+        if (total < bestCosts[to]) {
+            bestCosts[to] = total;
+            bestPrevious[to] = from;
+            bestIsWord[to] = isWord;
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        nbClusters = 0;
+        nbSegments = 0;
+        segmentIdx = 0;
+        hasPending = false;
+        carry = false;
+        inputDone = false;
+    }
+
+}
@@ -1,20 +1,68 @@
 package io.bdrc.lucene.km;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.text.BreakIterator;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
+import javax.management.ObjectName;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.DelegatingAnalyzerWrapper;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.SimpleAnalyzer;
 import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.sinks.TeeSinkTokenFilter;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.QueryBuilder;
 import org.junit.Test;
 
 public class AnalyzerTest {
@@ -55,6 +103,21 @@ public class AnalyzerTest {
         //assertGraphemeTokenization("ខ្ញុំចង់ធ្វើការ",  Arrays.asList("ខ្ញុំ", "ច", "ង់", "ធ្វើ", "កា", "រ"));
         assertGraphemeTokenization("ខ្ញុំ ច_ង់៕ធ្វើការ",  Arrays.asList("ខ្ញុំ", "ច", "ង់", "ធ្វើ", "កា", "រ"));
         assertGraphemeTokenization("ភវីសសាមិមយំបិនសមាកុល",  Arrays.asList("ភ","វី","ស","សា","មិ","ម","យំ","បិ","ន","ស","មា","កុ","ល"));
+        // long runs of non-Khmer chars are skipped by blocks
+        assertGraphemeTokenization("<title>Phnom Penh’s archives</title> ក 1995 \u200Dខ",  Arrays.asList("ក", "1995", "\u200D", "ខ"));
+        // the fast skip must stop at the same char as category()
+        final Random r = new Random(3);
+        final char[] alphabet = "abc <>’\u17D4\u17E0\u1780\u200B\u200C\u200D059\uD83D\uDE00".toCharArray();
+        for (int n = 0 ; n < 10000 ; n++) {
+            final char[] chars = new char[r.nextInt(40)];
+            for (int i = 0 ; i < chars.length ; i++)
+                chars[i] = r.nextInt(4) == 0 ? alphabet[r.nextInt(alphabet.length)] : 'x';
+            final int from = chars.length == 0 ? 0 : r.nextInt(chars.length);
+            int expected = from;
+            while (expected < chars.length && GraphemeClusterTokenizer.category(chars[expected]) == GraphemeClusterTokenizer.CHCAT_IGNORE && (chars[expected] < '\u1780' || chars[expected] > '\u17FF'))
+                expected += 1;
+            assertThat(GraphemeClusterTokenizer.skipIgnored(chars, from, chars.length), is(expected));
+        }
     }
     
     public void assertReorder(final String s, final List<String> expected) throws IOException {
@@ -72,6 +135,987 @@ public class AnalyzerTest {
         assertReorder("ស៊ើ សើុ ស៊េី សេីុ សុើ",  Arrays.asList("ស៊ើ", "ស៊ើ", "ស៊ើ", "ស៊ើ", "ស៊ើ"));
     }
     
+    @Test
+    public void CharReorderRandomTest() {
+        System.out.println("Testing CharReorderFilter.reorder() against the reference implementation");
+        final Random r = new Random(42);
+        final char[] buffer = new char[CharReorderFilter.MAX_LEN + 10];
+        final char[] cats = new char[CharReorderFilter.MAX_LEN];
+        for (int n = 0 ; n < 200000 ; n++) {
+            final String s = TestUtils.randomCluster(r);
+            s.getChars(0, s.length(), buffer, 0);
+            final int newlen = CharReorderFilter.reorder(buffer, s.length(), cats);
+            assertEquals(s, TestUtils.referenceReorder(s), new String(buffer, 0, newlen));
+        }
+    }
+    
+    @Test
+    public void ClusterCacheTest() throws Exception {
+        System.out.println("Testing ClusterCache");
+        // small cache shared by several threads, to test the evictions
+        final ClusterCache cache = new ClusterCache(64);
+        final int nbThreads = 4;
+        final int nbClusters = 20000;
+        final Thread[] threads = new Thread[nbThreads];
+        final Throwable[] errors = new Throwable[nbThreads];
+        for (int t = 0 ; t < nbThreads ; t++) {
+            final int threadIdx = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    final Random r = new Random(threadIdx);
+                    final char[] buffer = new char[CharReorderFilter.MAX_LEN + 10];
+                    final char[] expected = new char[CharReorderFilter.MAX_LEN + 10];
+                    final char[] cats = new char[CharReorderFilter.MAX_LEN];
+                    // few distinct clusters, so that there are hits
+                    final String[] clusters = new String[200];
+                    for (int i = 0 ; i < clusters.length ; i++)
+                        clusters[i] = TestUtils.randomCluster(new Random(i));
+                    for (int n = 0 ; n < nbClusters ; n++) {
+                        final String s = clusters[r.nextInt(clusters.length)];
+                        s.getChars(0, s.length(), buffer, 0);
+                        s.getChars(0, s.length(), expected, 0);
+                        final int newlen = cache.reorder(buffer, s.length(), cats);
+                        final int expectedlen = CharReorderFilter.reorder(expected, s.length(), cats);
+                        assertEquals(s, new String(expected, 0, expectedlen), new String(buffer, 0, newlen));
+                    }
+                } catch (Throwable e) {
+                    errors[threadIdx] = e;
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0 ; t < nbThreads ; t++) {
+            threads[t].join();
+            if (errors[t] != null)
+                throw new AssertionError(errors[t]);
+        }
+        assertTrue(cache.getHits() > 0 && cache.getEvictions() > 0);
+        assertTrue(cache.size() <= cache.capacity());
+        assertTrue(cache.getHits() + cache.getMisses() <= nbThreads * nbClusters);
+        // warm-up, the most frequent clusters first
+        final ClusterCache warmCache = new ClusterCache(4);
+        assertThat(warmCache.warmUp(new StringReader("# clusters\nកេី\t10\nធ្វេី\t1000\nក\t5\nខ្ញុំ\nកា\t20\nាក\t50\nមិ\t3\n")), is(4));
+        final char[] buffer = new char[CharReorderFilter.MAX_LEN];
+        final char[] cats = new char[CharReorderFilter.MAX_LEN];
+        "ធ្វេី".getChars(0, 5, buffer, 0);
+        assertThat(new String(buffer, 0, warmCache.reorder(buffer, 5, cats)), is("ធ្វើ"));
+        assertThat(warmCache.getHits(), is(1L));
+        assertThat(warmCache.getMisses(), is(0L));
+        // no normalization, so that the clusters reach the cache as they are in the list
+        try (Analyzer analyzer = new KhmerAnalyzer(new KhmerAnalyzer.Options().normalizationLevel(0).clusterCache(warmCache))) {
+            assertThat(analyze(analyzer, "ធ្វេីកាមិ", false), is(Arrays.asList("ធ្វើ", "កា", "មិ")));
+        }
+        // "ាក" doesn't start with a base, it is never looked up so it doesn't take a slot
+        assertThat(warmCache.getHits(), is(4L));
+    }
+    
+    // the tokens of each position, the stacked tokens separated by "/"
+    static List<String> stackedTokens(final Analyzer analyzer, final String s) throws IOException {
+        final List<String> res = new ArrayList<>();
+        try (TokenStream ts = analyzer.tokenStream("", s)) {
+            final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+            final PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+            ts.reset();
+            while (ts.incrementToken()) {
+                if (posIncAtt.getPositionIncrement() == 0)
+                    res.set(res.size() - 1, res.get(res.size() - 1) + "/" + termAtt.toString());
+                else
+                    res.add(termAtt.toString());
+            }
+            ts.end();
+        }
+        return res;
+    }
+    
+    @Test
+    public void NormalizationVariantsTest() throws IOException {
+        System.out.println("Testing NormalizationVariantsFilter");
+        final String p2 = String.valueOf(NormalizationVariantsFilter.LEVEL2_PREFIX);
+        final String p3 = String.valueOf(NormalizationVariantsFilter.LEVEL3_PREFIX);
+        try (Analyzer analyzer = new KhmerVariantsAnalyzer()) {
+            // ទ្ប ~ ឡ at level 2, ឧ៊ ~ ឨ at level 3, digits at level 3, no duplicates
+            assertThat(stackedTokens(analyzer, "ទ្ប ឧ៊ ៣ ក"), is(Arrays.asList("ទ្ប/" + p2 + "ឡ", "ឧ៊/" + p3 + "ឨ", "៣/" + p3 + "3", "ក")));
+            // the level 1 normalization is applied before
+            assertThat(stackedTokens(analyzer, "កេី"), is(Arrays.asList("កើ")));
+            // types
+            try (TokenStream ts = analyzer.tokenStream("", "ទ្ប")) {
+                final TypeAttribute typeAtt = ts.addAttribute(TypeAttribute.class);
+                final OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+                ts.reset();
+                assertTrue(ts.incrementToken());
+                assertThat(typeAtt.type(), is(NormalizationVariantsFilter.TYPE_LEVEL1));
+                assertTrue(ts.incrementToken());
+                assertThat(typeAtt.type(), is(NormalizationVariantsFilter.TYPE_LEVEL2));
+                assertThat(offsetAtt.endOffset(), is(3));
+                assertTrue(!ts.incrementToken());
+                ts.end();
+            }
+        }
+        try (Analyzer analyzer = new KhmerVariantsAnalyzer(2)) {
+            assertThat(stackedTokens(analyzer, "ទ្ប ៣"), is(Arrays.asList("ទ្ប/" + p2 + "ឡ", "៣")));
+        }
+        // the last variant of each position is the token of the analysis at the highest
+        // level, when that analysis doesn't change the clusters (U+17D3 is replaced by a
+        // punctuation at level 3) and no rule can match across clusters (such as coeng da
+        // split after a cluster ending with a coeng)
+        final Random r = new Random(7);
+        try (Analyzer variants = new KhmerVariantsAnalyzer(3) ; Analyzer level1 = new KhmerAnalyzer(1) ; Analyzer level3 = new KhmerAnalyzer(3)) {
+            int nbCompared = 0;
+            for (int n = 0 ; n < 20000 ; n++) {
+                final String s = TestUtils.randomCluster(r);
+                final List<String> v = stackedTokens(variants, s);
+                final List<String> l1 = stackedTokens(level1, s);
+                final List<String> l3 = stackedTokens(level3, s);
+                assertThat(v.size(), is(l1.size()));
+                final List<String> last = new ArrayList<>();
+                for (int i = 0 ; i < v.size() ; i++) {
+                    final String[] stack = v.get(i).split("/");
+                    assertThat(stack[0], is(l1.get(i)));
+                    // without the level prefix
+                    last.add(stack.length == 1 ? stack[0] : stack[stack.length - 1].substring(1));
+                }
+                if (l3.size() != l1.size() || s.indexOf('\u17D3') != -1 || l1.stream().anyMatch(t -> t.charAt(t.length() - 1) == '\u17D2'))
+                    continue;
+                assertThat(s, last, is(l3));
+                nbCompared += 1;
+            }
+            assertTrue(nbCompared > 15000);
+        }
+        // the level of the query analyzer gives the looseness of the matching
+        final String[] docs = {"ទ្ប", "ឡ", "០", "0"};
+        try (Directory dir = new ByteBuffersDirectory() ; Analyzer index = new KhmerVariantsAnalyzer()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(index))) {
+                for (final String text : docs) {
+                    final Document doc = new Document();
+                    doc.add(new TextField("text", text, Field.Store.YES));
+                    writer.addDocument(doc);
+                }
+            }
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final String[][] expected = {
+                        // query, level, matching docs
+                        {"ឡ", "1", "ឡ"}, {"ឡ", "2", "ទ្ប ឡ"}, {"ទ្ប", "1", "ទ្ប"}, {"ទ្ប", "2", "ទ្ប ឡ"}, {"ទ្ប", "3", "ទ្ប ឡ"},
+                        {"0", "1", "0"}, {"0", "2", "0"}, {"0", "3", "០ 0"}, {"០", "1", "០"}, {"០", "3", "០ 0"},
+                };
+                for (final String[] e : expected) {
+                    try (Analyzer query = new KhmerVariantsQueryAnalyzer(Integer.parseInt(e[1]))) {
+                        final List<String> found = new ArrayList<>();
+                        for (final ScoreDoc sd : searcher.search(new QueryBuilder(query).createBooleanQuery("text", e[0]), 10).scoreDocs)
+                            found.add(searcher.storedFields().document(sd.doc).get("text"));
+                        Collections.sort(found, (a, b) -> Arrays.asList(docs).indexOf(a) - Arrays.asList(docs).indexOf(b));
+                        assertThat(e[0] + " at level " + e[1], String.join(" ", found), is(e[2]));
+                    }
+                }
+            }
+        }
+    }
+    
+    static List<String> analyze(final Analyzer analyzer, final String s, final boolean withOffsets) throws IOException {
+        final List<String> res = new ArrayList<>();
+        try (TokenStream ts = analyzer.tokenStream("", s)) {
+            final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+            final OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+            ts.reset();
+            while (ts.incrementToken())
+                res.add(withOffsets ? termAtt.toString() + "|" + offsetAtt.startOffset() + "-" + offsetAtt.endOffset() : termAtt.toString());
+            ts.end();
+        }
+        System.out.println(s + " => " + String.join(" ", res));
+        return res;
+    }
+    
+    @Test
+    public void WordSegmentationTest() throws IOException {
+        System.out.println("Testing WordSegmentationFilter");
+        final KhmerLexicon lexicon = KhmerLexicon.fromReader(new StringReader("# test lexicon\nខ្ញុំ\nចង់\nធ្វើ\nការ\nធ្វើការ\nកា\n"), 1);
+        assertThat(lexicon.size(), is(6));
+        try (Analyzer analyzer = new KhmerAnalyzer(new KhmerAnalyzer.Options().lexicon(lexicon))) {
+            assertThat(analyze(analyzer, "ខ្ញុំចង់ធ្វើការ", false), is(Arrays.asList("ខ្ញុំ", "ចង់", "ធ្វើការ")));
+            // no grouping across spaces, unknown clusters are kept
+            assertThat(analyze(analyzer, "ខ្ញុំច ង់ធ្វើកាស", true), is(Arrays.asList("ខ្ញុំ|0-5", "ច|5-6", "ង់|7-9", "ធ្វើ|9-13", "កា|13-15", "ស|15-16")));
+            // the lexicon is reordered like the text
+            assertThat(analyze(analyzer, "ធ្វេីការ", false), is(Arrays.asList("ធ្វើការ")));
+        }
+        // frequencies make the lowest cost segmentation prefer two frequent words
+        final KhmerLexicon freqLexicon = KhmerLexicon.fromReader(new StringReader("ធ្វើ\t1000\nការ\t1000\nធ្វើការ\t1\n"), 1);
+        try (Analyzer analyzer = new KhmerAnalyzer(new KhmerAnalyzer.Options().lexicon(freqLexicon).lowestCost(true))) {
+            assertThat(analyze(analyzer, "ធ្វើការ", false), is(Arrays.asList("ធ្វើ", "ការ")));
+        }
+        try (Analyzer analyzer = new KhmerAnalyzer(new KhmerAnalyzer.Options().lexicon(freqLexicon))) {
+            assertThat(analyze(analyzer, "ធ្វើការ", false), is(Arrays.asList("ធ្វើការ")));
+        }
+        // the runs longer than MAX_RUN clusters are cut without losing the words at the cut
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < WordSegmentationFilter.MAX_RUN - 2 ; i++)
+            sb.append('ក');
+        sb.append("ធ្វើការ");
+        for (int i = 0 ; i < 3 * WordSegmentationFilter.MAX_RUN ; i++)
+            sb.append(i % 2 == 0 ? "ខ្ញុំ" : "ក");
+        try (Analyzer analyzer = new KhmerAnalyzer(new KhmerAnalyzer.Options().lexicon(lexicon))) {
+            final List<String> tokens = analyze(analyzer, sb.toString(), true);
+            final int cut = WordSegmentationFilter.MAX_RUN - 2;
+            assertThat(tokens.get(cut - 1), is("ក|" + (cut - 1) + "-" + cut));
+            assertThat(tokens.get(cut), is("ធ្វើការ|" + cut + "-" + (cut + 7)));
+            assertThat(tokens.size(), is(cut + 1 + 3 * WordSegmentationFilter.MAX_RUN));
+            assertThat(tokens.get(tokens.size() - 1), is("ក|" + (sb.length() - 1) + "-" + sb.length()));
+        }
+        // the options are checked
+        final List<KhmerAnalyzer.Options> invalid = Arrays.asList(new KhmerAnalyzer.Options().normalizationLevel(2).lexicon(lexicon),
+                new KhmerAnalyzer.Options().lexicon(lexicon).syllables(true), new KhmerAnalyzer.Options().lowestCost(true));
+        for (final KhmerAnalyzer.Options options : invalid) {
+            try {
+                new KhmerAnalyzer(options).close();
+                assertTrue(false);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+    
+    @Test
+    public void ShingleTest() throws IOException {
+        System.out.println("Testing KhmerShingleAnalyzer and KhmerShingleQueryBuilder");
+        try (Analyzer shingleAnalyzer = new KhmerShingleAnalyzer()) {
+            assertThat(analyze(shingleAnalyzer, "ខ្ញុំចង់", false), is(Arrays.asList("ខ្ញុំ ច", "ខ្ញុំ ច ង់", "ច ង់")));
+        }
+        final String[] docs = {"ខ្ញុំចង់ធ្វើការ", "ធ្វើការខ្ញុំចង់", "ការធ្វើ ខ្ញុំ", "ខ្ញុំ ចង់ធ្វើ"};
+        final Map<String, Analyzer> perField = new HashMap<>();
+        perField.put("text_shingles", new KhmerShingleAnalyzer());
+        final Analyzer analyzer = new KhmerAnalyzer();
+        try (Directory dir = new ByteBuffersDirectory();
+                IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new PerFieldAnalyzerWrapper(analyzer, perField)))) {
+            for (final String text : docs) {
+                final Document doc = new Document();
+                doc.add(new TextField("text", text, Field.Store.NO));
+                doc.add(new TextField("text_shingles", text, Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.commit();
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final QueryBuilder phraseBuilder = new QueryBuilder(analyzer);
+                final KhmerShingleQueryBuilder shingleBuilder = new KhmerShingleQueryBuilder(analyzer);
+                for (final String q : Arrays.asList("ខ្ញុំ", "ខ្ញុំចង់", "ចង់ធ្វើ", "ខ្ញុំចង់ធ្វើការ", "ចង់ធ្វើការ", "ការខ្ញុំ", "ខ្ញុំចង់ធ្វើកា", "ធ្វើការខ្ញុំចង់")) {
+                    final Query shingleQuery = shingleBuilder.createPhraseQuery("text", q);
+                    assertEquals(q + " " + shingleQuery, searcher.count(phraseBuilder.createPhraseQuery("text", q)), searcher.count(shingleQuery));
+                }
+                assertThat(shingleBuilder.createPhraseQuery("text", "ខ្ញុំចង់").toString(), is("text_shingles:ខ្ញុំ ច ង់"));
+                assertThat(shingleBuilder.createPhraseQuery("text", "ខ្ញុំចង់ធ្វើការ").toString(), is("text_shingles:\"ខ្ញុំ ច ង់ ? ? ធ្វើ កា រ\""));
+                assertThat(shingleBuilder.createPhraseQuery("text", "ខ្ញុំចង់ធ្វើកា").toString(), is("text_shingles:\"ខ្ញុំ ច ង់ ? ង់ ធ្វើ កា\""));
+                // the boolean queries group the contiguous clusters too
+                final Query orQuery = shingleBuilder.createBooleanQuery("text", "ខ្ញុំចង់ ធ្វើការ");
+                assertThat(orQuery.toString(), is("text_shingles:ខ្ញុំ ច ង់ text_shingles:ធ្វើ កា រ"));
+                assertThat(searcher.count(orQuery), is(3));
+                final Query andQuery = shingleBuilder.createBooleanQuery("text", "ខ្ញុំចង់ ធ្វើការ", BooleanClause.Occur.MUST);
+                assertThat(andQuery.toString(), is("+text_shingles:ខ្ញុំ ច ង់ +text_shingles:ធ្វើ កា រ"));
+                assertThat(searcher.count(andQuery), is(2));
+                assertThat(searcher.count(shingleBuilder.createMinShouldMatchQuery("text", "ខ្ញុំចង់ ធ្វើការ ការខ្ញុំ", 0.7f)), is(2));
+                assertThat(shingleBuilder.createBooleanQuery("text", "ខ្ញុំចង់").toString(), is("text_shingles:ខ្ញុំ ច ង់"));
+                assertThat(shingleBuilder.createBooleanQuery("text", "ខ្ញុំ ក").toString(), is("text:ខ្ញុំ text:ក"));
+            }
+        }
+    }
+
+    @Test
+    public void ConfusableQueryTest() throws IOException {
+        System.out.println("Testing KhmerConfusableQueryBuilder");
+        final ConfusableExpander expander = new ConfusableExpander();
+        assertThat(Arrays.asList(expander.expand("១២")), is(Arrays.asList("១២", "12", "១2", "1២")));
+        assertThat(Arrays.asList(expander.expand("ស៉ី")), is(Arrays.asList("ស៉ី", "ស៊ី")));
+        assertThat(Arrays.asList(expander.expand("ក")), is(Arrays.asList("ក")));
+        // the least recently used terms are evicted one by one
+        final ConfusableExpander small = new ConfusableExpander(ConfusableExpander.DEFAULT_MAX_EXPANSIONS, ConfusableExpander.DEFAULT_MAX_CANDIDATES, 3);
+        final String[] ka = small.expand("ក");
+        final String[] kha = small.expand("ខ");
+        small.expand("គ");
+        assertTrue(small.expand("ក") == ka);
+        small.expand("ឃ");
+        assertThat(small.cacheSize(), is(3));
+        assertTrue(small.expand("ក") == ka);
+        assertTrue(small.expand("ខ") != kha);
+        // the level 1 clusters of random texts with the same level 3 form are expansions of each other
+        final Map<String, List<String>> byLevel3 = new HashMap<>();
+        final Random r = new Random(5);
+        try (final KhmerAnalyzer level1 = new KhmerAnalyzer(1)) {
+            for (int n = 0 ; n < 50 ; n++) {
+                for (final String cluster : analyze(level1, randomText(r, 2000), false)) {
+                    final List<String> group = byLevel3.computeIfAbsent(ConfusableExpander.levelForm(cluster, 3), k -> new ArrayList<>());
+                    if (!group.contains(cluster))
+                        group.add(cluster);
+                }
+            }
+        }
+        for (final List<String> group : byLevel3.values()) {
+            for (final String cluster : group)
+                assertTrue(cluster + " " + group, Arrays.asList(expander.expand(cluster)).containsAll(group));
+        }
+        // a level 1 index queried as a level 3 one
+        final String[] docs = {"ស៊ី", "ស៉ី", "ឱ្យ", "ឪ្យ", "១២", "ឪ្យ12", "ឱ្យក"};
+        final Analyzer analyzer = new KhmerAnalyzer(1);
+        try (Directory dir = new ByteBuffersDirectory();
+                IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer))) {
+            for (final String text : docs) {
+                final Document doc = new Document();
+                doc.add(new TextField("text", text, Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.commit();
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final QueryBuilder plainBuilder = new QueryBuilder(analyzer);
+                final KhmerConfusableQueryBuilder confusableBuilder = new KhmerConfusableQueryBuilder(analyzer, expander);
+                assertThat(searcher.count(plainBuilder.createBooleanQuery("text", "ស៉ី")), is(1));
+                assertThat(searcher.count(confusableBuilder.createBooleanQuery("text", "ស៉ី")), is(2));
+                assertThat(searcher.count(confusableBuilder.createBooleanQuery("text", "ឱ្យ")), is(4));
+                assertThat(searcher.count(plainBuilder.createPhraseQuery("text", "ឱ្យ១២")), is(0));
+                assertThat(searcher.count(confusableBuilder.createPhraseQuery("text", "ឱ្យ១២")), is(1));
+                assertThat(confusableBuilder.createPhraseQuery("text", "ឱ្យក").toString(), is("text:\"(ឱ្យ ឪ្យ ឳ្យ ឧ៌្យ ឲ្យ) ក\""));
+            }
+        }
+    }
+
+    static String randomText(final Random r, final int len) {
+        final StringBuilder sb = new StringBuilder();
+        final char[] others = {' ', ':', 'a', '0', '\u200C', '\u200D'};
+        for (int i = 0 ; i < len ; i++) {
+            if (r.nextInt(8) == 0)
+                sb.append(others[r.nextInt(others.length)]);
+            else
+                sb.append((char) ('\u1780' + r.nextInt(0x80)));
+        }
+        return sb.toString();
+    }
+    
+    static List<String> tokensWithOffsets(final Reader reader) throws IOException {
+        final List<String> res = new ArrayList<>();
+        try (Tokenizer tokenizer = new GraphemeClusterTokenizer()) {
+            final CharTermAttribute termAtt = tokenizer.addAttribute(CharTermAttribute.class);
+            final OffsetAttribute offsetAtt = tokenizer.addAttribute(OffsetAttribute.class);
+            tokenizer.setReader(reader);
+            tokenizer.reset();
+            while (tokenizer.incrementToken())
+                res.add(termAtt.toString() + "|" + offsetAtt.startOffset() + "-" + offsetAtt.endOffset());
+            tokenizer.end();
+            res.add("end|" + offsetAtt.endOffset());
+        }
+        return res;
+    }
+    
+    static String readAll(final Reader reader) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final char[] buffer = new char[100];
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) != -1)
+            sb.append(buffer, 0, read);
+        reader.close();
+        return sb.toString();
+    }
+    
+    @Test
+    public void MappedUtf8ReaderTest() throws IOException {
+        System.out.println("Testing MappedUtf8Reader");
+        final Random r = new Random(11);
+        final StringBuilder sb = new StringBuilder(randomText(r, 5000));
+        // 2 and 4 bytes sequences
+        for (int i = 0 ; i < 50 ; i++)
+            sb.insert(r.nextInt(sb.length()), r.nextBoolean() ? "é" : "\uD83D\uDE00");
+        final String text = sb.toString();
+        final Path path = Files.createTempFile("lucene-km", ".txt");
+        try {
+            Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+            final List<String> expected = tokensWithOffsets(new StringReader(text));
+            // small windows to test the sequences at the end of windows
+            for (final long windowSize : new long[] {4, 7, 1000, MappedUtf8Reader.DEFAULT_WINDOW_SIZE}) {
+                assertThat(readAll(new MappedUtf8Reader(path, windowSize)), is(text));
+                assertThat(tokensWithOffsets(new MappedUtf8Reader(path, windowSize)), is(expected));
+            }
+            // small tokenizer buffers
+            for (final int ioBufferSize : new int[] {2, 5, 100000}) {
+                final List<String> res = new ArrayList<>();
+                try (Tokenizer tokenizer = new GraphemeClusterTokenizer(ioBufferSize)) {
+                    final CharTermAttribute termAtt = tokenizer.addAttribute(CharTermAttribute.class);
+                    final OffsetAttribute offsetAtt = tokenizer.addAttribute(OffsetAttribute.class);
+                    tokenizer.setReader(new MappedUtf8Reader(path));
+                    tokenizer.reset();
+                    while (tokenizer.incrementToken())
+                        res.add(termAtt.toString() + "|" + offsetAtt.startOffset() + "-" + offsetAtt.endOffset());
+                    tokenizer.end();
+                    res.add("end|" + offsetAtt.endOffset());
+                }
+                assertThat(res, is(expected));
+            }
+        } finally {
+            Files.delete(path);
+        }
+        // malformed sequences, one replacement char per invalid byte
+        final byte[] malformed = {'a', (byte) 0xE1, (byte) 0x9E, 'b', (byte) 0xFF, (byte) 0xC0, (byte) 0x80, (byte) 0xE1};
+        assertThat(readAll(new MappedUtf8Reader(ByteBuffer.wrap(malformed))), is("a\uFFFD\uFFFDb\uFFFD\uFFFD\uFFFD\uFFFD"));
+    }
+    
+    @Test
+    public void KhmerNormalizationCharFilterTest() throws IOException {
+        System.out.println("Testing KhmerNormalizationCharFilter against NormalizationCharFilter");
+        final Random r = new Random(7);
+        for (int level = 1 ; level <= 3 ; level++) {
+            for (int n = 0 ; n < 300 ; n++) {
+                // a few long texts to go over the buffer sizes
+                final String s = randomText(r, n % 50 == 0 ? 50000 : r.nextInt(200));
+                assertEquals(readAll(new NormalizationCharFilter(new StringReader(s), level)), readAll(new KhmerNormalizationCharFilter(new StringReader(s), level)));
+                assertEquals(tokensWithOffsets(new NormalizationCharFilter(new StringReader(s), level)), tokensWithOffsets(new KhmerNormalizationCharFilter(new StringReader(s), level)));
+            }
+        }
+    }
+    
+    @Test
+    public void NormalizationRulesTest() throws IOException {
+        System.out.println("Testing NormalizationRules save and load");
+        final Random r = new Random(3);
+        final char[] out1 = new char[4000];
+        final char[] out2 = new char[4000];
+        for (int level = 1 ; level <= 3 ; level++) {
+            // the rules loaded from the resources (compiled at build time) are the same
+            // as the compiled ones
+            assertTrue(NormalizationRules.class.getResource(NormalizationRules.resourceName(level)) != null);
+            final NormalizationRules compiled = new NormalizationRules(NormalizationRules.getRules(level));
+            final NormalizationRules loaded = NormalizationRules.get(level);
+            assertThat(loaded.size(), is(compiled.size()));
+            for (int n = 0 ; n < 100 ; n++) {
+                final char[] text = randomText(r, 1000).toCharArray();
+                final int len1 = compiled.normalize(text, text.length, out1);
+                final int len2 = loaded.normalize(text, text.length, out2);
+                assertThat(new String(out2, 0, len2), is(new String(out1, 0, len1)));
+            }
+        }
+        // custom rule file, compiled and loaded back
+        final List<String[]> ruleList = NormalizationRules.readRuleFile(new StringReader("# test rules\nab\tc\n\\u17C1\\u17B8\t\\u17BE\n\na\t\n"));
+        assertThat(ruleList.size(), is(3));
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new NormalizationRules(ruleList).save(bytes);
+        final NormalizationRules custom = NormalizationRules.load(new ByteArrayInputStream(bytes.toByteArray()));
+        assertThat(readAll(new KhmerNormalizationCharFilter(new StringReader("abaកេី"), custom)), is("cកើ"));
+        // the rules are compiled when the resource is absent, a truncated resource is an error
+        assertThat(NormalizationRules.loadLevel(2, null).size(), is(NormalizationRules.get(2).size()));
+        try {
+            NormalizationRules.loadLevel(2, new ByteArrayInputStream(Arrays.copyOf(bytes.toByteArray(), bytes.size() / 2)));
+            assertTrue(false);
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void AnalysisMetricsTest() throws Exception {
+        System.out.println("Testing AnalysisMetrics");
+        final Random r = new Random(11);
+        try (final KhmerAnalyzer plain = new KhmerAnalyzer(1); final KhmerAnalyzer instrumented = new KhmerAnalyzer(1)) {
+            assertTrue(instrumented.getMetrics() == null);
+            final AnalysisMetrics metrics = instrumented.enableMetrics();
+            long chars = 0, tokens = 0;
+            for (int n = 0 ; n < 100 ; n++) {
+                final String s = randomText(r, r.nextInt(500));
+                final List<String> expected = analyze(plain, s, true);
+                assertThat(analyze(instrumented, s, true), is(expected));
+                chars += s.length();
+                tokens += expected.size();
+            }
+            assertThat(metrics.getNormalizationCharsIn(), is(chars));
+            assertThat(metrics.getTokensOut(), is(tokens));
+            assertThat(metrics.getTokensReordered() + metrics.getTokensUnchanged() + metrics.getTokensSkippedLength()
+                    + metrics.getTokensSkippedNotBase() + metrics.getTokensSkippedShort(), is(tokens));
+            assertTrue(metrics.getTokensReordered() > 0);
+            // 2 rule hits, one too long cluster, one cluster without a base
+            metrics.reset();
+            final StringBuilder tooLong = new StringBuilder("ក");
+            for (int i = 0 ; i < 30 ; i++)
+                tooLong.append('ំ');
+            analyze(instrumented, "កេី ខេា " + tooLong + " ុក ាំ", false);
+            final AnalysisMetrics.Snapshot snapshot = metrics.snapshot();
+            assertThat(snapshot.ruleHits.get("\\u17C1\\u17B8"), is(1L));
+            assertThat(snapshot.ruleHits.get("\\u17C1\\u17B6"), is(1L));
+            assertThat(snapshot.tokensSkippedLength, is(1L));
+            assertThat(snapshot.tokensSkippedNotBase, is(1L));
+            assertThat(snapshot.tokensOut, is(6L));
+            // single chars are not reordering outcomes
+            metrics.reset();
+            analyze(instrumented, "ក ខា គ", false);
+            assertThat(metrics.getTokensSkippedShort(), is(2L));
+            assertThat(metrics.getTokensUnchanged(), is(1L));
+            // disabled for all the stages, the counts are kept
+            instrumented.disableMetrics();
+            assertTrue(instrumented.getMetrics() == null);
+            analyze(instrumented, "កេី ខេា", true);
+            assertThat(metrics.getNormalizationCharsIn(), is(6L));
+            assertThat(metrics.getTokenizerCharsIn(), is(6L));
+            assertThat(metrics.getTokensOut(), is(3L));
+            assertThat(metrics.getRuleHits().get("\\u17C1\\u17B8"), is(0L));
+            assertTrue(instrumented.enableMetrics() == metrics);
+            analyze(instrumented, "កេី ខេា", true);
+            assertThat(metrics.getTokensOut(), is(5L));
+            assertThat(metrics.getRuleHits().get("\\u17C1\\u17B8"), is(1L));
+            // JMX
+            final ObjectName name = metrics.register("test");
+            try {
+                final Object out = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "TokensOut");
+                assertThat(out, is((Object) 5L));
+            } finally {
+                AnalysisMetrics.unregister(name);
+            }
+        }
+    }
+
+    @Test
+    public void TransliterationTest() throws IOException {
+        System.out.println("Testing KhmerTransliterationFilter");
+        try (Analyzer analyzer = new KhmerTransliterationAnalyzer()) {
+            // romanized by syllable, the vowels depend on the series of the base consonant
+            assertThat(stackedTokens(analyzer, "ភ្នំពេញ ខ្ញុំ"), is(Arrays.asList("ភ្នំ/phnum", "ពេញ/penh", "ខ្ញុំ/khnhom")));
+            // register shifter, digits
+            assertThat(stackedTokens(analyzer, "ប៉ា ពា ១២"), is(Arrays.asList("ប៉ា/ba", "ពា/pea", "១២/12")));
+            // inherent vowel of the syllables with no written vowel
+            assertThat(stackedTokens(analyzer, "ចង់ ករ ធម៌ ដះ ម"), is(Arrays.asList("ចង់/chang", "ករ/kar", "ធម៌/thorm", "ដះ/dah", "ម/mo")));
+        }
+        try (Analyzer analyzer = new KhmerTransliterationAnalyzer(new KhmerAnalyzer.Options(), KhmerTransliterationFilter.Scheme.INDIC, false)) {
+            // robat is read before the base
+            assertThat(analyze(analyzer, "ធម៌ ពុទ្ធ", false), is(Arrays.asList("dharm", "bu", "ddha")));
+            assertThat(analyze(analyzer, "ចង់ ករ", false), is(Arrays.asList("caṅ", "kar")));
+        }
+        // by word with a lexicon
+        final KhmerLexicon lexicon = KhmerLexicon.fromReader(new StringReader("ភ្នំពេញ\nធ្វើការ\nចង់ធ្វើ\n"), 1);
+        try (Analyzer analyzer = new KhmerTransliterationAnalyzer(new KhmerAnalyzer.Options().lexicon(lexicon), KhmerTransliterationFilter.Scheme.UNGEGN, false)) {
+            assertThat(analyze(analyzer, "ភ្នំពេញ ធ្វើការ ចង់ធ្វើ", false), is(Arrays.asList("phnumpenh", "thveukar", "changthveu")));
+        }
+        // romanized queries typed in Latin script
+        final String[] docs = {"ខ្ញុំនៅភ្នំពេញ", "ភ្នំ", "ពេញចិត្ត", "ពេញភ្នំ"};
+        try (Directory dir = new ByteBuffersDirectory() ; Analyzer analyzer = new KhmerTransliterationAnalyzer()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer))) {
+                for (final String text : docs) {
+                    final Document doc = new Document();
+                    doc.add(new TextField("text", text, Field.Store.NO));
+                    writer.addDocument(doc);
+                }
+            }
+            try (IndexReader reader = DirectoryReader.open(dir) ; Analyzer latin = new SimpleAnalyzer()) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final QueryBuilder builder = new QueryBuilder(latin);
+                assertThat(searcher.count(builder.createPhraseQuery("text", "Phnum Penh")), is(1));
+                assertThat(searcher.count(builder.createBooleanQuery("text", "penh")), is(3));
+                assertThat(searcher.count(builder.createBooleanQuery("text", "phnum penh", BooleanClause.Occur.MUST)), is(2));
+                // the Khmer tokens are still there
+                assertThat(searcher.count(new TermQuery(new Term("text", "ពេញ"))), is(3));
+            }
+        }
+        // Khmer and romanized tokens in two fields, analyzed once
+        try (Directory dir = new ByteBuffersDirectory() ; Analyzer analyzer = new KhmerAnalyzer(new KhmerAnalyzer.Options().syllables(true))) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer))) {
+                final TeeSinkTokenFilter tee = new TeeSinkTokenFilter(analyzer.tokenStream("text", "ភ្នំពេញ"));
+                final TokenStream latin = new KhmerTransliterationFilter(tee.newSinkTokenStream(), KhmerTransliterationFilter.Scheme.UNGEGN, false);
+                final Document doc = new Document();
+                doc.add(new TextField("text", tee));
+                doc.add(new TextField("latin", latin));
+                writer.addDocument(doc);
+            }
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                assertThat(searcher.count(new TermQuery(new Term("text", "ភ្នំ"))), is(1));
+                assertThat(searcher.count(new TermQuery(new Term("latin", "phnum"))), is(1));
+                assertThat(searcher.count(new TermQuery(new Term("latin", "penh"))), is(1));
+                assertThat(searcher.count(new TermQuery(new Term("latin", "ភ្នំ"))), is(0));
+            }
+        }
+    }
+
+    // the terms of a token stream
+    static List<String> terms(final TokenStream ts) throws IOException {
+        final List<String> res = new ArrayList<>();
+        final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+        ts.reset();
+        while (ts.incrementToken())
+            res.add(termAtt.toString());
+        ts.end();
+        ts.close();
+        return res;
+    }
+
+    // term|script|type|offsets of each token
+    static List<String> scriptTokens(final TokenStream ts) throws IOException {
+        final List<String> res = new ArrayList<>();
+        final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+        final ScriptAttribute scriptAtt = ts.addAttribute(ScriptAttribute.class);
+        final TypeAttribute typeAtt = ts.addAttribute(TypeAttribute.class);
+        final OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+        ts.reset();
+        while (ts.incrementToken())
+            res.add(termAtt + "|" + scriptAtt.getScript() + "|" + typeAtt.type() + "|" + offsetAtt.startOffset() + "-" + offsetAtt.endOffset());
+        ts.end();
+        ts.close();
+        return res;
+    }
+
+    @Test
+    public void SyllableTest() throws IOException {
+        System.out.println("Testing KhmerSyllableFilter");
+        try (Analyzer analyzer = new KhmerAnalyzer(new KhmerAnalyzer.Options().syllables(true))) {
+            assertThat(analyze(analyzer, "ខ្ញុំចង់ធ្វើការ", false), is(Arrays.asList("ខ្ញុំ", "ចង់", "ធ្វើ", "ការ")));
+            assertThat(analyze(analyzer, "ភ្នំពេញ", true), is(Arrays.asList("ភ្នំ|0-4", "ពេញ|4-7")));
+            // two consonants alone form a syllable
+            assertThat(analyze(analyzer, "សាលាករ", true), is(Arrays.asList("សា|0-2", "លា|2-4", "ករ|4-6")));
+            assertThat(analyze(analyzer, "ពេលវេលា ធម៌", false), is(Arrays.asList("ពេល", "វេ", "លា", "ធម៌")));
+            // no grouping across spaces, the offsets follow the normalization
+            assertThat(analyze(analyzer, "ច ង់ កេីត", true), is(Arrays.asList("ច|0-1", "ង់|2-4", "កើត|5-9")));
+        }
+    }
+
+    @Test
+    public void ClusterIdTest() throws Exception {
+        System.out.println("Testing ClusterIdFilter");
+        final ClusterIdTable table = ClusterIdTable.get(1);
+        // the table of version 1 is frozen: same clusters with the same ids
+        assertThat(table.size(), is(15707));
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (int id = 0 ; id < table.size() ; id++)
+            digest.update(((id == 0 ? "" : "\n") + table.cluster(id)).getBytes(StandardCharsets.UTF_8));
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        assertThat(hex.toString(), is("c6eca47cc8689c80725bc7acca96f554ee157db98594ff1ea8001002af72dad0"));
+        // the table is made of canonical clusters
+        final char[] buffer = new char[CharReorderFilter.MAX_LEN];
+        final char[] cats = new char[CharReorderFilter.MAX_LEN];
+        for (int id = 0 ; id < table.size() ; id++) {
+            final String cluster = table.cluster(id);
+            cluster.getChars(0, cluster.length(), buffer, 0);
+            assertThat(new String(buffer, 0, CharReorderFilter.reorder(buffer, cluster.length(), cats)), is(cluster));
+            assertThat(table.id(buffer, 0, cluster.length()), is(id));
+        }
+        // the terms are the ids or the escaped tokens, decoded into the KhmerAnalyzer tokens
+        final String text = "ខ្ញុំចង់ធ្វើការ ១២ ស្ត្រី";
+        try (Analyzer analyzer = new KhmerClusterIdAnalyzer() ; Analyzer clusters = new KhmerAnalyzer()) {
+            final List<String> terms = analyze(analyzer, text, false);
+            final List<String> expected = analyze(clusters, text, false);
+            assertThat(terms.size(), is(expected.size()));
+            for (int i = 0 ; i < terms.size() ; i++) {
+                assertThat(table.decode(terms.get(i)), is(expected.get(i)));
+                assertThat(terms.get(i), is(table.encode(expected.get(i))));
+            }
+            assertThat(terms.get(1).length(), is(2));
+            assertThat(terms.get(6), is(ClusterIdTable.ESCAPE + "១២"));
+            assertThat(terms.get(7), is(ClusterIdTable.ESCAPE + "ស្ត្រី"));
+            // same offsets
+            final List<String> idOffsets = analyze(analyzer, text, true);
+            final List<String> offsets = analyze(clusters, text, true);
+            for (int i = 0 ; i < offsets.size() ; i++) {
+                final String idToken = idOffsets.get(i);
+                final String token = offsets.get(i);
+                assertThat(idToken.substring(idToken.lastIndexOf('|')), is(token.substring(token.lastIndexOf('|'))));
+            }
+        }
+        // queries analyzed with the same analyzer, terms of the index decoded
+        try (Directory dir = new ByteBuffersDirectory() ; Analyzer analyzer = new KhmerClusterIdAnalyzer()) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer))) {
+                final Document doc = new Document();
+                doc.add(new TextField("text", "ភ្នំពេញ ១២", Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final QueryBuilder builder = new QueryBuilder(analyzer);
+                assertThat(searcher.count(builder.createPhraseQuery("text", "ភ្នំពេញ")), is(1));
+                assertThat(searcher.count(builder.createPhraseQuery("text", "ពេញភ្នំ")), is(0));
+                assertThat(searcher.count(builder.createBooleanQuery("text", "១២")), is(1));
+                final List<String> decoded = new ArrayList<>();
+                final TermsEnum termsEnum = MultiTerms.getTerms(reader, "text").iterator();
+                for (BytesRef term = termsEnum.next() ; term != null ; term = termsEnum.next())
+                    decoded.add(table.decode(term));
+                Collections.sort(decoded);
+                assertThat(decoded, is(Arrays.asList("ញ", "ពេ", "ភ្នំ", "១២")));
+            }
+        }
+    }
+
+    @Test
+    public void EdgeNGramTest() throws IOException {
+        System.out.println("Testing KhmerEdgeNGramFilter");
+        try (Analyzer analyzer = new KhmerEdgeNGramAnalyzer(false)) {
+            // the grams are at the position of the segment
+            assertThat(RegressionTest.dump(analyzer, "ភ្នំពេញ ក្រុង"), is("ភ្នំ\t0-4\nភ្នំពេ\t0-6\t+0\nភ្នំពេញ\t0-7\t+0\n"
+                    + "ក្រុ\t8-12\nក្រុង\t8-13\t+0\nend\t13\n"));
+        }
+        try (Analyzer analyzer = new KhmerEdgeNGramAnalyzer(true)) {
+            assertThat(analyze(analyzer, "ភ្នំពេ ក្រុ", true), is(Arrays.asList("ភ្នំពេ|0-6", "ក្រុ|7-11")));
+        }
+        // segments shorter than minClusters, longer than maxClusters
+        try (Analyzer index = new KhmerEdgeNGramAnalyzer(new KhmerAnalyzer.Options(), 2, 3, false) ; Analyzer query = new KhmerEdgeNGramAnalyzer(new KhmerAnalyzer.Options(), 2, 3, true)) {
+            assertThat(RegressionTest.dump(index, "ក សាលារៀន"), is("សាលា\t2-6\t+2\nសាលារៀ\t2-8\t+0\nend\t9\n"));
+            assertThat(analyze(query, "សាលារៀន", false), is(Arrays.asList("សាលារៀ")));
+        }
+        // with a lexicon, the words are the segments
+        final KhmerLexicon lexicon = KhmerLexicon.fromReader(new StringReader("ខ្ញុំ\nចង់\nធ្វើការ\n"), 1);
+        try (Analyzer analyzer = new KhmerEdgeNGramAnalyzer(new KhmerAnalyzer.Options().lexicon(lexicon), 1, 10, false)) {
+            assertThat(analyze(analyzer, "ខ្ញុំចង់ធ្វើការ", true), is(Arrays.asList("ខ្ញុំ|0-5", "ច|5-8", "ចង់|5-8",
+                    "ធ្វើ|8-15", "ធ្វើកា|8-15", "ធ្វើការ|8-15")));
+        }
+        // the clusters being typed (not words of the lexicon) are the last segment of the query
+        try (Directory dir = new ByteBuffersDirectory() ;
+                Analyzer index = new KhmerEdgeNGramAnalyzer(new KhmerAnalyzer.Options().lexicon(lexicon), 1, 10, false) ;
+                Analyzer query = new KhmerEdgeNGramAnalyzer(new KhmerAnalyzer.Options().lexicon(lexicon), 1, 10, true)) {
+            assertThat(analyze(query, "ខ្ញុំចង់ធ្វើកា", true), is(Arrays.asList("ខ្ញុំ|0-5", "ចង់|5-8", "ធ្វើកា|8-14")));
+            // only at the end of the query, and if they are contiguous
+            assertThat(analyze(query, "ធ្វើកា ខ្ញុំ", true), is(Arrays.asList("ធ្វើ|0-4", "កា|4-6", "ខ្ញុំ|7-12")));
+            assertThat(analyze(query, "ធ្វើ កា", true), is(Arrays.asList("ធ្វើ|0-4", "កា|5-7")));
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(index))) {
+                final Document doc = new Document();
+                doc.add(new TextField("title", "ខ្ញុំចង់ធ្វើការ", Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final QueryBuilder builder = new QueryBuilder(query);
+                final Query q = builder.createBooleanQuery("title", "ធ្វើកា");
+                assertTrue(q instanceof TermQuery);
+                assertThat(searcher.count(q), is(1));
+                assertThat(searcher.count(builder.createPhraseQuery("title", "ចង់ធ្វើកា")), is(1));
+            }
+        }
+        // a partial input is a single term query
+        try (Directory dir = new ByteBuffersDirectory() ; Analyzer index = new KhmerEdgeNGramAnalyzer(false) ; Analyzer query = new KhmerEdgeNGramAnalyzer(true)) {
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(index))) {
+                final Document doc = new Document();
+                doc.add(new TextField("title", "ភ្នំពេញ", Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            try (IndexReader reader = DirectoryReader.open(dir)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final QueryBuilder builder = new QueryBuilder(query);
+                final Query q = builder.createBooleanQuery("title", "ភ្នំពេ");
+                assertTrue(q instanceof TermQuery);
+                assertThat(searcher.count(q), is(1));
+                assertThat(searcher.count(builder.createBooleanQuery("title", "ពេញ")), is(0));
+            }
+        }
+    }
+
+    @Test
+    public void BatchAnalyzerTest() throws IOException {
+        System.out.println("Testing KhmerBatchAnalyzer");
+        final KhmerBatchAnalyzer batch = new KhmerBatchAnalyzer();
+        assertThat(Arrays.asList(batch.clusters("ខ្ញុំចង់ កេី")), is(Arrays.asList("ខ្ញុំ", "ច", "ង់", "កើ")));
+        assertThat(batch.normalize("ABC កេី, ស៊េី!"), is("ABC កើ, ស៊ើ!"));
+        // same clusters as KhmerAnalyzer on the lines of the golden corpus, at all levels
+        final List<String> lines = Arrays.asList(RegressionTest.resource("corpus.txt").split("\n"));
+        for (int level = 0 ; level <= 3 ; level++) {
+            final KhmerBatchAnalyzer levelBatch = new KhmerBatchAnalyzer(level, new ClusterCache(), ForkJoinPool.commonPool());
+            try (Analyzer analyzer = new KhmerAnalyzer(level)) {
+                for (final String line : lines) {
+                    final List<String> expected = new ArrayList<>();
+                    try (TokenStream ts = analyzer.tokenStream("", line)) {
+                        final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+                        ts.reset();
+                        while (ts.incrementToken())
+                            expected.add(termAtt.toString());
+                        ts.end();
+                    }
+                    assertThat(line, Arrays.asList(levelBatch.clusters(line)), is(expected));
+                }
+            }
+        }
+        // the lists longer than BATCH_SIZE are split, with the same results
+        final List<CharSequence> inputs = new ArrayList<>();
+        while (inputs.size() < 5 * KhmerBatchAnalyzer.BATCH_SIZE) {
+            for (final String line : lines)
+                inputs.add(new StringBuilder(line));
+        }
+        final String[][] clusters = batch.clusters(inputs);
+        final String[] normalized = batch.normalize(inputs);
+        for (int i = 0 ; i < inputs.size() ; i++) {
+            assertThat(clusters[i], is(batch.clusters(inputs.get(i).toString())));
+            assertThat(normalized[i], is(batch.normalize(inputs.get(i).toString())));
+        }
+        // the buffers don't stay as large as the longest string
+        final StringBuilder huge = new StringBuilder();
+        while (huge.length() <= 2 * KhmerBatchAnalyzer.MAX_KEPT_LEN)
+            huge.append("ខ្ញុំចង់ កេី ");
+        assertThat(batch.clusters(huge).length, is(huge.length() / 13 * 4));
+        final KhmerBatchAnalyzer.Worker worker = batch.worker();
+        assertTrue(worker.in.length <= KhmerBatchAnalyzer.MAX_KEPT_LEN);
+        assertTrue(worker.normalized.length <= KhmerBatchAnalyzer.MAX_KEPT_LEN);
+        assertTrue(worker.out.length <= KhmerBatchAnalyzer.MAX_KEPT_LEN);
+        assertThat(batch.normalize("កេី"), is("កើ"));
+        batch.close();
+        try {
+            batch.clusters("ក");
+            assertTrue(false);
+        } catch (AlreadyClosedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void CachingAnalyzerTest() throws IOException {
+        System.out.println("Testing KhmerCachingAnalyzer");
+        final List<String> lines = Arrays.asList(RegressionTest.resource("corpus.txt").split("\n"));
+        final KhmerLexicon lexicon = KhmerLexicon.fromReader(new StringReader("ខ្ញុំ\nចង់\nធ្វើការ\n"), 2);
+        for (final KhmerAnalyzer analyzer : Arrays.asList(new KhmerAnalyzer(1), new KhmerAnalyzer(new KhmerAnalyzer.Options().normalizationLevel(2).lexicon(lexicon)))) {
+            try (KhmerCachingAnalyzer caching = new KhmerCachingAnalyzer(analyzer, new AnalysisCache(1 << 20), 80)) {
+                // same tokens on a miss and on a hit, the long lines are not cached
+                int nbShort = 0;
+                for (final String line : lines) {
+                    final String expected = RegressionTest.dump(analyzer, line);
+                    assertThat(RegressionTest.dump(caching, line), is(expected));
+                    assertThat(RegressionTest.dump(caching, line), is(expected));
+                    if (line.length() <= 80)
+                        nbShort += 1;
+                }
+                final AnalysisCache cache = caching.getCache();
+                assertTrue(nbShort > 0 && nbShort < lines.size());
+                assertThat(cache.getHits(""), is((long) nbShort));
+                assertThat(cache.getSkipped(""), is(2L * (lines.size() - nbShort)));
+                assertThat(cache.getHitRatio(), is(0.5));
+                assertTrue(cache.size() > 0 && cache.getBytes() > 0);
+                assertThat(cache.getEvictions(), is(0L));
+            }
+        }
+        // the values and the counters are by field
+        try (KhmerCachingAnalyzer caching = new KhmerCachingAnalyzer(new KhmerAnalyzer(1))) {
+            RegressionTest.dump(caching, "ភ្នំពេញ");
+            for (int i = 0 ; i < 3 ; i++) {
+                try (TokenStream ts = caching.tokenStream("title", "ភ្នំពេញ")) {
+                    ts.reset();
+                    while (ts.incrementToken())
+                        ;
+                    ts.end();
+                }
+            }
+            assertThat(caching.getCache().getHits("title"), is(2L));
+            assertThat(caching.getCache().getMisses("title"), is(1L));
+            assertThat(caching.getCache().getMisses(""), is(1L));
+            assertThat(caching.getCache().getHitRatios().get("title"), is(2.0 / 3));
+        }
+        // the least recently used values are evicted when the cache is full
+        final AnalysisCache small = new AnalysisCache(16 * 1024);
+        try (KhmerCachingAnalyzer caching = new KhmerCachingAnalyzer(new KhmerAnalyzer(1), small, 80)) {
+            for (int i = 0 ; i < 2000 ; i++)
+                RegressionTest.dump(caching, "ភ្នំពេញ " + i);
+            assertTrue(small.getEvictions() > 0);
+            assertTrue(small.getBytes() <= small.getMaxBytes());
+            // the last value is still in the cache
+            RegressionTest.dump(caching, "ភ្នំពេញ 1999");
+            assertThat(small.getHits(), is(1L));
+            small.clear();
+            assertThat(small.size(), is(0));
+            assertThat(small.getBytes(), is(0L));
+        }
+        // the same value gives different tokens in fields analyzed differently
+        final KhmerAnalyzer words = new KhmerAnalyzer(new KhmerAnalyzer.Options().normalizationLevel(2).lexicon(lexicon));
+        final KhmerAnalyzer clusters = new KhmerAnalyzer(1);
+        final Analyzer perField = new DelegatingAnalyzerWrapper(Analyzer.PER_FIELD_REUSE_STRATEGY) {
+            @Override
+            protected Analyzer getWrappedAnalyzer(final String fieldName) {
+                return fieldName.equals("words") ? words : clusters;
+            }
+        };
+        try (KhmerCachingAnalyzer caching = new KhmerCachingAnalyzer(perField)) {
+            for (int i = 0 ; i < 2 ; i++) {
+                assertThat(terms(caching.tokenStream("words", "ខ្ញុំចង់")), is(Arrays.asList("ខ្ញុំ", "ចង់")));
+                assertThat(terms(caching.tokenStream("", "ខ្ញុំចង់")), is(Arrays.asList("ខ្ញុំ", "ច", "ង់")));
+            }
+            assertThat(caching.getCache().getHits(), is(2L));
+            assertThat(caching.getCache().size(), is(2));
+        }
+        // only the start of a long value is read before it is streamed to the wrapped analyzer
+        final StringBuilder longValue = new StringBuilder();
+        while (longValue.length() < 1000)
+            longValue.append("ខ្ញុំចង់ធ្វើការ ");
+        try (KhmerCachingAnalyzer caching = new KhmerCachingAnalyzer(new KhmerAnalyzer(1), new AnalysisCache(1 << 20), 80)) {
+            final int[] nbRead = new int[1];
+            final Reader reader = new FilterReader(new StringReader(longValue.toString())) {
+                @Override
+                public int read(final char[] cbuf, final int off, final int len) throws IOException {
+                    final int n = super.read(cbuf, off, len);
+                    if (n > 0)
+                        nbRead[0] += n;
+                    return n;
+                }
+            };
+            final TokenStream ts = caching.tokenStream("", reader);
+            assertThat(nbRead[0], is(81));
+            final List<String> expected = terms(new KhmerAnalyzer(1).tokenStream("", longValue.toString()));
+            assertThat(terms(ts), is(expected));
+            assertThat(nbRead[0], is(longValue.length()));
+            assertThat(caching.getCache().getSkipped(), is(1L));
+        }
+    }
+
+    @Test
+    public void ScriptTokenizerTest() throws IOException {
+        System.out.println("Testing KhmerScriptTokenizer");
+        try (Analyzer analyzer = new KhmerScriptAnalyzer()) {
+            // the level 1 normalization changes the length of the first cluster
+            assertThat(scriptTokens(analyzer.tokenStream("", "កេី Phnom-Penh, 1,000 Ελληνικά ABCក១២3")), is(Arrays.asList(
+                    "កើ|KHMER|word|0-3", "phnom-penh|LATIN|<ALPHANUM>|4-14",
+                    "1,000|COMMON|<NUM>|16-21", "ελληνικά|GREEK|<ALPHANUM>|22-30", "abc|LATIN|<ALPHANUM>|31-34",
+                    "ក|KHMER|word|34-35", "១២|KHMER|word|35-37", "3|COMMON|<NUM>|37-38")));
+        }
+        // at level 2, ":" is only kept in the Khmer clusters (as U+17C8)
+        try (Analyzer analyzer = new KhmerScriptAnalyzer(2)) {
+            assertThat(scriptTokens(analyzer.tokenStream("", "10:30 ស: note: ក")), is(Arrays.asList(
+                    "10|COMMON|<NUM>|0-2", "30|COMMON|<NUM>|3-5", "សៈ|KHMER|word|6-8", "note|LATIN|<ALPHANUM>|9-13",
+                    "ក|KHMER|word|15-16")));
+            assertThat(analyze(analyzer, "10:30", true), is(Arrays.asList("10|0-2", "30|3-5")));
+        }
+        // non-Khmer tokens are not grouped with the Khmer clusters
+        final KhmerLexicon lexicon = KhmerLexicon.fromReader(new StringReader("ធ្វើ\nការ\n"), 1);
+        try (Analyzer analyzer = new KhmerScriptAnalyzer(new KhmerAnalyzer.Options().lexicon(lexicon))) {
+            assertThat(scriptTokens(analyzer.tokenStream("", "ធ្វើការOK ការ")), is(Arrays.asList(
+                    "ធ្វើ|KHMER|<WORD>|0-4", "ការ|KHMER|<WORD>|4-7", "ok|LATIN|<ALPHANUM>|7-9", "ការ|KHMER|<WORD>|10-13")));
+        }
+        // runs longer than MAX_RUN are cut between words
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0 ; i < 1000 ; i++)
+            sb.append("word ");
+        sb.append("ក");
+        final KhmerScriptTokenizer tokenizer = new KhmerScriptTokenizer();
+        tokenizer.setReader(new StringReader(sb.toString()));
+        final List<String> tokens = scriptTokens(tokenizer);
+        assertThat(tokens.size(), is(1001));
+        assertThat(tokens.get(999), is("word|LATIN|<ALPHANUM>|4995-4999"));
+        assertThat(tokens.get(1000), is("ក|KHMER|word|5000-5001"));
+        // the words with punctuation at the cut are not split, the tokens are the same as
+        // with a BreakIterator on the whole text
+        final StringBuilder prefix = new StringBuilder();
+        for (int i = 0 ; i < (KhmerScriptTokenizer.MAX_RUN - 4) / 3 ; i++)
+            prefix.append("ab ");
+        // the cut (at MAX_RUN) is inside "foo-bar", then inside "don't"
+        for (final String text : Arrays.asList(prefix + "foo-bar don't end", prefix.substring(3) + "abc don't foo-bar end")) {
+            final BreakIterator breaker = BreakIterator.getWordInstance(Locale.ROOT);
+            breaker.setText(text);
+            final List<String> expected = new ArrayList<>();
+            for (int start = breaker.first(), end = breaker.next() ; end != BreakIterator.DONE ; start = end, end = breaker.next()) {
+                if (Character.isLetter(text.charAt(start)))
+                    expected.add(text.substring(start, end) + "|LATIN|<ALPHANUM>|" + start + "-" + end);
+            }
+            final KhmerScriptTokenizer longTokenizer = new KhmerScriptTokenizer();
+            longTokenizer.setReader(new StringReader(text));
+            final List<String> longTokens = scriptTokens(longTokenizer);
+            assertThat(longTokens, is(expected));
+            assertTrue(longTokens.contains("foo-bar|LATIN|<ALPHANUM>|" + text.indexOf("foo-bar") + "-" + (text.indexOf("foo-bar") + 7)));
+            assertTrue(longTokens.contains("don't|LATIN|<ALPHANUM>|" + text.indexOf("don't") + "-" + (text.indexOf("don't") + 5)));
+        }
+        // same tokens with a tiny buffer
+        final Random r = new Random(5);
+        final String[] pieces = {"ក្រុម", "ហ៊ុន", " ", "abc", "Δ", "12", ".", "១", "\u200D", "é", "\uD835\uDC00"};
+        for (int n = 0 ; n < 500 ; n++) {
+            final StringBuilder text = new StringBuilder();
+            for (int i = r.nextInt(30) ; i > 0 ; i--)
+                text.append(pieces[r.nextInt(pieces.length)]);
+            final KhmerScriptTokenizer large = new KhmerScriptTokenizer();
+            large.setReader(new StringReader(text.toString()));
+            final KhmerScriptTokenizer small = new KhmerScriptTokenizer(3);
+            small.setReader(new StringReader(text.toString()));
+            assertThat(text.toString(), scriptTokens(small), is(scriptTokens(large)));
+        }
+    }
+    
     public void assertFullAnalysis(final String s, final List<String> expected) throws IOException {
         Reader reader = new StringReader(s);
         System.out.print(s + " => ");
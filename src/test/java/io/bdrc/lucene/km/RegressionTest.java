@@ -0,0 +1,242 @@
+package io.bdrc.lucene.km;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Regression tests guarding the optimizations of the analysis chain:
+ *
+ * - the output of the analyzers (terms, offsets, position increments and types) on
+ *   golden/corpus.txt (a small generated corpus of about 50,000 chars: pseudo-words
+ *   then random clusters, with punctuation, digits and zero width chars) must be the
+ *   same as in the golden files next to it. After an
+ *   intended change of the output, they can be regenerated with -Dkm.golden.update=true
+ *   (and the diff reviewed before committing them).
+ * - CharReorderFilter.reorder() and ClusterCache must give the same result as the
+ *   regex-based reference implementation on km.regression.clusters random clusters
+ * - with -Dkm.throughput=true, reorder() must stay at least minSpeedup times faster than
+ *   the reference implementation, minSpeedup being recorded in
+ *   golden/throughput.properties (and updated if -Dkm.golden.update=true is given too).
+ *   The throughput is measured relative to the reference in the same JVM so that the
+ *   baseline doesn't depend on the machine running the tests, but timings are still too
+ *   noisy on shared machines for the default build: the JMH benchmarks are the reference
+ *   for the performance (see ReorderBenchmark).
+ */
+public class RegressionTest {
+
+    static final String GOLDEN_DIR = "golden/";
+    static final boolean UPDATE = Boolean.getBoolean("km.golden.update");
+    static final boolean THROUGHPUT = Boolean.getBoolean("km.throughput");
+    static final int NB_CLUSTERS = Integer.getInteger("km.regression.clusters", 2000000);
+    static final int CHUNK_SIZE = 100000;
+
+    static String resource(final String name) throws IOException {
+        try (InputStream in = RegressionTest.class.getClassLoader().getResourceAsStream(GOLDEN_DIR + name)) {
+            if (in == null)
+                return null;
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer) ; n != -1 ; n = in.read(buffer))
+                out.write(buffer, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // written in the sources, not in target/test-classes
+    static void writeResource(final String name, final String content) throws IOException {
+        final Path path = Paths.get(System.getProperty("basedir", "."), "src/test/resources", GOLDEN_DIR, name);
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        System.out.println("updated " + path);
+    }
+
+    static Map<String, Analyzer> goldenAnalyzers() throws IOException {
+        final Map<String, Analyzer> res = new LinkedHashMap<>();
+        for (int level = 0 ; level <= 3 ; level++)
+            res.put("level" + level, new KhmerAnalyzer(level));
+        res.put("variants", new KhmerVariantsAnalyzer(3));
+        res.put("latin", new KhmerTransliterationAnalyzer());
+        res.put("script", new KhmerScriptAnalyzer());
+        res.put("syllables", new KhmerAnalyzer(new KhmerAnalyzer.Options().syllables(true)));
+        return res;
+    }
+
+    // one line per token: term, offsets, position increment if not 1, type if not word
+    static String dump(final Analyzer analyzer, final String text) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        try (TokenStream ts = analyzer.tokenStream("", new StringReader(text))) {
+            final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+            final OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+            final PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+            final TypeAttribute typeAtt = ts.addAttribute(TypeAttribute.class);
+            ts.reset();
+            while (ts.incrementToken()) {
+                sb.append(termAtt).append('\t').append(offsetAtt.startOffset()).append('-').append(offsetAtt.endOffset());
+                if (posIncAtt.getPositionIncrement() != 1)
+                    sb.append("\t+").append(posIncAtt.getPositionIncrement());
+                if (!typeAtt.type().equals(TypeAttribute.DEFAULT_TYPE))
+                    sb.append('\t').append(typeAtt.type());
+                sb.append('\n');
+            }
+            ts.end();
+            sb.append("end\t").append(offsetAtt.endOffset()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void goldenOutputTest() throws IOException {
+        System.out.println("Testing the analyzers against the golden files");
+        final String corpus = resource("corpus.txt");
+        for (final Map.Entry<String, Analyzer> e : goldenAnalyzers().entrySet()) {
+            final String name = e.getKey() + ".txt";
+            try (Analyzer analyzer = e.getValue()) {
+                final String actual = dump(analyzer, corpus);
+                if (UPDATE) {
+                    writeResource(name, actual);
+                    continue;
+                }
+                final String expected = resource(name);
+                assertTrue("missing golden file " + name + ", run with -Dkm.golden.update=true", expected != null);
+                // the first different line is more readable than the whole files
+                final String[] expectedLines = expected.split("\n");
+                final String[] actualLines = actual.split("\n");
+                for (int i = 0 ; i < Math.min(expectedLines.length, actualLines.length) ; i++)
+                    assertEquals(name + " line " + (i + 1), expectedLines[i], actualLines[i]);
+                assertThat(name + " number of lines", actualLines.length, is(expectedLines.length));
+            }
+        }
+    }
+
+    @Test
+    public void reorderReferenceTest() {
+        System.out.println("Testing CharReorderFilter.reorder() against the reference implementation on " + NB_CLUSTERS + " clusters");
+        final ClusterCache cache = new ClusterCache();
+        final AtomicLong nbReordered = new AtomicLong();
+        // the chunks have their own seed, so that the clusters don't depend on the scheduling
+        IntStream.range(0, (NB_CLUSTERS + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().forEach(chunk -> {
+            final Random r = new Random(chunk);
+            final char[] buffer = new char[CharReorderFilter.MAX_LEN + 10];
+            final char[] cats = new char[CharReorderFilter.MAX_LEN];
+            final int end = Math.min(NB_CLUSTERS, (chunk + 1) * CHUNK_SIZE);
+            long reordered = 0;
+            for (int n = chunk * CHUNK_SIZE ; n < end ; n++) {
+                final String s = TestUtils.randomCluster(r);
+                final String expected = TestUtils.referenceReorder(s);
+                s.getChars(0, s.length(), buffer, 0);
+                assertEquals(s, expected, new String(buffer, 0, CharReorderFilter.reorder(buffer, s.length(), cats)));
+                s.getChars(0, s.length(), buffer, 0);
+                assertEquals(s, expected, new String(buffer, 0, cache.reorder(buffer, s.length(), cats)));
+                if (!expected.equals(s))
+                    reordered += 1;
+            }
+            nbReordered.addAndGet(reordered);
+        });
+        // the random clusters must exercise the reordering
+        assertTrue(nbReordered.get() > NB_CLUSTERS / 10);
+    }
+
+    // the clusters of the corpus, as the tokenizer outputs them
+    static List<String> corpusClusters() throws IOException {
+        final List<String> res = new ArrayList<>();
+        try (Analyzer analyzer = new Analyzer() {
+                @Override
+                protected TokenStreamComponents createComponents(final String fieldName) {
+                    return new TokenStreamComponents(new GraphemeClusterTokenizer());
+                }
+            } ; TokenStream ts = analyzer.tokenStream("", resource("corpus.txt"))) {
+            final CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+            ts.reset();
+            while (ts.incrementToken())
+                res.add(termAtt.toString());
+            ts.end();
+        }
+        return res;
+    }
+
+    // best time of rounds runs of the reference implementation on the clusters
+    static long referenceNanos(final List<String> clusters, final int rounds) {
+        long best = Long.MAX_VALUE;
+        int res = 0;
+        for (int round = 0 ; round < rounds ; round++) {
+            final long start = System.nanoTime();
+            for (final String cluster : clusters)
+                res += TestUtils.referenceReorder(cluster).length();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        assertTrue(res > 0);
+        return best;
+    }
+
+    static long reorderNanos(final List<String> clusters, final int rounds) {
+        final char[][] chars = new char[clusters.size()][];
+        for (int i = 0 ; i < chars.length ; i++)
+            chars[i] = clusters.get(i).toCharArray();
+        final char[] buffer = new char[CharReorderFilter.MAX_LEN + 10];
+        final char[] cats = new char[CharReorderFilter.MAX_LEN];
+        long best = Long.MAX_VALUE;
+        int res = 0;
+        for (int round = 0 ; round < rounds ; round++) {
+            final long start = System.nanoTime();
+            for (final char[] cluster : chars) {
+                final int len = Math.min(cluster.length, buffer.length);
+                System.arraycopy(cluster, 0, buffer, 0, len);
+                res += CharReorderFilter.reorder(buffer, len, cats);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        assertTrue(res > 0);
+        return best;
+    }
+
+    @Test
+    public void reorderThroughputTest() throws IOException {
+        Assume.assumeTrue("throughput check disabled, run with -Dkm.throughput=true", THROUGHPUT);
+        System.out.println("Testing the throughput of CharReorderFilter.reorder()");
+        final List<String> clusters = corpusClusters();
+        // warmup
+        referenceNanos(clusters, 3);
+        reorderNanos(clusters, 30);
+        final double speedup = (double) referenceNanos(clusters, 5) / reorderNanos(clusters, 50);
+        System.out.println(String.format("reorder() is %.1f times faster than the reference on %d clusters", speedup, clusters.size()));
+        final String name = "throughput.properties";
+        if (UPDATE) {
+            // half the measured speedup, to leave room for the noise of shared machines
+            writeResource(name, "# reorder() must be at least minSpeedup times faster than TestUtils.referenceReorder()\n"
+                    + String.format("minSpeedup=%.1f\n", speedup / 2));
+            return;
+        }
+        final Properties baseline = new Properties();
+        baseline.load(new StringReader(resource(name)));
+        final double minSpeedup = Double.parseDouble(baseline.getProperty("minSpeedup"));
+        assertTrue(String.format("reorder() is only %.1f times faster than the reference, the baseline is %.1f", speedup, minSpeedup), speedup >= minSpeedup);
+    }
+
+}
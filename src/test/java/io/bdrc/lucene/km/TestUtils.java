@@ -0,0 +1,96 @@
+package io.bdrc.lucene.km;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Helpers shared by AnalyzerTest and RegressionTest: the reference implementation of the
+ * reordering and the random clusters it is compared with.
+ */
+final class TestUtils {
+
+    private TestUtils() {
+    }
+
+    // the regex-based implementation of CharReorderFilter, kept as a reference
+    static final String BNB = "[\u1780-\u1793\u1795-\u17A2]";
+    static final String SF = "[\u179E-\u17A0\u17A2]";
+    static final String SS = "[\u1784\u1789\u1793\u1794\u1798-\u179D]";
+    static final String VA = "[\u17B7-\u17BA\u17BE\u17D0\u17DD]|\u17B6\u17C6";
+    
+    static final Pattern triisapP = Pattern.compile("({SF}(?:\u17D2{BNB}){0,2}|{BNB}(?:\u17D2{SF}(?:\u17D2{BNB})?|\u17D2{BNB}\u17D2{SF}))\u17BB({VA})".replace("{SF}", SF).replace("{BNB}", BNB).replace("{VA}", VA));
+    static final Pattern muusikatoanP = Pattern.compile("({SS}(?:\u17D2{SNF}){0,2}|{SNF}(?:\u17D2{SS}(?:\u17D2{SNF})?|\u17D2{SNF}\u17D2{SS}))\u17BB({VA})".replace("{SS}", SS).replace("{SNF}", BNB).replace("{VA}", VA));
+    
+    static String referenceReorder(final String s) {
+        final int len = s.length();
+        if (len < 2 || len > 30)
+            return s;
+        if (CharReorderFilter.charcat(s.charAt(0)) != CharReorderFilter.CAT_BASE)
+            return s;
+        final char[] cats = new char[len];
+        for (int i = 0 ; i < len ; i++) {
+            char cat = CharReorderFilter.charcat(s.charAt(i));
+            if (i > 0 && cat == CharReorderFilter.CAT_BASE && cats[i-1] == CharReorderFilter.CAT_COENG)
+                cat = CharReorderFilter.CAT_COENG;
+            cats[i] = cat;
+        }
+        final Integer[] indexes = new Integer[len];
+        for (Integer i = 0 ; i < len ; i++) {
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, (a, b) -> cats[a] - cats[b]);
+        char[] reordered = new char[len];
+        for (int i = 0; i < len ; i++) {
+            reordered[i] = s.charAt(indexes[i]);
+        }
+        String res = new String(reordered);
+        res = res.replaceAll("([\u200C\u200D])[\u200C\u200D]+", "$1");
+        res = res.replaceAll("\u17D2\u17D2+", "\u17D2");
+        res = res.replaceAll("\u17C1(\u17BB?)\u17B8", "$1\u17BE");
+        res = res.replaceAll("\u17C1(\u17BB?)\u17B6", "$1\u17C4");
+        res = res.replaceAll("\u17B8(\u17BB?)\u17C1", "$1\u17BE");
+        res = res.replaceAll("\u17B6(\u17BB?)\u17C1", "$1\u17C4");
+        res = res.replaceAll("([\u17B7-\u17BA\u17BE\u17D0\u17DD]|\u17B6\u17C6)(\u17BB)", "$2$1");
+        res = triisapP.matcher(res).replaceAll("$1\u17CA$2");
+        res = muusikatoanP.matcher(res).replaceAll("$1\u17C9$2");
+        res = res.replaceAll("(\u17D2\u179A)(\u17D2[\u1780-\u17B3])", "$2$1");
+        res = res.replaceAll("(\u17D2)\u178A", "$1\u178F");
+        return res;
+    }
+    
+    static String randomCluster(final Random r) {
+        final StringBuilder sb = new StringBuilder();
+        // mostly bases, sometimes something else to test the early exit
+        sb.append(r.nextInt(20) == 0 ? (char) ('\u17B4' + r.nextInt(40)) : (char) ('\u1780' + r.nextInt(0x34)));
+        if (r.nextBoolean()) {
+            // well-formed-ish cluster: subscripts, then vowels and signs
+            final int nbSubscripts = r.nextInt(3);
+            for (int i = 0 ; i < nbSubscripts ; i++) {
+                sb.append('\u17D2');
+                sb.append((char) ('\u1780' + r.nextInt(0x23)));
+            }
+            if (r.nextBoolean())
+                sb.append('\u17BB');
+            final int nbVowels = r.nextInt(3);
+            for (int i = 0 ; i < nbVowels ; i++)
+                sb.append((char) ('\u17B6' + r.nextInt(0x28)));
+            return sb.toString();
+        }
+        final int len = r.nextInt(8);
+        for (int i = 0 ; i < len ; i++) {
+            final int k = r.nextInt(10);
+            if (k < 3) {
+                sb.append('\u17D2');
+            } else if (k < 5) {
+                sb.append((char) ('\u1780' + r.nextInt(0x34)));
+            } else if (k < 9) {
+                sb.append((char) ('\u17B4' + r.nextInt(0x2A)));
+            } else {
+                sb.append(r.nextBoolean() ? '\u200C' : '\u200D');
+            }
+        }
+        return sb.toString();
+    }
+
+}